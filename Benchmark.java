@@ -0,0 +1,1309 @@
+/*
+ *  Copyright (c) 2017, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.util.*;
+
+import org.apache.lucene.index.*;
+import org.apache.lucene.search.*;
+import org.apache.lucene.util.*;
+
+/**
+ *  A simple utility for measuring the cost of query evaluation data
+ *  structures and algorithms on a Lucene index.  Run it to see a
+ *  simple usage message.  Each benchmark reports wall-clock times
+ *  that are averaged over several repetitions, after a warm-up pass
+ *  that gives the JIT a chance to compile the code being measured.
+ */
+public class Benchmark {
+
+  //  --------------- Constants and variables ---------------------
+
+  private static final String USAGE =
+    "Usage:  java " +
+    System.getProperty("sun.java.command") +
+    " -index INDEX_PATH [-repeat N] options\n\n" +
+    "where options include\n" +
+    "    -invlist TERM FIELD\n" +
+    "\t\t\tcompare the memory and construction/traversal time of\n" +
+    "\t\t\tthe inverted list for TERM in FIELD with the old\n" +
+    "\t\t\tobject-per-posting layout\n" +
+    "    -intersect RARE COMMON FIELD\n" +
+    "\t\t\tintersect the inverted lists of a rare and a common\n" +
+    "\t\t\tterm with a linear walk, galloping search, and\n" +
+    "\t\t\tgalloping search over skip pointers, and time\n" +
+    "\t\t\t#AND (RARE COMMON) end to end\n" +
+    "    -doclengths FIELD\n" +
+    "\t\t\tcompare the time to read every document length of\n" +
+    "\t\t\tFIELD in each DocLengthStore mode\n" +
+    "    -logspace QUERY_FILE MU LAMBDA\n" +
+    "\t\t\tcompare Indri scoring with probabilities and in log\n" +
+    "\t\t\tspace on the queries in QUERY_FILE (e.g., an\n" +
+    "\t\t\tfbExpansionQueryFile), and compare their rankings\n" +
+    "    -scorers QUERY_FILE bm25|indri\n" +
+    "\t\t\tcompare the cost per document of scoring the queries\n" +
+    "\t\t\tin QUERY_FILE with QrySop.getScore and with compiled\n" +
+    "\t\t\tQryScorer plans, with default model parameters\n" +
+    "    -segments QUERY_FILE bm25|indri THREADS\n" +
+    "\t\t\tcompare evaluating the queries in QUERY_FILE with the\n" +
+    "\t\t\tindex segments together and with THREADS segment\n" +
+    "\t\t\tworkers, and check that the rankings are the same\n" +
+    "\t\t\t(e.g., for queries that repeat a #NEAR or #SYN)\n" +
+    "    -positions ARGS TF DISTANCE\n" +
+    "\t\t\tcompare the #NEAR and #WINDOW location matching\n" +
+    "\t\t\talgorithms with the ones that they replaced, on\n" +
+    "\t\t\tsynthetic documents in which each of ARGS terms\n" +
+    "\t\t\toccurs TF times\n" +
+    "    -union TERM,TERM,... FIELD\n" +
+    "\t\t\tcompare the linear scans that #SYN and #OR used to find\n" +
+    "\t\t\tthe next document, and #SYN's sort of boxed locations,\n" +
+    "\t\t\twith QryUnionIterator and a k-way merge\n" +
+    "    -termvectors FIELD\n" +
+    "\t\t\tcompare the time to read the term vector of every\n" +
+    "\t\t\tdocument from Lucene and from a ForwardIndex, with and\n" +
+    "\t\t\twithout locations, and check that they are the same\n" +
+    "    -termids FIELD\n" +
+    "\t\t\tcompare looking up the df and ctf of every term of\n" +
+    "\t\t\tFIELD in Lucene, in the TermDictionary by string, and\n" +
+    "\t\t\tby term id, and check that they are the same\n" +
+    "    -runfile RUN_FILE\n" +
+    "\t\t\tcompare reading each query's ranking from RUN_FILE by\n" +
+    "\t\t\tscanning the file, as feedback and diversification\n" +
+    "\t\t\tdid, with a TrecRunFile, and check that they are the\n" +
+    "\t\t\tsame\n";
+
+  private static int repeat = 5;
+  private static String indexPath = null;
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  @param args See the usage message.
+   *  @throws Exception Error accessing the Lucene index.
+   */
+  public static void main (String[] args) throws Exception {
+
+    for (int i = 0; i < args.length; i++) {
+      if ("-index".equals (args[i]) && ((i + 1) < args.length)) {
+        indexPath = args[i + 1];
+      } else if ("-repeat".equals (args[i]) && ((i + 1) < args.length)) {
+        repeat = Integer.parseInt (args[i + 1]);
+      }
+    }
+
+    if (indexPath == null) {
+      System.err.println (USAGE);
+      System.exit (1);
+    }
+
+    Idx.open (indexPath);
+
+    for (int i = 0; i < args.length; i++) {
+
+      if ("-index".equals (args[i]) || "-repeat".equals (args[i])) {
+        i++;
+      } else if ("-invlist".equals (args[i]) && ((i + 2) < args.length)) {
+        benchmarkInvList (args[i + 1], args[i + 2]);
+        i += 2;
+      } else if ("-intersect".equals (args[i]) && ((i + 3) < args.length)) {
+        benchmarkIntersect (args[i + 1], args[i + 2], args[i + 3]);
+        i += 3;
+      } else if ("-doclengths".equals (args[i]) && ((i + 1) < args.length)) {
+        benchmarkDocLengths (args[i + 1]);
+        i += 1;
+      } else if ("-logspace".equals (args[i]) && ((i + 3) < args.length)) {
+        benchmarkLogSpace (args[i + 1], Float.parseFloat (args[i + 2]),
+                           Float.parseFloat (args[i + 3]));
+        i += 3;
+      } else if ("-positions".equals (args[i]) && ((i + 3) < args.length)) {
+        benchmarkPositions (Integer.parseInt (args[i + 1]),
+                            Integer.parseInt (args[i + 2]),
+                            Integer.parseInt (args[i + 3]));
+        i += 3;
+      } else if ("-termvectors".equals (args[i]) && ((i + 1) < args.length)) {
+        benchmarkTermVectors (args[i + 1]);
+        i += 1;
+      } else if ("-termids".equals (args[i]) && ((i + 1) < args.length)) {
+        benchmarkTermIds (args[i + 1]);
+        i += 1;
+      } else if ("-runfile".equals (args[i]) && ((i + 1) < args.length)) {
+        benchmarkRunFile (args[i + 1]);
+        i += 1;
+      } else if ("-union".equals (args[i]) && ((i + 2) < args.length)) {
+        benchmarkUnion (args[i + 1].split (","), args[i + 2]);
+        i += 2;
+      } else if ("-scorers".equals (args[i]) && ((i + 2) < args.length)) {
+        benchmarkScorers (args[i + 1], args[i + 2]);
+        i += 2;
+      } else if ("-segments".equals (args[i]) && ((i + 3) < args.length)) {
+        benchmarkSegments (args[i + 1], args[i + 2],
+                           Integer.parseInt (args[i + 3]));
+        i += 3;
+      } else {
+        System.err.println ("\nWarning:  Unknown argument " + args[i]
+                            + " ignored.");
+      }
+    }
+  }
+
+  /**
+   *  Compare the columnar InvList with the object-per-posting layout
+   *  that it replaced (a Vector of postings, each of which holds a
+   *  Vector of boxed positions).
+   *  @param term A processed (stemmed, lower-cased) term.
+   *  @param field The field that the term occurs in.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  private static void benchmarkInvList (String term, String field)
+    throws IOException {
+
+    System.out.println ("\nInverted list:  " + term + "." + field);
+
+    //  Memory.  Build one of each and measure the change in heap use.
+
+    long before = usedMemory ();
+    Vector<LegacyPosting> legacy = readLegacyInvList (term, field);
+    long legacyBytes = usedMemory () - before;
+
+    before = usedMemory ();
+    InvList columnar = new InvList (term, field);
+    long columnarBytes = usedMemory () - before;
+
+    //  Both lists are still referenced here, so neither measurement
+    //  was reduced by the other being collected.
+
+    System.out.println ("\tdf:  " + columnar.df + " (" + legacy.size () +
+                        "), ctf:  " + columnar.ctf);
+    System.out.println ("\tVector<DocPosting> heap:  " +
+                        (legacyBytes / 1024) + " KB (" +
+                        bytesPer (legacyBytes, columnar.ctf) +
+                        " bytes/occurrence)");
+    System.out.println ("\tInvList heap:  " +
+                        (columnarBytes / 1024) + " KB (" +
+                        bytesPer (columnarBytes, columnar.ctf) +
+                        " bytes/occurrence), ramBytesUsed=" +
+                        (columnar.ramBytesUsed () / 1024) + " KB");
+
+    //  Latency.  Construct the list from the index, then walk every
+    //  location, the way #NEAR/n and #WINDOW/n do.
+
+    long checksum = 0;
+
+    for (int pass = 0; pass < 2; pass++) {	// Pass 0 is a warm-up.
+      long legacyBuild = 0, legacyWalk = 0;
+      long columnarBuild = 0, columnarWalk = 0;
+
+      for (int r = 0; r < repeat; r++) {
+        long t0 = System.nanoTime ();
+        legacy = readLegacyInvList (term, field);
+        long t1 = System.nanoTime ();
+
+        for (int i = 0; i < legacy.size (); i++) {
+          LegacyPosting p = legacy.get (i);
+          for (int j = 0; j < p.tf; j++) {
+            checksum += p.positions.get (j);
+          }
+        }
+
+        long t2 = System.nanoTime ();
+        columnar = new InvList (term, field);
+        long t3 = System.nanoTime ();
+
+        for (int i = 0; i < columnar.df; i++) {
+          int tf = columnar.getTf (i);
+          for (int j = 0; j < tf; j++) {
+            checksum += columnar.getPosition (i, j);
+          }
+        }
+
+        long t4 = System.nanoTime ();
+        legacyBuild += t1 - t0;
+        legacyWalk += t2 - t1;
+        columnarBuild += t3 - t2;
+        columnarWalk += t4 - t3;
+      }
+
+      if (pass == 1) {
+        System.out.println ("\tVector<DocPosting> build:  " +
+                            millis (legacyBuild) + " ms, walk:  " +
+                            millis (legacyWalk) + " ms");
+        System.out.println ("\tInvList build:  " +
+                            millis (columnarBuild) + " ms, walk:  " +
+                            millis (columnarWalk) + " ms");
+      }
+    }
+
+    System.out.println ("\t(checksum " + checksum + ")");
+  }
+
+  /**
+   *  Compare ways of intersecting a rare term's inverted list with a
+   *  common term's inverted list, which is what #AND, #NEAR/n and
+   *  #WINDOW/n do when they look for documents that contain all of
+   *  their arguments.
+   *  @param rareTerm A processed term with a short inverted list.
+   *  @param commonTerm A processed term with a long inverted list.
+   *  @param field The field that the terms occur in.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  private static void benchmarkIntersect (String rareTerm, String commonTerm,
+                                          String field)
+    throws IOException {
+
+    InvList rare = new InvList (rareTerm, field);
+    InvList common = new InvList (commonTerm, field);
+    InvList commonSkips = new InvList (commonTerm, field);
+    commonSkips.buildSkipPointers ();
+
+    System.out.println ("\nIntersection:  " + rareTerm + "." + field +
+                        " (df=" + rare.df + ") AND " + commonTerm + "." +
+                        field + " (df=" + common.df + ")");
+
+    RetrievalModel model = new RetrievalModelRankedBoolean ();
+    String query = "#and(" + rareTerm + "." + field + " " +
+      commonTerm + "." + field + ")";
+    long matches[] = new long[4];
+
+    for (int pass = 0; pass < 2; pass++) {	// Pass 0 is a warm-up.
+      long time[] = new long[4];
+
+      for (int r = 0; r < repeat; r++) {
+        Arrays.fill (matches, 0);
+
+        //  Linear walk:  the way QryIop used to advance.
+
+        long t0 = System.nanoTime ();
+        int j = 0;
+
+        for (int i = 0; i < rare.df; i++) {
+          int docid = rare.getDocid (i);
+
+          while ((j < common.df) && (common.getDocid (j) < docid))
+            j++;
+
+          if ((j < common.df) && (common.getDocid (j) == docid))
+            matches[0]++;
+        }
+
+        //  Galloping search, with and without skip pointers.
+
+        long t1 = System.nanoTime ();
+        matches[1] = countMatches (rare, common);
+        long t2 = System.nanoTime ();
+        matches[2] = countMatches (rare, commonSkips);
+        long t3 = System.nanoTime ();
+
+        //  The #AND operator, including reading the inverted lists.
+
+        Qry q = QryParser.getQuery (query);
+        q.initialize (model);
+
+        while (q.docIteratorHasMatch (model)) {
+          matches[3]++;
+          q.docIteratorAdvancePast (q.docIteratorGetMatch ());
+        }
+
+        long t4 = System.nanoTime ();
+        time[0] += t1 - t0;
+        time[1] += t2 - t1;
+        time[2] += t3 - t2;
+        time[3] += t4 - t3;
+      }
+
+      if (pass == 1) {
+        System.out.println ("\tlinear:  " + millis (time[0]) +
+                            " ms, galloping:  " + millis (time[1]) +
+                            " ms, skip pointers:  " + millis (time[2]) +
+                            " ms");
+        System.out.println ("\t" + query + ":  " + millis (time[3]) + " ms");
+      }
+    }
+
+    System.out.println ("\tmatches:  " + matches[0] + " " + matches[1] +
+                        " " + matches[2] + " " + matches[3]);
+  }
+
+  /**
+   *  Compare reading every document's term vector from Lucene and
+   *  from the field's forward indexes, which are built first if
+   *  necessary.
+   *  @param field The field to read.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  private static void benchmarkTermVectors (String field) throws IOException {
+
+    int maxDoc = Idx.INDEXREADER.maxDoc ();
+    long t0 = System.nanoTime ();
+    ForwardIndex withLocations =
+      ForwardIndex.open (indexPath, (DirectoryReader) Idx.INDEXREADER, field, true);
+    long t1 = System.nanoTime ();
+    ForwardIndex withoutLocations =
+      ForwardIndex.open (indexPath, (DirectoryReader) Idx.INDEXREADER, field, false);
+    long t2 = System.nanoTime ();
+
+    System.out.println ("\nTerm vectors:  " + field + ", " + maxDoc +
+                        " documents, forward indexes opened in " +
+                        String.format ("%.1f", (t1 - t0) / 1e6) + " and " +
+                        String.format ("%.1f", (t2 - t1) / 1e6) + " ms");
+
+    long time[] = new long[3];
+    long stems = 0;
+
+    for (int pass = 0; pass < 2; pass++) {	// Pass 0 is a warm-up.
+      Arrays.fill (time, 0);
+
+      for (int r = 0; r < repeat; r++) {
+        stems = 0;
+        long t3 = System.nanoTime ();
+
+        for (int d = 0; d < maxDoc; d++)
+          stems += new TermVector (d, field).stemsLength ();
+
+        long t4 = System.nanoTime ();
+
+        for (int d = 0; d < maxDoc; d++)
+          new TermVector (d, withLocations).stemsLength ();
+
+        long t5 = System.nanoTime ();
+
+        for (int d = 0; d < maxDoc; d++)
+          new TermVector (d, withoutLocations).stemsLength ();
+
+        time[0] += t4 - t3;
+        time[1] += t5 - t4;
+        time[2] += System.nanoTime () - t5;
+      }
+    }
+
+    boolean same = true;
+
+    for (int d = 0; same && (d < maxDoc); d++) {
+      TermVector lucene = new TermVector (d, field);
+      TermVector forward = new TermVector (d, withLocations);
+
+      same = (lucene.stemsLength () == forward.stemsLength ()) &&
+        (lucene.positionsLength () == forward.positionsLength ());
+
+      for (int i = 1; same && (i < lucene.stemsLength ()); i++) {
+        same = lucene.stemString (i).equals (forward.stemString (i)) &&
+          (lucene.stemFreq (i) == forward.stemFreq (i)) &&
+          (forward.indexOfStem (lucene.stemString (i)) == i);
+      }
+
+      for (int i = 0; same && (i < lucene.positionsLength ()); i++) {
+        same = (lucene.stemAt (i) == forward.stemAt (i));
+      }
+    }
+
+    System.out.println ("\tLucene:  " + millis (time[0]) +
+                        " ms, forward index:  " + millis (time[1]) +
+                        " ms, without locations:  " + millis (time[2]) +
+                        " ms, " + stems + " stems, same vectors:  " + same);
+  }
+
+  /**
+   *  Compare the ways of getting term statistics:  a Lucene lookup,
+   *  which needs a Term, and the TermDictionary, by string and by
+   *  term id.
+   *  @param field The field whose terms are looked up.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  private static void benchmarkTermIds (String field) throws IOException {
+
+    List<String> terms = new ArrayList<String> ();
+    Terms luceneTerms = MultiFields.getTerms (Idx.INDEXREADER, field);
+
+    if (luceneTerms != null) {
+      TermsEnum ithTerm = luceneTerms.iterator (null);
+
+      while (ithTerm.next () != null)
+        terms.add (ithTerm.term ().utf8ToString ());
+    }
+
+    int[] termIds = new int[terms.size ()];
+
+    for (int i = 0; i < termIds.length; i++)
+      termIds[i] = Idx.getTermId (field, terms.get (i));
+
+    System.out.println ("\nTerm ids:  " + field + ", " + terms.size () +
+                        " terms");
+
+    long time[] = new long[3];
+    long sum[] = new long[3];
+
+    for (int pass = 0; pass < 2; pass++) {	// Pass 0 is a warm-up.
+      Arrays.fill (time, 0);
+
+      for (int r = 0; r < repeat; r++) {
+        Arrays.fill (sum, 0);
+        long t0 = System.nanoTime ();
+
+        for (String term : terms) {
+          Term t = new Term (field, new BytesRef (term));
+          sum[0] += Idx.INDEXREADER.docFreq (t) + Idx.INDEXREADER.totalTermFreq (t);
+        }
+
+        long t1 = System.nanoTime ();
+
+        for (String term : terms) {
+          int termId = Idx.getTermId (field, term);
+          sum[1] += Idx.getDf (termId) + Idx.getTotalTermFreq (termId);
+        }
+
+        long t2 = System.nanoTime ();
+
+        for (int termId : termIds)
+          sum[2] += Idx.getDf (termId) + Idx.getTotalTermFreq (termId);
+
+        time[0] += t1 - t0;
+        time[1] += t2 - t1;
+        time[2] += System.nanoTime () - t2;
+      }
+    }
+
+    boolean same = (sum[0] == sum[1]) && (sum[1] == sum[2]);
+
+    for (int i = 0; same && (i < termIds.length); i++) {
+      same = (termIds[i] == Idx.getFirstTermId (field) + i) &&
+        terms.get (i).equals (Idx.getTerm (termIds[i]));
+    }
+
+    System.out.println ("\tLucene:  " + nanosPer (time[0], repeat * (long) terms.size ()) +
+                        " ns/term, by string:  " +
+                        nanosPer (time[1], repeat * (long) terms.size ()) +
+                        " ns/term, by id:  " +
+                        nanosPer (time[2], repeat * (long) terms.size ()) +
+                        " ns/term, same statistics:  " + same);
+  }
+
+  /**
+   *  Compare getting every query's ranking by scanning a ranking file
+   *  from the top with getting it from a TrecRunFile.
+   *  @param runFile A ranking in trec_eval input format.
+   *  @throws Exception Error accessing the file or the Lucene index.
+   */
+  private static void benchmarkRunFile (String runFile) throws Exception {
+
+    long t0 = System.nanoTime ();
+    TrecRunFile rankings = new TrecRunFile (runFile);
+    long t1 = System.nanoTime ();
+
+    //  The qids, in file order.
+
+    List<String> qids = new ArrayList<String> ();
+    BufferedReader input = new BufferedReader (new FileReader (runFile));
+    String line;
+
+    while ((line = input.readLine ()) != null) {
+      String qid = line.split (" ")[0];
+
+      if (qids.isEmpty () || ! qids.get (qids.size () - 1).equals (qid))
+        qids.add (qid);
+    }
+
+    input.close ();
+
+    System.out.println ("\nRun file:  " + runFile + ", " + qids.size () +
+                        " qids, opened in " + millis ((t1 - t0) * repeat) +
+                        " ms");
+
+    long time[] = new long[2];
+    long documents = 0;
+    boolean same = true;
+
+    for (int pass = 0; pass < 2; pass++) {	// Pass 0 is a warm-up.
+      Arrays.fill (time, 0);
+
+      for (int r = 0; r < repeat; r++) {
+        documents = 0;
+
+        for (String qid : qids) {
+          long t2 = System.nanoTime ();
+          ScoreList scanned = new ScoreList ();
+
+          input = new BufferedReader (new FileReader (runFile));
+
+          while ((line = input.readLine ()) != null) {
+            String[] pair = line.split (" ");
+
+            if (pair[0].equals (qid))
+              scanned.add (Idx.getInternalDocid (pair[2]),
+                           Double.parseDouble (pair[4]));
+          }
+
+          input.close ();
+
+          long t3 = System.nanoTime ();
+          ScoreList mapped = rankings.getRanking (qid, Integer.MAX_VALUE);
+
+          time[0] += t3 - t2;
+          time[1] += System.nanoTime () - t3;
+          documents += mapped.size ();
+          same = same && (scanned.size () == mapped.size ());
+
+          for (int i = 0; same && (i < mapped.size ()); i++) {
+            same = (scanned.getDocid (i) == mapped.getDocid (i)) &&
+              (scanned.getDocidScore (i) == mapped.getDocidScore (i));
+          }
+        }
+      }
+    }
+
+    System.out.println ("\tScan:  " + millis (time[0]) +
+                        " ms, TrecRunFile:  " + millis (time[1]) +
+                        " ms, " + documents + " documents, same rankings:  " +
+                        same);
+  }
+
+  /**
+   *  Compare the DocLengthStore modes by reading the length of every
+   *  document, the way a scoring loop does.
+   *  @param field The field to read.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  private static void benchmarkDocLengths (String field) throws IOException {
+
+    System.out.println ("\nDocument lengths:  " + field);
+
+    int maxDoc = Idx.INDEXREADER.maxDoc ();
+    String[] modes = { "norms", "heap", "mmap" };
+
+    for (String mode : modes) {
+      long before = usedMemory ();
+      DocLengthStore store = new DocLengthStore (indexPath, Idx.INDEXREADER, mode);
+      long heapBytes = usedMemory () - before;
+      int ordinal = store.getFieldOrdinal (field);
+      long checksum = 0;
+      long time = 0;
+
+      for (int pass = 0; pass < 2; pass++) {	// Pass 0 is a warm-up.
+        time = 0;
+
+        for (int r = 0; r < repeat; r++) {
+          long t0 = System.nanoTime ();
+
+          for (int docid = 0; docid < maxDoc; docid++)
+            checksum += store.getDocLength (ordinal, docid);
+
+          time += System.nanoTime () - t0;
+        }
+      }
+
+      System.out.println ("\t" + mode + ":  " + millis (time) + " ms, heap " +
+                          (heapBytes / 1024) + " KB (checksum " + checksum + ")");
+    }
+  }
+
+  /**
+   *  Compare Indri query evaluation with probabilities and in log
+   *  space.  Expanded queries from relevance feedback are long #WAND
+   *  queries, which is where log space helps most.
+   *  @param queryFile Queries, one per line, optionally preceded by
+   *  "qid:" as in a query file or an fbExpansionQueryFile.
+   *  @param mu The Indri mu parameter.
+   *  @param lambda The Indri lambda parameter.
+   *  @throws IOException Error accessing the Lucene index or the file.
+   */
+  private static void benchmarkLogSpace (String queryFile, float mu,
+                                         float lambda)
+    throws IOException {
+
+    List<String> queries = readQueries (queryFile);
+
+    System.out.println ("\nIndri log space:  " + queries.size () +
+                        " queries from " + queryFile);
+
+    RetrievalModelIndri probabilities = new RetrievalModelIndri (mu, lambda);
+    RetrievalModelIndri logs = new RetrievalModelIndri (mu, lambda);
+    logs.setLogSpace (true);
+
+    ScoreList[][] results = new ScoreList[2][queries.size ()];
+    long time[] = new long[2];
+
+    for (int pass = 0; pass < 2; pass++) {	// Pass 0 is a warm-up.
+      Arrays.fill (time, 0);
+
+      for (int r = 0; r < repeat; r++) {
+        for (int m = 0; m < 2; m++) {
+          RetrievalModel model = (m == 0) ? probabilities : logs;
+          long t0 = System.nanoTime ();
+
+          for (int i = 0; i < queries.size (); i++)
+            results[m][i] = QryEval.processQuery (queries.get (i), model,
+                                                  QryEval.OUTPUT_LENGTH);
+
+          time[m] += System.nanoTime () - t0;
+        }
+      }
+    }
+
+    //  Compare the rankings and scores.
+
+    int sameRankings = 0;
+    double maxRelativeError = 0;
+
+    for (int i = 0; i < queries.size (); i++) {
+      ScoreList p = results[0][i];
+      ScoreList l = results[1][i];
+      boolean same = (p.size () == l.size ());
+
+      for (int j = 0; same && (j < p.size ()); j++) {
+        same = (p.getDocid (j) == l.getDocid (j));
+        double error = Math.abs (p.getDocidScore (j) - l.getDocidScore (j)) /
+          Math.abs (p.getDocidScore (j));
+        maxRelativeError = Math.max (maxRelativeError, error);
+      }
+
+      if (same)
+        sameRankings++;
+    }
+
+    System.out.println ("\tprobabilities:  " + millis (time[0]) +
+                        " ms, log space:  " + millis (time[1]) + " ms");
+    System.out.println ("\tsame rankings:  " + sameRankings + "/" +
+                        queries.size () + ", largest relative score " +
+                        "difference:  " + maxRelativeError);
+  }
+
+  /**
+   *  Compare the cost of scoring each document with the query tree's
+   *  getScore, which dispatches on the retrieval model and casts its
+   *  arguments for every document, and with the QryScorer plan that
+   *  QrySop.compile builds once per query.  Both evaluate every
+   *  document that each query matches; the time includes iteration,
+   *  which is the same for both.
+   *  @param queryFile Queries, one per line, optionally preceded by
+   *  "qid:" as in a query file.
+   *  @param modelName "bm25" or "indri".
+   *  @throws IOException Error accessing the Lucene index or the file.
+   */
+  private static void benchmarkScorers (String queryFile, String modelName)
+    throws IOException {
+
+    List<String> queries = readQueries (queryFile);
+    RetrievalModel model = getModel (modelName);
+
+    System.out.println ("\nCompiled scorers (" + modelName + "):  " +
+                        queries.size () + " queries from " + queryFile);
+
+    long time[] = new long[2];
+    long documents = 0;
+    double checksum[] = new double[2];
+
+    for (int pass = 0; pass < 2; pass++) {	// Pass 0 is a warm-up.
+      Arrays.fill (time, 0);
+      Arrays.fill (checksum, 0);
+      documents = 0;
+
+      for (int r = 0; r < repeat; r++) {
+        for (String query : queries) {
+          for (int m = 0; m < 2; m++) {
+            Qry q = QryParser.getQuery (model.defaultQrySopName () +
+                                        "(" + query + ")");
+
+            if ((q == null) || (q.args.size () == 0))
+              continue;
+
+            q.initialize (model);
+
+            QryScorer scorer = (m == 0) ? null : ((QrySop) q).compile (model);
+
+            if ((m == 1) && (scorer == null)) {
+              throw new IllegalArgumentException (
+                "The query can't be compiled:  " + query);
+            }
+
+            long t0 = System.nanoTime ();
+
+            while (q.docIteratorHasMatch (model)) {
+              int docid = q.docIteratorGetMatch ();
+              checksum[m] += (m == 0) ?
+                ((QrySop) q).getScore (model) : scorer.score (docid);
+              q.docIteratorAdvancePast (docid);
+
+              if (m == 0)
+                documents++;
+            }
+
+            time[m] += System.nanoTime () - t0;
+          }
+        }
+      }
+    }
+
+    System.out.println ("\tdocuments scored:  " + (documents / repeat));
+    System.out.println ("\tgetScore:  " + millis (time[0]) + " ms, " +
+                        nanosPer (time[0], documents) + " ns/document");
+    System.out.println ("\tcompiled:  " + millis (time[1]) + " ms, " +
+                        nanosPer (time[1], documents) + " ns/document");
+    System.out.println ("\tsame scores:  " + (checksum[0] == checksum[1]));
+  }
+
+  /**
+   *  Compare evaluating each query with the index segments together
+   *  and with a worker per segment (see the segmentThreads
+   *  parameter), which parses a query tree per segment and gives the
+   *  trees the statistics of the whole index.  The rankings should be
+   *  the same.
+   *  @param queryFile Queries, one per line, optionally preceded by
+   *  "qid:" as in a query file.
+   *  @param modelName "bm25" or "indri".
+   *  @param threads The number of segment workers.
+   *  @throws IOException Error accessing the Lucene index or the file.
+   */
+  private static void benchmarkSegments (String queryFile, String modelName,
+                                         int threads)
+    throws IOException {
+
+    List<String> queries = readQueries (queryFile);
+    RetrievalModel model = getModel (modelName);
+
+    System.out.println ("\nSegment workers (" + modelName + "):  " +
+                        queries.size () + " queries from " + queryFile +
+                        ", " + Idx.INDEXREADER.leaves ().size () +
+                        " segments");
+
+    ScoreList[][] results = new ScoreList[2][queries.size ()];
+    long time[] = new long[2];
+
+    for (int pass = 0; pass < 2; pass++) {	// Pass 0 is a warm-up.
+      Arrays.fill (time, 0);
+
+      for (int r = 0; r < repeat; r++) {
+        for (int m = 0; m < 2; m++) {
+          QryEval.setSegmentThreads ((m == 0) ? 0 : threads);
+          long t0 = System.nanoTime ();
+
+          for (int i = 0; i < queries.size (); i++)
+            results[m][i] = QryEval.processQuery (queries.get (i), model,
+                                                  QryEval.OUTPUT_LENGTH);
+
+          time[m] += System.nanoTime () - t0;
+        }
+      }
+    }
+
+    QryEval.setSegmentThreads (0);
+
+    //  Compare the rankings and scores.
+
+    int sameRankings = 0;
+
+    for (int i = 0; i < queries.size (); i++) {
+      ScoreList a = results[0][i];
+      ScoreList b = results[1][i];
+      boolean same = (a == null) ? (b == null) :
+        ((b != null) && (a.size () == b.size ()));
+
+      for (int j = 0; same && (j < a.size ()); j++) {
+        same = (a.getDocid (j) == b.getDocid (j)) &&
+          (a.getDocidScore (j) == b.getDocidScore (j));
+      }
+
+      if (same)
+        sameRankings++;
+      else
+        System.out.println ("\tdifferent ranking:  " + queries.get (i));
+    }
+
+    System.out.println ("\tsegments together:  " + millis (time[0]) +
+                        " ms, " + threads + " workers:  " +
+                        millis (time[1]) + " ms");
+    System.out.println ("\tsame rankings:  " + sameRankings + "/" +
+                        queries.size ());
+  }
+
+  /**
+   *  Compare QryIopNear.matchPositions and QryIopWindow.matchPositions
+   *  with the location matching loops that they replaced, which
+   *  restarted from the first argument (#NEAR) or rescanned every
+   *  argument (#WINDOW) after each step.  The documents are synthetic:
+   *  each argument occurs TF times at random distinct locations in a
+   *  document of 4 * ARGS * TF words.
+   *  @param numArgs The number of query arguments.
+   *  @param tf The number of locations of each argument.
+   *  @param distance The #NEAR/n or #WINDOW/n distance.
+   */
+  private static void benchmarkPositions (int numArgs, int tf, int distance) {
+
+    int numDocs = 1000;
+    Random random = new Random (numArgs * 31 + tf);
+    int[][][] docs = new int[numDocs][][];
+
+    for (int d = 0; d < numDocs; d++) {
+      docs[d] = syntheticLocations (random, numArgs, tf);
+    }
+
+    System.out.println ("\nLocation matching:  " + numDocs + " documents, " +
+                        numArgs + " arguments, tf " + tf + ", distance " +
+                        distance);
+
+    for (int op = 0; op < 2; op++) {
+      long time[] = new long[2];
+      long matches[] = new long[2];
+      boolean same = true;
+      int[] buffer = new int[tf];
+
+      for (int pass = 0; pass < 2; pass++) {	// Pass 0 is a warm-up.
+        Arrays.fill (time, 0);
+        Arrays.fill (matches, 0);
+
+        for (int r = 0; r < repeat; r++) {
+          long t0 = System.nanoTime ();
+
+          for (int d = 0; d < numDocs; d++) {
+            List<Integer> legacy = (op == 0) ?
+              legacyNear (docs[d], distance) : legacyWindow (docs[d], distance);
+            matches[0] += legacy.size ();
+          }
+
+          long t1 = System.nanoTime ();
+
+          for (int d = 0; d < numDocs; d++) {
+            matches[1] += (op == 0) ?
+              QryIopNear.matchPositions (docs[d], distance, buffer) :
+              QryIopWindow.matchPositions (docs[d], distance, buffer);
+          }
+
+          time[0] += t1 - t0;
+          time[1] += System.nanoTime () - t1;
+        }
+      }
+
+      for (int d = 0; same && (d < numDocs); d++) {
+        List<Integer> legacy = (op == 0) ?
+          legacyNear (docs[d], distance) : legacyWindow (docs[d], distance);
+        int count = (op == 0) ?
+          QryIopNear.matchPositions (docs[d], distance, buffer) :
+          QryIopWindow.matchPositions (docs[d], distance, buffer);
+
+        same = (legacy.size () == count);
+        for (int j = 0; same && (j < count); j++) {
+          same = (legacy.get (j) == buffer[j]);
+        }
+      }
+
+      System.out.println ("\t" + ((op == 0) ? "#NEAR" : "#WINDOW") +
+                          ":  old " + millis (time[0]) + " ms, new " +
+                          millis (time[1]) + " ms, " +
+                          (matches[1] / repeat) + " matches, same matches:  " +
+                          same);
+    }
+  }
+
+  /**
+   *  Compare the union of several terms' inverted lists by linear
+   *  scans, the way QryIopSyn.evaluate and Qry.docIteratorHasMatchMin
+   *  used to find the next document, with QryUnionIterator.  #SYN is
+   *  timed end to end, after its arguments' lists are read.
+   *  @param terms Processed (stemmed, lower-cased) terms.
+   *  @param field The field that the terms occur in.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  private static void benchmarkUnion (String[] terms, String field)
+    throws IOException {
+
+    System.out.println ("\nUnion:  " + terms.length + " terms in " + field);
+
+    long time[] = new long[4];
+    long docs[] = new long[2];
+    boolean same = true;
+
+    for (int pass = 0; pass < 2; pass++) {	// Pass 0 is a warm-up.
+      Arrays.fill (time, 0);
+
+      for (int r = 0; r < repeat; r++) {
+        Arrays.fill (docs, 0);
+
+        //  Document iteration.
+
+        List<Qry> args = unionArgs (terms, field);
+        long t0 = System.nanoTime ();
+
+        while (true) {
+          int minDocid = Qry.INVALID_DOCID;
+
+          for (Qry q_i: args) {
+            if (q_i.docIteratorHasMatch (null)) {
+              int q_iDocid = q_i.docIteratorGetMatch ();
+
+              if ((minDocid > q_iDocid) || (minDocid == Qry.INVALID_DOCID))
+                minDocid = q_iDocid;
+            }
+          }
+
+          if (minDocid == Qry.INVALID_DOCID)
+            break;
+
+          docs[0]++;
+
+          for (Qry q_i: args) {
+            q_i.docIteratorAdvancePast (minDocid);
+          }
+        }
+
+        long t1 = System.nanoTime ();
+        args = unionArgs (terms, field);
+        long t2 = System.nanoTime ();
+        QryUnionIterator union = new QryUnionIterator (args);
+        int minDocid;
+
+        while ((minDocid = union.nextDocid (null)) != Qry.INVALID_DOCID) {
+          docs[1]++;
+          union.advancePast (minDocid);
+        }
+
+        long t3 = System.nanoTime ();
+
+        //  #SYN.
+
+        args = unionArgs (terms, field);
+        long t4 = System.nanoTime ();
+        InvList legacy = legacySyn (args, field);
+        long t5 = System.nanoTime ();
+
+        QryIopSyn syn = new QryIopSyn ();
+        for (Qry q_i: unionArgs (terms, field)) {
+          syn.appendArg (q_i);
+        }
+        long t6 = System.nanoTime ();
+        syn.evaluate ();
+        long t7 = System.nanoTime ();
+
+        time[0] += t1 - t0;
+        time[1] += t3 - t2;
+        time[2] += t5 - t4;
+        time[3] += t7 - t6;
+
+        InvList list = syn.getInvertedList ();
+        same = same && (list.df == legacy.df) && (list.ctf == legacy.ctf);
+
+        for (int i = 0; same && (i < list.df); i++) {
+          same = (list.getDocid (i) == legacy.getDocid (i)) &&
+            Arrays.equals (list.getPositions (i), legacy.getPositions (i));
+        }
+      }
+    }
+
+    System.out.println ("\tnext document:  linear " + millis (time[0]) +
+                        " ms, heap " + millis (time[1]) + " ms, " +
+                        docs[0] + " " + docs[1] + " documents");
+    System.out.println ("\t#SYN:  linear and sort " + millis (time[2]) +
+                        " ms, heap and merge " + millis (time[3]) +
+                        " ms, same lists:  " + same);
+  }
+
+  /**
+   *  Read and initialize the TERM operators of a union.
+   */
+  private static List<Qry> unionArgs (String[] terms, String field)
+    throws IOException {
+
+    List<Qry> args = new ArrayList<Qry> ();
+
+    for (String term : terms) {
+      QryIopTerm q = new QryIopTerm (term, field);
+      q.initialize (null);
+      args.add (q);
+    }
+
+    return args;
+  }
+
+  /**
+   *  The #SYN evaluation loop that QryUnionIterator and
+   *  QryIopSyn.mergePositions replaced.
+   */
+  private static InvList legacySyn (List<Qry> args, String field) {
+
+    InvList list = new InvList (field);
+
+    while (true) {
+      int minDocid = Qry.INVALID_DOCID;
+
+      for (Qry q_i: args) {
+        if (q_i.docIteratorHasMatch (null)) {
+          int q_iDocid = q_i.docIteratorGetMatch ();
+
+          if ((minDocid > q_iDocid) || (minDocid == Qry.INVALID_DOCID))
+            minDocid = q_iDocid;
+        }
+      }
+
+      if (minDocid == Qry.INVALID_DOCID)
+        break;
+
+      List<Integer> positions = new ArrayList<Integer> ();
+
+      for (Qry q_i: args) {
+        if (q_i.docIteratorHasMatch (null) &&
+            (q_i.docIteratorGetMatch () == minDocid)) {
+          for (int loc: ((QryIop) q_i).docIteratorGetMatchPositions ()) {
+            positions.add (loc);
+          }
+          q_i.docIteratorAdvancePast (minDocid);
+        }
+      }
+
+      Collections.sort (positions);
+      list.appendPosting (minDocid, positions);
+    }
+
+    return list;
+  }
+
+  /**
+   *  Choose tf distinct random locations for each argument.
+   */
+  private static int[][] syntheticLocations (Random random, int numArgs,
+                                             int tf) {
+
+    int length = 4 * numArgs * tf;
+    int[] shuffled = new int[length];
+
+    for (int i = 0; i < length; i++) {
+      shuffled[i] = i;
+    }
+
+    for (int i = length - 1; i > 0; i--) {
+      int j = random.nextInt (i + 1);
+      int t = shuffled[i];
+      shuffled[i] = shuffled[j];
+      shuffled[j] = t;
+    }
+
+    int[][] locations = new int[numArgs][];
+
+    for (int a = 0; a < numArgs; a++) {
+      locations[a] = Arrays.copyOfRange (shuffled, a * tf, (a + 1) * tf);
+      Arrays.sort (locations[a]);
+    }
+
+    return locations;
+  }
+
+  /**
+   *  The #NEAR location matching loop that QryIopNear.matchPositions
+   *  replaced, with location iterators replaced by array indexes.
+   */
+  private static List<Integer> legacyNear (int[][] locations, int distance) {
+
+    int n = locations.length;
+    int[] next = new int[n];
+    List<Integer> position = new ArrayList<Integer> ();
+
+    while (true) {
+      boolean locRemaining = true;
+
+      if (next[0] >= locations[0].length) {
+        break;
+      }
+
+      int loc = 0;
+
+      for (int i = 0; i < n - 1; i++) {
+        if ((next[i] >= locations[i].length) ||
+            (next[i + 1] >= locations[i + 1].length)) {
+          locRemaining = false;
+          break;
+        }
+
+        int curr_loc = locations[i][next[i]];
+        int next_loc = locations[i + 1][next[i + 1]];
+
+        if (next_loc - curr_loc > distance) {
+          next[i]++;
+          i = -1;
+          continue;
+        }
+        if (next_loc - curr_loc < 0) {
+          next[i + 1]++;
+          i = -1;
+          continue;
+        }
+        loc = next_loc;
+      }
+
+      if (! locRemaining) {
+        break;
+      }
+
+      position.add (loc);
+      for (int i = 0; i < n; i++) {
+        next[i]++;
+      }
+    }
+
+    return position;
+  }
+
+  /**
+   *  The #WINDOW location matching loop that
+   *  QryIopWindow.matchPositions replaced, with location iterators
+   *  replaced by array indexes.
+   */
+  private static List<Integer> legacyWindow (int[][] locations, int distance) {
+
+    int n = locations.length;
+    int[] next = new int[n];
+    List<Integer> position = new ArrayList<Integer> ();
+
+    while (true) {
+      boolean locRemaining = true;
+      int min_loc = locations[0][next[0]];
+      int max_loc = min_loc;
+      int min_idx = 0;
+
+      for (int i = 0; i < n; i++) {
+        int loc = locations[i][next[i]];
+
+        if (min_loc > loc) {
+          min_loc = loc;
+          min_idx = i;
+        } else if (max_loc < loc) {
+          max_loc = loc;
+        }
+      }
+
+      if (1 + max_loc - min_loc <= distance) {
+        position.add (max_loc);
+        for (int i = 0; i < n; i++) {
+          if (++next[i] >= locations[i].length) {
+            locRemaining = false;
+            break;
+          }
+        }
+      } else if (++next[min_idx] >= locations[min_idx].length) {
+        locRemaining = false;
+      }
+
+      if (! locRemaining) {
+        break;
+      }
+    }
+
+    return position;
+  }
+
+  /**
+   *  Get a retrieval model with default parameters.
+   */
+  private static RetrievalModel getModel (String modelName) {
+
+    if (modelName.equals ("bm25")) {
+      return new RetrievalModelBM25 (1.2f, 0.75f, 0.0f);
+    } else if (modelName.equals ("indri")) {
+      return new RetrievalModelIndri (2500f, 0.4f);
+    } else {
+      throw new IllegalArgumentException ("Unknown retrieval model " + modelName);
+    }
+  }
+
+  /**
+   *  Read queries, one per line, optionally preceded by "qid:".
+   */
+  private static List<String> readQueries (String queryFile)
+    throws IOException {
+
+    List<String> queries = new ArrayList<String> ();
+    BufferedReader input = new BufferedReader (new FileReader (queryFile));
+
+    try {
+      String line;
+
+      while ((line = input.readLine ()) != null) {
+        int d = line.indexOf (':');
+        line = line.substring (d + 1).trim ();
+
+        if (line.length () > 0)
+          queries.add (line);
+      }
+    } finally {
+      input.close ();
+    }
+
+    return queries;
+  }
+
+  /**
+   *  Count the documents that are in both inverted lists, using
+   *  InvList.findDocid to skip through the second one.
+   */
+  private static long countMatches (InvList rare, InvList common) {
+
+    long count = 0;
+    int j = 0;
+
+    for (int i = 0; (i < rare.df) && (j < common.df); i++) {
+      int docid = rare.getDocid (i);
+      j = common.findDocid (j, docid);
+
+      if ((j < common.df) && (common.getDocid (j) == docid))
+        count++;
+    }
+
+    return count;
+  }
+
+  /**
+   *  Read an inverted list into the object-per-posting layout that
+   *  InvList used before it became columnar.
+   */
+  private static Vector<LegacyPosting> readLegacyInvList (String term,
+                                                          String field)
+    throws IOException {
+
+    Vector<LegacyPosting> postings = new Vector<LegacyPosting> ();
+    BytesRef termBytes = new BytesRef (term);
+
+    if (Idx.INDEXREADER.docFreq (new Term (field, termBytes)) < 1)
+      return postings;
+
+    DocsAndPositionsEnum iList =
+      MultiFields.getTermPositionsEnum (Idx.INDEXREADER,
+                                        MultiFields.getLiveDocs (Idx.INDEXREADER),
+                                        field, termBytes);
+
+    while (iList.nextDoc () != DocIdSetIterator.NO_MORE_DOCS) {
+      LegacyPosting p = new LegacyPosting ();
+      p.docid = iList.docID ();
+      p.tf = iList.freq ();
+      for (int j = 0; j < p.tf; j++)
+        p.positions.add (iList.nextPosition ());
+      postings.add (p);
+    }
+
+    return postings;
+  }
+
+  /**
+   *  The posting representation that InvList used to have.
+   */
+  private static class LegacyPosting {
+    int docid;
+    int tf;
+    Vector<Integer> positions = new Vector<Integer> ();
+  }
+
+  private static String bytesPer (long bytes, long count) {
+    return (count == 0) ? "-" : String.format ("%.1f", bytes / (double) count);
+  }
+
+  private static String nanosPer (long nanos, long count) {
+    return (count == 0) ? "-" : String.format ("%.1f", nanos / (double) count);
+  }
+
+  private static String millis (long nanos) {
+    return String.format ("%.3f", nanos / 1e6 / repeat);
+  }
+
+  /**
+   *  Get the heap memory in use, after garbage collection.
+   */
+  private static long usedMemory () {
+    Runtime runtime = Runtime.getRuntime ();
+    for (int i = 0; i < 3; i++)
+      runtime.gc ();
+    return runtime.totalMemory () - runtime.freeMemory ();
+  }
+}
@@ -0,0 +1,385 @@
+/**
+ *  Copyright (c) 2017, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.*;
+
+import org.apache.lucene.index.*;
+import org.apache.lucene.search.*;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ *  BlockMaxIndex stores score upper bounds for fixed-size blocks of
+ *  the inverted lists of an index, for Block-Max WAND.  A bound for a
+ *  whole list is loose when a term's tf varies a lot, but the bound
+ *  of the block that contains a document is usually much tighter.
+ *  <p>
+ *  The postings of each term are divided into blocks of BLOCK_SIZE
+ *  documents.  Each block records its last docid, its largest BM25
+ *  tf weight, tf / (tf + k_1 * (1 - b + b * doclen / avgdoclen)),
+ *  which is multiplied by a term's RSJ weight at query time, and its
+ *  largest tf / doclen.  The Indri smoothed probability
+ *  (tf + mu P (t | C)) / (doclen + mu) is between tf / doclen and
+ *  P (t | C), so the largest tf / doclen bounds it; Indri MaxScore
+ *  uses it for the bounds of whole lists and of blocks.
+ *  Bounds are rounded up to floats.  Only terms with more than one
+ *  block are stored; a shorter list's own maximum tf is as good.
+ *  </p>
+ *  <p>
+ *  It is a Sidecar file whose key is the BM25 parameters; the
+ *  tf / doclen column doesn't depend on them.  After the
+ *  sidecar header, the file has:
+ *  </p>
+ *  <pre>
+ *    int     the block size
+ *    int     n, the number of terms
+ *    int[n+1]   offsets of each term's key in the string table
+ *    int[n+1]   the first block of each term
+ *    int[blocks]     the last docid of each block
+ *    float[blocks]   the largest BM25 tf weight in each block
+ *    float[blocks]   the largest tf / doclen in each block
+ *    byte[]     the string table:  field, a 0 byte, and the term, in UTF-8
+ *  </pre>
+ *  <p>
+ *  Terms are sorted by their keys, so they are found by binary search.
+ *  </p>
+ */
+public class BlockMaxIndex {
+
+  //  --------------- Constants and variables ---------------------
+
+  /**
+   *  The name of the sidecar file in the index directory.
+   */
+  public static final String FILE_NAME = "QryEval.blockmax";
+
+  /**
+   *  The number of postings in each block.
+   */
+  public static final int BLOCK_SIZE = 128;
+
+  private static final int MAGIC = 0x424c4b4d;		// "BLKM"
+  private static final int FORMAT_VERSION = 1;
+
+  private static final Charset UTF8 = Charset.forName ("UTF-8");
+
+  private final int n;
+  private final IntBuffer keyOffsets;
+  private final IntBuffer firstBlocks;
+  private final IntBuffer lastDocids;
+  private final FloatBuffer maxTfWeights;
+  private final FloatBuffer maxTfLenRatios;
+  private final ByteBuffer keys;
+
+  /**
+   *  Iterates over the blocks of one term's inverted list.  Each
+   *  query operator needs its own cursor.
+   */
+  public class Cursor {
+
+    private final int first;
+    private final int end;
+    private int block;
+
+    private Cursor (int first, int end) {
+      this.first = first;
+      this.end = end;
+      this.block = first;
+    }
+
+    /**
+     *  Move the cursor forward to the block that would contain a
+     *  document.
+     *  @param docid An internal document id.
+     *  @return False if the list has no documents at or after docid.
+     */
+    public boolean advanceTo (int docid) {
+      while ((this.block < this.end) && (lastDocids.get (this.block) < docid)) {
+        this.block++;
+      }
+      return (this.block < this.end);
+    }
+
+    /**
+     *  Get the last docid of the current block.
+     *  @return The last docid.
+     */
+    public int getLastDocid () {
+      return lastDocids.get (this.block);
+    }
+
+    /**
+     *  Get the largest BM25 tf weight of the current block.
+     *  @return The tf weight.
+     */
+    public float getMaxTfWeight () {
+      return maxTfWeights.get (this.block);
+    }
+
+    /**
+     *  Get the largest tf / doclen of the current block.
+     *  @return The ratio.
+     */
+    public float getMaxTfLenRatio () {
+      return maxTfLenRatios.get (this.block);
+    }
+
+    /**
+     *  Get the largest tf / doclen of every block of the list.
+     *  @return The ratio.
+     */
+    public float getListMaxTfLenRatio () {
+      float max = 0;
+
+      for (int i = this.first; i < this.end; i++)
+        max = Math.max (max, maxTfLenRatios.get (i));
+
+      return max;
+    }
+  }
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Open the block-max index of an index, building it first if it
+   *  doesn't exist or was built from another index or with other
+   *  BM25 parameters.
+   *  @param indexPath A directory that contains a Lucene index.
+   *  @param reader The open index.
+   *  @param k1 The BM25 k_1 parameter.
+   *  @param b The BM25 b parameter.
+   *  @return The block-max index.
+   *  @throws IOException Error accessing the index or the file.
+   */
+  public static BlockMaxIndex open (String indexPath,
+                                    final DirectoryReader reader,
+                                    final float k1, final float b)
+    throws IOException {
+
+    long key = ((long) Float.floatToIntBits (k1) << 32) |
+               (Float.floatToIntBits (b) & 0xffffffffL);
+
+    File file = Sidecar.open (indexPath, FILE_NAME, MAGIC, FORMAT_VERSION, key,
+                              reader, new Sidecar.Builder () {
+        public void write (DataOutputStream out) throws IOException {
+          build (out, reader, k1, b);
+        }
+      });
+
+    return new BlockMaxIndex (file);
+  }
+
+  /**
+   *  Map an existing file.
+   */
+  private BlockMaxIndex (File file) throws IOException {
+
+    RandomAccessFile raf = new RandomAccessFile (file, "r");
+
+    try {
+      FileChannel channel = raf.getChannel ();
+      ByteBuffer header = Sidecar.map (channel, 0, Sidecar.HEADER_BYTES + 8);
+
+      this.n = header.getInt (Sidecar.HEADER_BYTES + 4);
+
+      long position = Sidecar.HEADER_BYTES + 8;
+      this.keyOffsets = Sidecar.mapInts (channel, position, this.n + 1);
+      position += 4L * (this.n + 1);
+      this.firstBlocks = Sidecar.mapInts (channel, position, this.n + 1);
+      position += 4L * (this.n + 1);
+
+      int blocks = this.firstBlocks.get (this.n);
+      this.lastDocids = Sidecar.mapInts (channel, position, blocks);
+      position += 4L * blocks;
+      this.maxTfWeights = Sidecar.mapFloats (channel, position, blocks);
+      position += 4L * blocks;
+      this.maxTfLenRatios = Sidecar.mapFloats (channel, position, blocks);
+      position += 4L * blocks;
+      this.keys = Sidecar.map (channel, position, channel.size () - position);
+    } finally {
+      raf.close ();		// The mappings remain valid.
+    }
+  }
+
+  /**
+   *  Walk the postings of every term that has more than one block.
+   *  Fields are visited in the order of their UTF-8 bytes, and terms
+   *  are visited in sorted order, so the keys are sorted.  The
+   *  sections are buffered until the number of terms is known.
+   */
+  private static void build (DataOutputStream out, DirectoryReader reader,
+                             float k1, float b)
+    throws IOException {
+
+    ByteArrayOutputStream offsetBytes = new ByteArrayOutputStream ();
+    ByteArrayOutputStream firstBytes = new ByteArrayOutputStream ();
+    ByteArrayOutputStream lastBytes = new ByteArrayOutputStream ();
+    ByteArrayOutputStream weightBytes = new ByteArrayOutputStream ();
+    ByteArrayOutputStream ratioBytes = new ByteArrayOutputStream ();
+    ByteArrayOutputStream keyBytes = new ByteArrayOutputStream ();
+
+    DataOutputStream offsets = new DataOutputStream (offsetBytes);
+    DataOutputStream firsts = new DataOutputStream (firstBytes);
+    DataOutputStream lasts = new DataOutputStream (lastBytes);
+    DataOutputStream weights = new DataOutputStream (weightBytes);
+    DataOutputStream ratios = new DataOutputStream (ratioBytes);
+
+    List<String> fields = new ArrayList<String> (MultiFields.getIndexedFields (reader));
+    Collections.sort (fields, new Comparator<String> () {
+      public int compare (String s1, String s2) {
+        return new BytesRef (s1).compareTo (new BytesRef (s2));
+      }
+    });
+
+    Bits liveDocs = MultiFields.getLiveDocs (reader);
+    int n = 0;
+    int blocks = 0;
+
+    for (String field : fields) {
+      Terms terms = MultiFields.getTerms (reader, field);
+      NumericDocValues norms = MultiDocValues.getNormValues (reader, field);
+
+      if ((terms == null) || (norms == null))
+        continue;
+
+      double avg_doc_len = new FieldStats (reader, field).avgDocLength;
+      byte[] fieldBytes = field.getBytes (UTF8);
+      TermsEnum ithTerm = terms.iterator (null);
+      DocsEnum docs = null;
+      BytesRef term;
+
+      while ((term = ithTerm.next ()) != null) {
+        if (ithTerm.docFreq () <= BLOCK_SIZE)
+          continue;
+
+        offsets.writeInt (keyBytes.size ());
+        firsts.writeInt (blocks);
+        keyBytes.write (fieldBytes);
+        keyBytes.write (0);
+        keyBytes.write (term.bytes, term.offset, term.length);
+        n++;
+
+        //  The tf weight is computed the way QrySopScore computes it,
+        //  so the bound holds exactly.
+
+        docs = ithTerm.docs (liveDocs, docs, DocsEnum.FLAG_FREQS);
+        int count = 0;
+        int docid;
+        int lastDocid = -1;
+        double maxTfWeight = 0;
+        double maxTfLenRatio = 0;
+
+        while ((docid = docs.nextDoc ()) != DocIdSetIterator.NO_MORE_DOCS) {
+          int tf = docs.freq ();
+          long doc_len = norms.get (docid);
+          double term_wt = tf / (tf + k1 * ( 1 - b + ( b * doc_len / avg_doc_len)));
+
+          maxTfWeight = Math.max (maxTfWeight, term_wt);
+          maxTfLenRatio = Math.max (maxTfLenRatio, (double) tf / doc_len);
+          lastDocid = docid;
+
+          if (++count == BLOCK_SIZE) {
+            writeBlock (lasts, weights, ratios, lastDocid, maxTfWeight, maxTfLenRatio);
+            blocks++;
+            count = 0;
+            maxTfWeight = 0;
+            maxTfLenRatio = 0;
+          }
+        }
+
+        if (count > 0) {
+          writeBlock (lasts, weights, ratios, lastDocid, maxTfWeight, maxTfLenRatio);
+          blocks++;
+        }
+      }
+    }
+
+    offsets.writeInt (keyBytes.size ());
+    firsts.writeInt (blocks);
+
+    out.writeInt (BLOCK_SIZE);
+    out.writeInt (n);
+    offsetBytes.writeTo (out);
+    firstBytes.writeTo (out);
+    lastBytes.writeTo (out);
+    weightBytes.writeTo (out);
+    ratioBytes.writeTo (out);
+    keyBytes.writeTo (out);
+  }
+
+  /**
+   *  Write one block, rounding its bounds up to floats.
+   */
+  private static void writeBlock (DataOutputStream lasts,
+                                  DataOutputStream weights,
+                                  DataOutputStream ratios, int lastDocid,
+                                  double maxTfWeight, double maxTfLenRatio)
+    throws IOException {
+    lasts.writeInt (lastDocid);
+    weights.writeFloat (roundUp (maxTfWeight));
+    ratios.writeFloat (roundUp (maxTfLenRatio));
+  }
+
+  private static float roundUp (double value) {
+    float f = (float) value;
+    return (f < value) ? Math.nextUp (f) : f;
+  }
+
+  /**
+   *  Get the cursor of a term's blocks.
+   *  @param field The field that the term occurs in.
+   *  @param term The processed (stemmed, lower-cased, etc) term string.
+   *  @return A new cursor, or null if the term has only one block,
+   *  in which case its list's own bounds should be used.
+   */
+  public Cursor getCursor (String field, String term) {
+
+    byte[] fieldBytes = field.getBytes (UTF8);
+    byte[] termBytes = term.getBytes (UTF8);
+    byte[] key = new byte[fieldBytes.length + 1 + termBytes.length];
+
+    System.arraycopy (fieldBytes, 0, key, 0, fieldBytes.length);
+    System.arraycopy (termBytes, 0, key, fieldBytes.length + 1, termBytes.length);
+
+    int lo = 0;
+    int hi = this.n - 1;
+
+    while (lo <= hi) {
+      int mid = (lo + hi) >>> 1;
+      int c = this.compareKey (mid, key);
+
+      if (c < 0)
+        lo = mid + 1;
+      else if (c > 0)
+        hi = mid - 1;
+      else
+        return new Cursor (this.firstBlocks.get (mid),
+                           this.firstBlocks.get (mid + 1));
+    }
+
+    return null;
+  }
+
+  /**
+   *  Compare a term's key with a key, as unsigned bytes.
+   */
+  private int compareKey (int i, byte[] key) {
+
+    int start = this.keyOffsets.get (i);
+    int length = this.keyOffsets.get (i + 1) - start;
+    int limit = Math.min (length, key.length);
+
+    for (int j = 0; j < limit; j++) {
+      int c = (this.keys.get (start + j) & 0xff) - (key[j] & 0xff);
+
+      if (c != 0)
+        return c;
+    }
+
+    return length - key.length;
+  }
+}
@@ -0,0 +1,262 @@
+/**
+ *  Copyright (c) 2017, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.*;
+
+import org.apache.lucene.index.*;
+import org.apache.lucene.search.*;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ *  DocIdMap translates between internal (Lucene) document ids and
+ *  external document ids without reading Lucene stored fields or
+ *  running a query.  It is a Sidecar file that is built the first
+ *  time an index is opened, saved in the index directory, and memory
+ *  mapped after that, so opening it costs almost nothing.
+ *  <p>
+ *  After the sidecar header, the file has a count and four sections.
+ *  Entries are the external ids in sorted order.
+ *  </p>
+ *  <pre>
+ *    int     n, the number of entries
+ *    int[n+1]   offsets of each entry's external id in the string table
+ *    int[n]     the internal docid of each entry
+ *    int[maxDoc]  the entry of each internal docid, or -1 if none
+ *    byte[]     the string table:  the UTF-8 external ids, in order
+ *  </pre>
+ *  <p>
+ *  Entries are sorted by their UTF-8 bytes, the order of the terms
+ *  of the externalId field.  The entry number of a document is its
+ *  external id rank, which Idx.getExternalIdRank provides.
+ *  Deleted documents have no entries, so, like a search for the
+ *  external id, getInternalDocid never returns a deleted document.
+ *  </p>
+ */
+public class DocIdMap {
+
+  //  --------------- Constants and variables ---------------------
+
+  /**
+   *  The name of the sidecar file in the index directory.
+   */
+  public static final String FILE_NAME = "QryEval.docidmap";
+
+  private static final int MAGIC = 0x4449444d;		// "DIDM"
+  private static final int FORMAT_VERSION = 3;
+
+  private static final Charset UTF8 = Charset.forName ("UTF-8");
+
+  private final int maxDoc;
+  private final int n;
+  private final IntBuffer offsets;
+  private final IntBuffer docids;
+  private final IntBuffer entries;
+  private final ByteBuffer strings;
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Open the id map of an index, building it first if it doesn't
+   *  exist or is out of date.
+   *  @param indexPath A directory that contains a Lucene index.
+   *  @param reader The open index.
+   *  @return The id map.
+   *  @throws IOException Error accessing the index or the map.
+   */
+  public static DocIdMap open (String indexPath, final DirectoryReader reader)
+    throws IOException {
+
+    File file = Sidecar.open (indexPath, FILE_NAME, MAGIC, FORMAT_VERSION, 0,
+                              reader, new Sidecar.Builder () {
+        public void write (DataOutputStream out) throws IOException {
+          build (out, reader);
+        }
+      });
+
+    return new DocIdMap (file);
+  }
+
+  /**
+   *  Map an existing file.
+   */
+  private DocIdMap (File file) throws IOException {
+
+    RandomAccessFile raf = new RandomAccessFile (file, "r");
+
+    try {
+      FileChannel channel = raf.getChannel ();
+      ByteBuffer header = Sidecar.map (channel, 0, Sidecar.HEADER_BYTES + 4);
+
+      this.maxDoc = header.getInt (Sidecar.MAXDOC_OFFSET);
+      this.n = header.getInt (Sidecar.HEADER_BYTES);
+
+      //  Each section is mapped separately, so only the string table
+      //  is limited to 2GB.
+
+      long position = Sidecar.HEADER_BYTES + 4;
+      this.offsets = Sidecar.mapInts (channel, position, this.n + 1);
+      position += 4L * (this.n + 1);
+      this.docids = Sidecar.mapInts (channel, position, this.n);
+      position += 4L * this.n;
+      this.entries = Sidecar.mapInts (channel, position, this.maxDoc);
+      position += 4L * this.maxDoc;
+      this.strings = Sidecar.map (channel, position, channel.size () - position);
+    } finally {
+      raf.close ();		// The mappings remain valid.
+    }
+  }
+
+  /**
+   *  Build the map from the terms of the externalId field, which are
+   *  visited in sorted order.  Deleted documents are skipped.
+   */
+  private static void build (DataOutputStream out, DirectoryReader reader)
+    throws IOException {
+
+    int maxDoc = reader.maxDoc ();
+    int[] entries = new int[maxDoc];
+    Arrays.fill (entries, -1);
+
+    IntArray offsets = new IntArray ();
+    IntArray docids = new IntArray ();
+    ByteArrayOutputStream strings = new ByteArrayOutputStream ();
+
+    Terms terms = MultiFields.getTerms (reader, "externalId");
+    Bits liveDocs = MultiFields.getLiveDocs (reader);
+
+    if (terms != null) {
+      TermsEnum ithTerm = terms.iterator (null);
+      DocsEnum docs = null;
+      BytesRef term;
+
+      while ((term = ithTerm.next ()) != null) {
+        docs = ithTerm.docs (liveDocs, docs, DocsEnum.FLAG_NONE);
+
+        //  An id that (incorrectly) names several documents gets an
+        //  entry for each of them.
+
+        while (docs.nextDoc () != DocIdSetIterator.NO_MORE_DOCS) {
+          entries[docs.docID ()] = docids.size;
+          offsets.add (strings.size ());
+          docids.add (docs.docID ());
+          strings.write (term.bytes, term.offset, term.length);
+        }
+      }
+    }
+
+    offsets.add (strings.size ());
+
+    out.writeInt (docids.size);
+    offsets.writeTo (out);
+    docids.writeTo (out);
+
+    for (int i = 0; i < maxDoc; i++)
+      out.writeInt (entries[i]);
+
+    strings.writeTo (out);
+  }
+
+  /**
+   *  Get the external document id of a document.
+   *  @param docid An internal document id.
+   *  @return The external document id, or null if the document doesn't
+   *  have one.
+   */
+  public String getExternalDocid (int docid) {
+
+    int entry = this.entries.get (docid);
+
+    if (entry < 0)
+      return null;
+
+    int start = this.offsets.get (entry);
+    byte[] bytes = new byte[this.offsets.get (entry + 1) - start];
+
+    for (int i = 0; i < bytes.length; i++)
+      bytes[i] = this.strings.get (start + i);
+
+    return new String (bytes, UTF8);
+  }
+
+  /**
+   *  Get the rank of a document's external id in the sorted list of
+   *  external ids.
+   *  @param docid An internal document id.
+   *  @return The rank, or Integer.MAX_VALUE if the document doesn't
+   *  have an external id.
+   */
+  public int getExternalIdRank (int docid) {
+    int entry = this.entries.get (docid);
+    return (entry < 0) ? Integer.MAX_VALUE : entry;
+  }
+
+  /**
+   *  Get the internal document id of a document, using binary search
+   *  on the sorted external ids.
+   *  @param externalId An external document id.
+   *  @return The internal document id, or -1 if there is no such document.
+   */
+  public int getInternalDocid (String externalId) {
+
+    byte[] key = externalId.getBytes (UTF8);
+    int lo = 0;
+    int hi = this.n - 1;
+
+    while (lo <= hi) {
+      int mid = (lo + hi) >>> 1;
+      int c = this.compareEntry (mid, key);
+
+      if (c < 0)
+        lo = mid + 1;
+      else if (c > 0)
+        hi = mid - 1;
+      else
+        return this.docids.get (mid);
+    }
+
+    return -1;
+  }
+
+  /**
+   *  Compare an entry's external id with a key, as unsigned bytes.
+   */
+  private int compareEntry (int entry, byte[] key) {
+
+    int start = this.offsets.get (entry);
+    int length = this.offsets.get (entry + 1) - start;
+    int limit = Math.min (length, key.length);
+
+    for (int i = 0; i < limit; i++) {
+      int c = (this.strings.get (start + i) & 0xff) - (key[i] & 0xff);
+
+      if (c != 0)
+        return c;
+    }
+
+    return length - key.length;
+  }
+
+  /**
+   *  A growable int array, used while the map is built.
+   */
+  private static class IntArray {
+    int[] values = new int[1024];
+    int size = 0;
+
+    void add (int value) {
+      if (size == values.length)
+        values = Arrays.copyOf (values, 2 * size);
+      values[size++] = value;
+    }
+
+    void writeTo (DataOutputStream out) throws IOException {
+      for (int i = 0; i < size; i++)
+        out.writeInt (values[i]);
+    }
+  }
+}
@@ -2,9 +2,18 @@
  *  Copyright (c) 2017, Carnegie Mellon University.  All Rights Reserved.
  */
 
+import java.io.DataOutputStream;
+import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import org.apache.lucene.index.DirectoryReader;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.NumericDocValues;
 import org.apache.lucene.index.MultiDocValues;
@@ -12,21 +21,197 @@ import org.apache.lucene.index.MultiFields;
 
 /**
  * DocLengthStore is used to access the document lengths of indexed docs.
+ * <p>
+ * Fields are identified by name or, in scoring loops, by a field
+ * ordinal (see getFieldOrdinal), which avoids a HashMap lookup per
+ * document.  Lengths are read in one of three modes:
+ * </p>
+ * <ul>
+ * <li>norms:  from Lucene's norms (the default);
+ * <li>heap:  from a dense int[] per field, loaded when the index is
+ *     opened;
+ * <li>mmap:  from a dense int array per field in the memory-mapped
+ *     Sidecar file QryEval.doclengths, which is off the Java heap.
+ * </ul>
  */
 public class DocLengthStore  {
 
+  /**
+   * The name of the sidecar file used in mmap mode.
+   */
+  public static final String FILE_NAME = "QryEval.doclengths";
+
+  private static final int MAGIC = 0x444c454e;		// "DLEN"
+  private static final int FORMAT_VERSION = 1;
+
+  /**
+   * The mode of DocLengthStores that are created without one.
+   */
+  private static String defaultMode = "norms";
+
   private IndexReader reader;
-  private  Map<String, NumericDocValues> values = new HashMap<String, NumericDocValues>();
+  private String mode;
+  private Map<String, Integer> ordinals = new HashMap<String, Integer>();
+  private String[] fields;
+
+  //  Exactly one of these is used, depending on the mode.
+
+  private NumericDocValues[] values;
+  private int[][] lengths;
+  private IntBuffer[] buffers;
+
+  /**
+   * Set the mode of DocLengthStores that are created without one,
+   * e.g., by Idx.open.
+   * @param mode "norms", "heap", or "mmap".
+   * @throws IllegalArgumentException Unknown mode.
+   */
+  public static void setDefaultMode(String mode) {
+    checkMode(mode);
+    defaultMode = mode;
+  }
+
+  private static void checkMode(String mode) {
+    if (! (mode.equals("norms") || mode.equals("heap") || mode.equals("mmap"))) {
+      throw new IllegalArgumentException("Unknown document length mode " + mode);
+    }
+  }
 
   /**
    * @param reader IndexReader object created in {@link Idx}.
    * @throws IOException Error accessing the Lucene index.
    */
   public DocLengthStore(IndexReader reader) throws IOException {
+    this(null, reader, "norms");
+  }
+
+  /**
+   * @param indexPath The index directory, where the mmap mode sidecar
+   * file is kept.
+   * @param reader IndexReader object created in {@link Idx}.
+   * @throws IOException Error accessing the Lucene index.
+   */
+  public DocLengthStore(String indexPath, IndexReader reader) throws IOException {
+    this(indexPath, reader, defaultMode);
+  }
+
+  /**
+   * @param indexPath The index directory, where the mmap mode sidecar
+   * file is kept.
+   * @param reader IndexReader object created in {@link Idx}.
+   * @param mode "norms", "heap", or "mmap".
+   * @throws IOException Error accessing the Lucene index.
+   * @throws IllegalArgumentException Unknown mode, or mmap mode without
+   * an index directory.
+   */
+  public DocLengthStore(String indexPath, IndexReader reader, String mode)
+    throws IOException {
+
+    checkMode(mode);
     this.reader = reader;
-    for (String field : MultiFields.getIndexedFields(reader)) {
-      this.values.put(field, MultiDocValues.getNormValues(reader, field));      
+    this.mode = mode;
+
+    List<String> names = new ArrayList<String>(MultiFields.getIndexedFields(reader));
+    Collections.sort(names);
+    this.fields = names.toArray(new String[names.size()]);
+
+    this.values = new NumericDocValues[this.fields.length];
+    for (int i = 0; i < this.fields.length; i++) {
+      this.ordinals.put(this.fields[i], i);
+      this.values[i] = MultiDocValues.getNormValues(reader, this.fields[i]);
+    }
+
+    if (mode.equals("heap")) {
+      this.lengths = new int[this.fields.length][];
+      for (int i = 0; i < this.fields.length; i++) {
+        this.lengths[i] = this.readLengths(i);
+      }
+      this.values = null;
+    } else if (mode.equals("mmap")) {
+      if ((indexPath == null) || ! (reader instanceof DirectoryReader)) {
+        throw new IllegalArgumentException(
+          "The mmap document length mode requires an index directory");
+      }
+      this.mapLengths(indexPath, (DirectoryReader) reader);
+      this.values = null;
+    }
+  }
+
+  /**
+   * Copy the lengths of one field from the norms into an array.
+   */
+  private int[] readLengths(int ordinal) {
+    int[] fieldLengths = new int[this.reader.maxDoc()];
+    NumericDocValues norms = this.values[ordinal];
+
+    if (norms != null) {
+      for (int docid = 0; docid < fieldLengths.length; docid++) {
+        fieldLengths[docid] = (int) norms.get(docid);
+      }
     }
+
+    return fieldLengths;
+  }
+
+  /**
+   * Map the sidecar file, building it first if necessary.  It has
+   * the number of fields, then an int array of maxDoc lengths for
+   * each field, in field ordinal order.
+   */
+  private void mapLengths(String indexPath, DirectoryReader reader)
+    throws IOException {
+
+    File file = Sidecar.open(indexPath, FILE_NAME, MAGIC, FORMAT_VERSION,
+                             fieldsKey(this.fields), reader,
+                             new Sidecar.Builder() {
+        public void write(DataOutputStream out) throws IOException {
+          out.writeInt(fields.length);
+          for (int i = 0; i < fields.length; i++) {
+            for (int length : readLengths(i)) {
+              out.writeInt(length);
+            }
+          }
+        }
+      });
+
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+
+    try {
+      FileChannel channel = raf.getChannel();
+      int maxDoc = reader.maxDoc();
+      long position = Sidecar.HEADER_BYTES + 4;
+
+      this.buffers = new IntBuffer[this.fields.length];
+      for (int i = 0; i < this.fields.length; i++) {
+        this.buffers[i] = Sidecar.mapInts(channel, position, maxDoc);
+        position += 4L * maxDoc;
+      }
+    } finally {
+      raf.close();		// The mappings remain valid.
+    }
+  }
+
+  /**
+   * The sidecar file depends on the set of fields, which determines
+   * the field ordinals.
+   */
+  private static long fieldsKey(String[] fields) {
+    long key = 0;
+    for (String field : fields) {
+      key = 31 * key + field.hashCode();
+    }
+    return key;
+  }
+
+  /**
+   * Returns the ordinal of a field, for use with getDocLength.
+   *
+   * @param fieldname Name of field.
+   * @return The field ordinal, or -1 if the field isn't indexed.
+   */
+  public int getFieldOrdinal(String fieldname) {
+    Integer ordinal = this.ordinals.get(fieldname);
+    return (ordinal == null) ? -1 : ordinal;
   }
 
   /**
@@ -39,6 +224,46 @@ public class DocLengthStore  {
    * @throws IOException Error accessing the Lucene index.
    */
   public long getDocLength(String fieldname, int docid) throws IOException {
-    return values.get(fieldname).get(docid);
+    return this.getDocLength(this.ordinals.get(fieldname), docid);
+  }
+
+  /**
+   * Returns the length of the specified field in the specified document.
+   *
+   * @param fieldOrdinal The field, from getFieldOrdinal.
+   * @param docid The internal docid in the lucene index.
+   * @return long The length of the field.
+   */
+  public long getDocLength(int fieldOrdinal, int docid) {
+    if (this.lengths != null) {
+      return this.lengths[fieldOrdinal][docid];
+    } else if (this.buffers != null) {
+      return this.buffers[fieldOrdinal].get(docid);
+    } else {
+      return this.values[fieldOrdinal].get(docid);
+    }
+  }
+
+  /**
+   * Describe the memory that each field's lengths use.
+   *
+   * @return One line per field.
+   */
+  public String getFootprint() {
+    StringBuilder s = new StringBuilder();
+    long bytes = 4L * this.reader.maxDoc();
+
+    for (String field : this.fields) {
+      s.append("DocLengthStore (" + this.mode + ") " + field + ":  ");
+      if (this.lengths != null) {
+        s.append((bytes / 1024) + " KB heap\n");
+      } else if (this.buffers != null) {
+        s.append((bytes / 1024) + " KB off-heap (mmap)\n");
+      } else {
+        s.append("Lucene norms\n");
+      }
+    }
+
+    return s.toString();
   }
 }
@@ -0,0 +1,172 @@
+/**
+ *  Copyright (c) 2017, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.util.*;
+
+/**
+ *  Chooses the terms that Indri pseudo relevance feedback adds to a
+ *  query.  Every stem in the top-ranked documents is a candidate; a
+ *  candidate t's score is
+ *  <pre>
+ *    sum over documents d:  p(t|d) p(I|d) log (1 / p(t|C))
+ *  </pre>
+ *  where p(t|d) = (tf + fbMu p(t|C)) / (length(d) + fbMu), p(I|d) is
+ *  the document's score, and p(t|C) is ctf / (sum of field lengths).
+ *  <p>
+ *  Each document's term vector is read once, and a document adds to
+ *  the scores of the stems that it contains.  The documents that don't
+ *  contain a stem contribute fbMu p(t|C) p(I|d) / (length(d) + fbMu),
+ *  which is computed in closed form from the sum of
+ *  p(I|d) / (length(d) + fbMu) over every document, less its sum over
+ *  the documents that contain the stem.  When fbMu is 0 that part is
+ *  0.  The best fbTerms candidates are selected with a bounded heap.
+ *  </p>
+ */
+public class FeedbackTermScorer {
+
+  //  --------------- Constants and variables ---------------------
+
+  private final int fbDocs;
+  private final int fbTerms;
+  private final float mu;
+  private final String field;
+
+  /**
+   *  A candidate stem and its partial score.
+   */
+  private static class Candidate {
+    final String stem;
+    int order;			// The candidate's place in the iteration order
+    final float probTermC;
+    double score = 0.0;		// From the documents that contain it
+    double mass = 0.0;		// Sum of p(I|d) / (length(d) + mu) over them
+
+    Candidate (String stem, float probTermC) {
+      this.stem = stem;
+      this.probTermC = probTermC;
+    }
+  }
+
+  /**
+   *  Orders candidates from best to worst:  by descending score, and
+   *  among equal scores, by their places in the iteration order of
+   *  the candidates, which is the order in which a stable sort of the
+   *  candidates would leave them.
+   */
+  private static final Comparator<Candidate> BEST_FIRST =
+    new Comparator<Candidate> () {
+      public int compare (Candidate c1, Candidate c2) {
+        int c = Double.compare (c2.score, c1.score);
+        return (c != 0) ? c : (c1.order - c2.order);
+      }
+    };
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  @param fbDocs The number of top-ranked documents to use.
+   *  @param fbTerms The number of terms to choose.
+   *  @param mu The fbMu smoothing parameter.
+   *  @param field The field whose term vectors are read.
+   */
+  public FeedbackTermScorer (int fbDocs, int fbTerms, float mu,
+                             String field) {
+    this.fbDocs = fbDocs;
+    this.fbTerms = fbTerms;
+    this.mu = mu;
+    this.field = field;
+  }
+
+  /**
+   *  Choose the expansion terms for a query.  Stems that contain a
+   *  period or comma are not candidates.
+   *  @param r The initial ranking; its scores are p(I|d).
+   *  @return The best fbTerms stems and their scores, inserted in
+   *  descending order of score.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public HashMap<String, Double> getExpansionTerms (ScoreList r)
+    throws IOException {
+
+    //  Read each document's term vector once, and add its
+    //  contribution to the stems that it contains.
+
+    HashMap<String, Candidate> candidates = new HashMap<String, Candidate> ();
+    long sumOfFieldLengths = Idx.getSumOfFieldLengths (this.field);
+    double mass = 0.0;
+    int n = Math.min (r.size (), this.fbDocs);
+
+    for (int i = 0; i < n; i++) {
+      int docid = r.getDocid (i);
+      double probID = r.getDocidScore (i);
+      int len = Idx.getFieldLength (this.field, docid);
+      double docMass = probID / (len + this.mu);
+      TermVector tv = Idx.getTermVector (docid, this.field);
+
+      mass += docMass;
+
+      for (int j = 1; j < tv.stemsLength (); j++) {
+        String stem = tv.stemString (j);
+
+        if (stem.contains (".") || stem.contains (",")) {
+          continue;
+        }
+
+        Candidate c = candidates.get (stem);
+
+        if (c == null) {
+          c = new Candidate (stem,
+            tv.totalStemFreq (j) / (float) sumOfFieldLengths);
+          candidates.put (stem, c);
+        }
+
+        float probTermDoc =
+          (tv.stemFreq (j) + this.mu * c.probTermC) / (len + this.mu);
+
+        c.score += probTermDoc * probID * Math.log (1 / c.probTermC);
+        c.mass += docMass;
+      }
+    }
+
+    //  Add the contributions of the documents that don't contain each
+    //  stem, and keep the best fbTerms.  The heap's head is the worst
+    //  of the best so far.
+
+    HashMap<String, Double> terms = new HashMap<String, Double> ();
+
+    if (this.fbTerms < 1) {
+      return terms;
+    }
+
+    PriorityQueue<Candidate> best = new PriorityQueue<Candidate> (
+      this.fbTerms + 1, Collections.reverseOrder (BEST_FIRST));
+
+    int order = 0;
+
+    for (Candidate c : candidates.values ()) {
+      c.order = order++;
+
+      if (this.mu != 0) {
+        c.score += this.mu * c.probTermC * Math.log (1 / c.probTermC) *
+          (mass - c.mass);
+      }
+
+      if (best.size () < this.fbTerms) {
+        best.add (c);
+      } else if (BEST_FIRST.compare (c, best.peek ()) < 0) {
+        best.poll ();
+        best.add (c);
+      }
+    }
+
+    Candidate[] sorted = best.toArray (new Candidate[best.size ()]);
+    Arrays.sort (sorted, BEST_FIRST);
+
+    for (Candidate c : sorted) {
+      terms.put (c.stem, c.score);
+    }
+
+    return terms;
+  }
+}
@@ -0,0 +1,67 @@
+/**
+ *  Copyright (c) 2017, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+
+import org.apache.lucene.index.IndexReader;
+
+/**
+ *  An immutable snapshot of the collection statistics of one field,
+ *  taken when an index is opened.  Retrieval models use these values
+ *  for every document that they score, so they are read from the
+ *  index once instead of each time.  Use Idx.getFieldStats to get
+ *  the statistics of a field in the current index.
+ */
+public final class FieldStats {
+
+  /**
+   *  The field name.
+   */
+  public final String field;
+
+  /**
+   *  The number of documents in the index (N), which is the same for
+   *  every field.
+   */
+  public final long numDocs;
+
+  /**
+   *  The total number of term occurrences in all instances of the
+   *  field, i.e., the sum of the field's lengths.
+   */
+  public final long sumTotalTermFreq;
+
+  /**
+   *  The number of documents that contain the field.
+   */
+  public final int docCount;
+
+  /**
+   *  The average length of the field in the documents that contain it.
+   */
+  public final double avgDocLength;
+
+  /**
+   *  Read the statistics of a field from an index.
+   *  @param reader An open index.
+   *  @param field The field name.
+   *  @throws IOException Error accessing the index.
+   */
+  public FieldStats (IndexReader reader, String field) throws IOException {
+    this.field = field;
+    this.numDocs = reader.numDocs ();
+    this.sumTotalTermFreq = reader.getSumTotalTermFreq (field);
+    this.docCount = reader.getDocCount (field);
+    this.avgDocLength = (double) this.sumTotalTermFreq / this.docCount;
+  }
+
+  /**
+   *  Get a string version of the statistics.
+   *  @return The string version of the statistics.
+   */
+  public String toString () {
+    return (this.field + ": N=" + this.numDocs + ", sumTotalTermFreq=" +
+            this.sumTotalTermFreq + ", docCount=" + this.docCount +
+            ", avgDocLength=" + this.avgDocLength);
+  }
+}
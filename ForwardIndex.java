@@ -0,0 +1,424 @@
+/**
+ *  Copyright (c) 2017, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.*;
+
+import org.apache.lucene.index.*;
+import org.apache.lucene.search.*;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ *  ForwardIndex stores the terms of each document in one field, so
+ *  that TermVector can be created without decoding Lucene's stored
+ *  term vectors.  Feedback, learning to rank, and diversification
+ *  read the same documents' vectors many times, and a Lucene term
+ *  vector is slow to decode:  it allocates a Term for every stem, and
+ *  walks the positions twice to find the length of the document.
+ *  <p>
+ *  Terms have integer ids, which are their ranks in the field's
+ *  sorted vocabulary.  Each document has an array of postings, sorted
+ *  by term id, and each posting has a term id and a tf.  Locations
+ *  are optional.  The index is built from the inverted lists, so it
+ *  does not need stored term vectors.
+ *  </p>
+ *  <p>
+ *  It is a Sidecar file whose key says whether it has locations.
+ *  After the sidecar header, the file has:
+ *  </p>
+ *  <pre>
+ *    int     1 if locations are stored, otherwise 0
+ *    int     v, the number of terms
+ *    int     p, the number of postings
+ *    int     l, the number of locations (0 if they aren't stored)
+ *    int[v+1]       offsets of each term in the string table
+ *    int[maxDoc+1]  the first posting of each document
+ *    int[p]         the term id of each posting
+ *    int[p]         the tf of each posting
+ *    int[maxDoc+1]  the first location of each document, if stored
+ *    int[l]         the locations of each posting, in order, if stored
+ *    byte[]         the string table:  the UTF-8 terms, in order
+ *  </pre>
+ */
+public class ForwardIndex {
+
+  //  --------------- Constants and variables ---------------------
+
+  /**
+   *  The name of the sidecar file of a field is this prefix followed
+   *  by the field name.
+   */
+  public static final String FILE_NAME_PREFIX = "QryEval.forward.";
+
+  private static final int MAGIC = 0x46574449;		// "FWDI"
+  private static final int FORMAT_VERSION = 1;
+
+  private static final Charset UTF8 = Charset.forName ("UTF-8");
+
+  private final String field;
+  private final boolean hasLocations;
+  private final int numTerms;
+  private final IntBuffer termOffsets;
+  private final IntBuffer firstPostings;
+  private final IntBuffer termIds;
+  private final IntBuffer tfs;
+  private final IntBuffer firstLocations;
+  private final IntBuffer locations;
+  private final ByteBuffer strings;
+
+  //  Terms are decoded when they are first needed.  Strings are
+  //  immutable, so threads may share them without locking.
+
+  private final String[] terms;
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Open the forward index of a field, building it first if it
+   *  doesn't exist or is out of date.
+   *  @param indexPath A directory that contains a Lucene index.
+   *  @param reader The open index.
+   *  @param field The field to index.
+   *  @param withLocations Whether term locations are stored.
+   *  @return The forward index.
+   *  @throws IOException Error accessing the index or the file.
+   */
+  public static ForwardIndex open (String indexPath,
+                                   final DirectoryReader reader,
+                                   final String field,
+                                   final boolean withLocations)
+    throws IOException {
+
+    File file = Sidecar.open (indexPath, FILE_NAME_PREFIX + field, MAGIC,
+                              FORMAT_VERSION, withLocations ? 1 : 0,
+                              reader, new Sidecar.Builder () {
+        public void write (DataOutputStream out) throws IOException {
+          build (out, reader, field, withLocations);
+        }
+      });
+
+    return new ForwardIndex (file, field);
+  }
+
+  /**
+   *  Map an existing file.
+   */
+  private ForwardIndex (File file, String field) throws IOException {
+
+    RandomAccessFile raf = new RandomAccessFile (file, "r");
+
+    try {
+      FileChannel channel = raf.getChannel ();
+      ByteBuffer header = Sidecar.map (channel, 0, Sidecar.HEADER_BYTES + 16);
+      int maxDoc = header.getInt (Sidecar.MAXDOC_OFFSET);
+
+      this.field = field;
+      this.hasLocations = (header.getInt (Sidecar.HEADER_BYTES) == 1);
+      this.numTerms = header.getInt (Sidecar.HEADER_BYTES + 4);
+
+      int p = header.getInt (Sidecar.HEADER_BYTES + 8);
+      int l = header.getInt (Sidecar.HEADER_BYTES + 12);
+
+      long position = Sidecar.HEADER_BYTES + 16;
+      this.termOffsets = Sidecar.mapInts (channel, position, this.numTerms + 1);
+      position += 4L * (this.numTerms + 1);
+      this.firstPostings = Sidecar.mapInts (channel, position, maxDoc + 1);
+      position += 4L * (maxDoc + 1);
+      this.termIds = Sidecar.mapInts (channel, position, p);
+      position += 4L * p;
+      this.tfs = Sidecar.mapInts (channel, position, p);
+      position += 4L * p;
+
+      if (this.hasLocations) {
+        this.firstLocations = Sidecar.mapInts (channel, position, maxDoc + 1);
+        position += 4L * (maxDoc + 1);
+        this.locations = Sidecar.mapInts (channel, position, l);
+        position += 4L * l;
+      } else {
+        this.firstLocations = null;
+        this.locations = null;
+      }
+
+      this.strings = Sidecar.map (channel, position, channel.size () - position);
+    } finally {
+      raf.close ();		// The mappings remain valid.
+    }
+
+    this.terms = new String[this.numTerms];
+  }
+
+  /**
+   *  Invert the field's inverted lists.  The first pass counts each
+   *  document's postings and locations, and writes the vocabulary; the
+   *  second pass fills each document's postings.  Terms are visited
+   *  in sorted order, so each document's postings are sorted by term
+   *  id.
+   */
+  private static void build (DataOutputStream out, DirectoryReader reader,
+                             String field, boolean withLocations)
+    throws IOException {
+
+    int maxDoc = reader.maxDoc ();
+    int[] firstPostings = new int[maxDoc + 1];
+    int[] firstLocations = new int[maxDoc + 1];
+    ByteArrayOutputStream offsetBytes = new ByteArrayOutputStream ();
+    DataOutputStream offsets = new DataOutputStream (offsetBytes);
+    ByteArrayOutputStream strings = new ByteArrayOutputStream ();
+
+    Terms fieldTerms = MultiFields.getTerms (reader, field);
+    Bits liveDocs = MultiFields.getLiveDocs (reader);
+    int v = 0;
+
+    if (fieldTerms != null) {
+      TermsEnum ithTerm = fieldTerms.iterator (null);
+      DocsEnum docs = null;
+      BytesRef term;
+
+      while ((term = ithTerm.next ()) != null) {
+        offsets.writeInt (strings.size ());
+        strings.write (term.bytes, term.offset, term.length);
+        v++;
+
+        docs = ithTerm.docs (liveDocs, docs, DocsEnum.FLAG_FREQS);
+        int docid;
+
+        while ((docid = docs.nextDoc ()) != DocIdSetIterator.NO_MORE_DOCS) {
+          firstPostings[docid + 1]++;
+          firstLocations[docid + 1] += docs.freq ();
+        }
+      }
+    }
+
+    offsets.writeInt (strings.size ());
+
+    for (int d = 0; d < maxDoc; d++) {
+      firstPostings[d + 1] += firstPostings[d];
+      firstLocations[d + 1] += firstLocations[d];
+    }
+
+    int p = firstPostings[maxDoc];
+    int l = withLocations ? firstLocations[maxDoc] : 0;
+    int[] termIds = new int[p];
+    int[] tfs = new int[p];
+    int[] locations = new int[l];
+    int[] nextPosting = Arrays.copyOf (firstPostings, maxDoc);
+    int[] nextLocation = Arrays.copyOf (firstLocations, maxDoc);
+
+    if (fieldTerms != null) {
+      TermsEnum ithTerm = fieldTerms.iterator (null);
+      DocsAndPositionsEnum positions = null;
+      DocsEnum docs = null;
+      int termId = 0;
+
+      while (ithTerm.next () != null) {
+        DocsEnum postings;
+
+        if (withLocations) {
+          positions = ithTerm.docsAndPositions (liveDocs, positions);
+          postings = positions;
+
+          if (positions == null) {
+            throw new IllegalArgumentException (
+              "The " + field + " field doesn't have locations.");
+          }
+        } else {
+          docs = ithTerm.docs (liveDocs, docs, DocsEnum.FLAG_FREQS);
+          postings = docs;
+        }
+
+        int docid;
+
+        while ((docid = postings.nextDoc ()) != DocIdSetIterator.NO_MORE_DOCS) {
+          int tf = postings.freq ();
+          int j = nextPosting[docid]++;
+
+          termIds[j] = termId;
+          tfs[j] = tf;
+
+          if (withLocations) {
+            for (int k = 0; k < tf; k++) {
+              locations[nextLocation[docid]++] = positions.nextPosition ();
+            }
+          }
+        }
+
+        termId++;
+      }
+    }
+
+    out.writeInt (withLocations ? 1 : 0);
+    out.writeInt (v);
+    out.writeInt (p);
+    out.writeInt (l);
+    offsetBytes.writeTo (out);
+    writeInts (out, firstPostings, maxDoc + 1);
+    writeInts (out, termIds, p);
+    writeInts (out, tfs, p);
+
+    if (withLocations) {
+      writeInts (out, firstLocations, maxDoc + 1);
+      writeInts (out, locations, l);
+    }
+
+    strings.writeTo (out);
+  }
+
+  private static void writeInts (DataOutputStream out, int[] values,
+                                 int count)
+    throws IOException {
+    for (int i = 0; i < count; i++)
+      out.writeInt (values[i]);
+  }
+
+  /**
+   *  Get the field that the forward index describes.
+   *  @return The field name.
+   */
+  public String getField () {
+    return this.field;
+  }
+
+  /**
+   *  Indicates whether term locations are stored.
+   *  @return True if locations are stored, otherwise false.
+   */
+  public boolean hasLocations () {
+    return this.hasLocations;
+  }
+
+  /**
+   *  Get the number of terms in the field's vocabulary.
+   *  @return The number of terms.
+   */
+  public int getNumTerms () {
+    return this.numTerms;
+  }
+
+  /**
+   *  Get the string of a term.
+   *  @param termId A term id.
+   *  @return The term string.
+   */
+  public String getTerm (int termId) {
+
+    String term = this.terms[termId];
+
+    if (term == null) {
+      int start = this.termOffsets.get (termId);
+      byte[] bytes = new byte[this.termOffsets.get (termId + 1) - start];
+
+      for (int i = 0; i < bytes.length; i++)
+        bytes[i] = this.strings.get (start + i);
+
+      term = new String (bytes, UTF8);
+      this.terms[termId] = term;
+    }
+
+    return term;
+  }
+
+  /**
+   *  Get the id of a term, using binary search on the sorted
+   *  vocabulary.
+   *  @param term The processed (stemmed, lower-cased, etc) term string.
+   *  @return The term id, or -1 if the term isn't in the field.
+   */
+  public int getTermId (String term) {
+
+    byte[] key = term.getBytes (UTF8);
+    int lo = 0;
+    int hi = this.numTerms - 1;
+
+    while (lo <= hi) {
+      int mid = (lo + hi) >>> 1;
+      int c = this.compareTerm (mid, key);
+
+      if (c < 0)
+        lo = mid + 1;
+      else if (c > 0)
+        hi = mid - 1;
+      else
+        return mid;
+    }
+
+    return -1;
+  }
+
+  /**
+   *  Compare a term with a key, as unsigned bytes.
+   */
+  private int compareTerm (int termId, byte[] key) {
+
+    int start = this.termOffsets.get (termId);
+    int length = this.termOffsets.get (termId + 1) - start;
+    int limit = Math.min (length, key.length);
+
+    for (int i = 0; i < limit; i++) {
+      int c = (this.strings.get (start + i) & 0xff) - (key[i] & 0xff);
+
+      if (c != 0)
+        return c;
+    }
+
+    return length - key.length;
+  }
+
+  /**
+   *  Get the index of a document's first posting.  The document's
+   *  postings end where the next document's start.
+   *  @param docid An internal document id, or maxDoc for the end of
+   *  the last document's postings.
+   *  @return The index of the posting.
+   */
+  public int getFirstPosting (int docid) {
+    return this.firstPostings.get (docid);
+  }
+
+  /**
+   *  Get the term id of a posting.
+   *  @param posting The index of a posting.
+   *  @return The term id.
+   */
+  public int getPostingTermId (int posting) {
+    return this.termIds.get (posting);
+  }
+
+  /**
+   *  Get the tf of a posting.
+   *  @param posting The index of a posting.
+   *  @return The term frequency.
+   */
+  public int getPostingTf (int posting) {
+    return this.tfs.get (posting);
+  }
+
+  /**
+   *  Get the index of a document's first location.  The locations of
+   *  the document's postings follow in order, tf of them per posting.
+   *  @param docid An internal document id.
+   *  @return The index of the location.
+   *  @throws IllegalStateException Locations aren't stored.
+   */
+  public int getFirstLocation (int docid) {
+
+    if (! this.hasLocations) {
+      throw new IllegalStateException (
+        "The forward index of " + this.field + " has no locations.");
+    }
+
+    return this.firstLocations.get (docid);
+  }
+
+  /**
+   *  Get a location.
+   *  @param n The index of the location.
+   *  @return The location.
+   */
+  public int getLocation (int n) {
+    return this.locations.get (n);
+  }
+}
@@ -20,6 +20,14 @@ import org.apache.lucene.util.BytesRef;
  *  <i>current</i> index.  All requests are satisfied from the current
  *  index.  setCurrentIndex changes the current index.
  *  </p>
+ *  <p>
+ *  After an index is opened, the methods of this class only read
+ *  shared state (the IndexReader, the in-memory norms, and the
+ *  memory-mapped DocIdMap, term dictionary, and forward indexes), so
+ *  queries may be evaluated concurrently.  Opening indexes and
+ *  changing the current index are not thread-safe; do them before
+ *  evaluation starts.
+ *  </p>
  */
 public class Idx {
 
@@ -32,10 +40,30 @@ public class Idx {
 
   private static DocLengthStore DOCLENGTHSTORE=null;
 
+  private static DocIdMap DOCIDMAP=null;
+
+  private static HashMap<String,FieldStats> FIELDSTATS=null;
+
+  private static BlockMaxIndex BLOCKMAXINDEX=null;
+
+  private static HashMap<String,ForwardIndex> FORWARDINDEXES=null;
+
+  private static TermDictionary TERMDICTIONARY=null;
+
   private static HashMap<String,IndexReader> openIndexReaders =
     new HashMap<String,IndexReader> ();
   private static HashMap<String,DocLengthStore> openDocLengthStores =
     new HashMap<String,DocLengthStore> ();
+  private static HashMap<String,DocIdMap> openDocIdMaps =
+    new HashMap<String,DocIdMap> ();
+  private static HashMap<String,HashMap<String,FieldStats>> openFieldStats =
+    new HashMap<String,HashMap<String,FieldStats>> ();
+  private static HashMap<String,BlockMaxIndex> openBlockMaxIndexes =
+    new HashMap<String,BlockMaxIndex> ();
+  private static HashMap<String,HashMap<String,ForwardIndex>> openForwardIndexes =
+    new HashMap<String,HashMap<String,ForwardIndex>> ();
+  private static HashMap<String,TermDictionary> openTermDictionaries =
+    new HashMap<String,TermDictionary> ();
 
   //  --------------- Methods ---------------------------------------
 
@@ -61,7 +89,58 @@ public class Idx {
    */
   public static int getDocCount (String fieldName)
     throws IOException {
-    return Idx.INDEXREADER.getDocCount (fieldName);
+    return Idx.getFieldStats (fieldName).docCount;
+  }
+
+  /**
+   *  Get the collection statistics of the specified field, which were
+   *  read when the index was opened.
+   *  @param fieldName the field name
+   *  @return the statistics of the field
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public static FieldStats getFieldStats (String fieldName)
+    throws IOException {
+
+    FieldStats stats = Idx.FIELDSTATS.get (fieldName);
+
+    if (stats == null) {		// Not an indexed field
+      stats = new FieldStats (Idx.INDEXREADER, fieldName);
+    }
+
+    return stats;
+  }
+
+  /**
+   *  Get the block-max cursor of a term in the current index.
+   *  @param fieldName The field that the term occurs in.
+   *  @param term The processed (stemmed, lower-cased, etc) term string.
+   *  @return A new cursor, or null if the current index has no
+   *  BlockMaxIndex (see openBlockMaxIndex) or the term's list has only
+   *  one block.
+   */
+  public static BlockMaxIndex.Cursor getBlockMaxCursor (String fieldName,
+                                                        String term) {
+    return (Idx.BLOCKMAXINDEX == null) ?
+      null : Idx.BLOCKMAXINDEX.getCursor (fieldName, term);
+  }
+
+  /**
+   *  Get the term vector of a document field in the current index.
+   *  It is read from the field's ForwardIndex if one is open (see
+   *  openForwardIndex), otherwise from the Lucene term vector.
+   *  @param docid The internal document id of the document.
+   *  @param fieldName The name of a document field.
+   *  @return The term vector.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public static TermVector getTermVector (int docid, String fieldName)
+    throws IOException {
+
+    ForwardIndex forwardIndex = Idx.FORWARDINDEXES.get (fieldName);
+
+    return (forwardIndex != null) ?
+      new TermVector (docid, forwardIndex) : new TermVector (docid, fieldName);
   }
 
   /**
@@ -72,11 +151,27 @@ public class Idx {
    *  @throws IOException Error accessing the Lucene index.
    */
   public static String getExternalDocid(int iid) throws IOException {
-    Document d = Idx.INDEXREADER.document(iid);
-    String eid = d.get("externalId");
+    String eid = Idx.DOCIDMAP.getExternalDocid(iid);
+
+    if (eid == null) {				// Not indexed; try the stored field
+      Document d = Idx.INDEXREADER.document(iid);
+      eid = d.get("externalId");
+    }
+
     return eid;
   }
 
+  /**
+   *  Get the rank of a document's external id in the sorted list of
+   *  all external ids in the index.  Comparing ranks gives the same
+   *  result as comparing the external ids, without reading them.
+   *  @param iid The internal document id of the document.
+   *  @return the rank of the document's external id
+   */
+  public static int getExternalIdRank (int iid) {
+    return Idx.DOCIDMAP.getExternalIdRank (iid);
+  }
+
   /**
    *  Get the length of the specified field in the specified document.
    *  @param fieldName Name of field to access lengths.
@@ -89,6 +184,35 @@ public class Idx {
     return (int) Idx.DOCLENGTHSTORE.getDocLength (fieldName, docid);
   }
 
+  /**
+   *  Get the length of the specified field in the specified document.
+   *  This is faster than looking up the field by name.
+   *  @param fieldOrdinal The field, from getFieldOrdinal.
+   *  @param docid The internal docid in the Lucene index.
+   *  @return the length of the field, including stopword positions.
+   */
+  public static int getFieldLength (int fieldOrdinal, int docid) {
+    return (int) Idx.DOCLENGTHSTORE.getDocLength (fieldOrdinal, docid);
+  }
+
+  /**
+   *  Get the ordinal of a field, for use with getFieldLength.
+   *  @param fieldName The field name.
+   *  @return The field ordinal, or -1 if the field isn't indexed.
+   */
+  public static int getFieldOrdinal (String fieldName) {
+    return Idx.DOCLENGTHSTORE.getFieldOrdinal (fieldName);
+  }
+
+  /**
+   *  Describe the memory used by the document lengths of the current
+   *  index.
+   *  @return One line per field.
+   */
+  public static String getDocLengthFootprint () {
+    return Idx.DOCLENGTHSTORE.getFootprint ();
+  }
+
   /**
    * Get the internal document id for a document specified by its
    * external id, e.g. clueweb09-enwp00-88-09710. If no such document
@@ -100,17 +224,12 @@ public class Idx {
   public static int getInternalDocid(String externalId)
     throws Exception {
 
-    Query q = new TermQuery(new Term("externalId", externalId));
-
-    IndexSearcher searcher = new IndexSearcher(Idx.INDEXREADER);
-    TopScoreDocCollector collector = TopScoreDocCollector.create(1, false);
-    searcher.search(q, collector);
-    ScoreDoc[] hits = collector.topDocs().scoreDocs;
+    int iid = Idx.DOCIDMAP.getInternalDocid(externalId);
 
-    if (hits.length < 1) {
+    if (iid < 0) {
       throw new Exception("External id not found.");
     } else {
-      return hits[0].doc;
+      return iid;
     }
   }
 
@@ -133,7 +252,7 @@ public class Idx {
    */
   public static long getSumOfFieldLengths (String fieldName)
     throws IOException {
-    return Idx.INDEXREADER.getSumTotalTermFreq (fieldName);
+    return Idx.getFieldStats (fieldName).sumTotalTermFreq;
   }
 
 
@@ -148,7 +267,57 @@ public class Idx {
    */
   public static long getTotalTermFreq (String fieldName, String term)
     throws IOException {
-    return INDEXREADER.totalTermFreq (new Term (fieldName, new BytesRef (term)));
+    int termId = Idx.TERMDICTIONARY.getTermId (fieldName, term);
+    return (termId < 0) ? 0 : Idx.TERMDICTIONARY.getCtf (termId);
+  }
+
+  /**
+   *  Get the collection term frequency (ctf) of a term.
+   *  @param termId A term id in the current index (see getTermId).
+   *  @return The total number of term occurrences.
+   */
+  public static long getTotalTermFreq (int termId) {
+    return Idx.TERMDICTIONARY.getCtf (termId);
+  }
+
+  /**
+   *  Get the document frequency (df) of a term.
+   *  @param termId A term id in the current index (see getTermId).
+   *  @return The number of documents that contain the term.
+   */
+  public static int getDf (int termId) {
+    return Idx.TERMDICTIONARY.getDf (termId);
+  }
+
+  /**
+   *  Get the integer id of a term in a field of the current index.
+   *  Ids are dense, so they can index arrays; each field's terms have
+   *  consecutive ids, in sorted order.
+   *  @param fieldName The field name.
+   *  @param term The processed (stemmed, lower-cased, etc) term string.
+   *  @return The term id, or -1 if the term doesn't occur in the field.
+   */
+  public static int getTermId (String fieldName, String term) {
+    return Idx.TERMDICTIONARY.getTermId (fieldName, term);
+  }
+
+  /**
+   *  Get the id of the first term of a field of the current index.
+   *  The id of a term in the field's ForwardIndex is relative to it.
+   *  @param fieldName The field name.
+   *  @return The term id, or -1 if the field isn't indexed.
+   */
+  public static int getFirstTermId (String fieldName) {
+    return Idx.TERMDICTIONARY.getFirstTermId (fieldName);
+  }
+
+  /**
+   *  Get the string of a term.
+   *  @param termId A term id in the current index (see getTermId).
+   *  @return The term string.
+   */
+  public static String getTerm (int termId) {
+    return Idx.TERMDICTIONARY.getTerm (termId);
   }
 
 
@@ -161,7 +330,7 @@ public class Idx {
   public static void open (String indexPath)
     throws IllegalArgumentException, IOException {
 
-    IndexReader indexReader;
+    DirectoryReader indexReader;
     DocLengthStore docLengthStore;
 
     //  Open the Lucene index
@@ -176,25 +345,110 @@ public class Idx {
     //  Lucene doesn't store field lengths the way that we want them,
     //  so we have our own document length store.
 
-    docLengthStore = new DocLengthStore (indexReader);
+    docLengthStore = new DocLengthStore (indexPath, indexReader);
   
     if (docLengthStore == null) {
       throw new IllegalArgumentException ("Unable to open the document length store.");
     }
 
+    //  Translate between internal and external document ids without
+    //  searching the index or reading stored fields.
+
+    DocIdMap docIdMap = DocIdMap.open (indexPath, indexReader);
+
+    //  Give terms integer ids, and keep their statistics.
+
+    TermDictionary termDictionary = TermDictionary.open (indexPath, indexReader);
+
+    //  Collection statistics are used to score every document, so
+    //  read them once.
+
+    HashMap<String,FieldStats> fieldStats = new HashMap<String,FieldStats> ();
+
+    for (String field : MultiFields.getIndexedFields (indexReader)) {
+      fieldStats.put (field, new FieldStats (indexReader, field));
+    }
+
     //  Keep track of the open indexes.
 
     openIndexReaders.put (indexPath, indexReader);
     openDocLengthStores.put (indexPath, docLengthStore);
+    openDocIdMaps.put (indexPath, docIdMap);
+    openFieldStats.put (indexPath, fieldStats);
+    openForwardIndexes.put (indexPath, new HashMap<String,ForwardIndex> ());
+    openTermDictionaries.put (indexPath, termDictionary);
 
     //  The current index defaults to the first open index.
 
     if (Idx.INDEXREADER == null) {
       Idx.INDEXREADER = indexReader;
       Idx.DOCLENGTHSTORE = docLengthStore;
+      Idx.DOCIDMAP = docIdMap;
+      Idx.FIELDSTATS = fieldStats;
+      Idx.FORWARDINDEXES = openForwardIndexes.get (indexPath);
+      Idx.TERMDICTIONARY = termDictionary;
     }
   }
 
+  /**
+   *  Open the BlockMaxIndex of an open Lucene index, which is only
+   *  needed for dynamic pruning (BM25 Block-Max WAND and Indri
+   *  MaxScore), so Idx.open doesn't open it.
+   *  @param indexPath A directory that contains an open Lucene index.
+   *  @param k1 The BM25 k_1 parameter.
+   *  @param b The BM25 b parameter.
+   *  @throws IllegalArgumentException The specified index isn't open.
+   *  @throws IOException Error accessing the index.
+   */
+  public static void openBlockMaxIndex (String indexPath, float k1, float b)
+    throws IllegalArgumentException, IOException {
+
+    IndexReader indexReader = openIndexReaders.get (indexPath);
+
+    if (indexReader == null) {
+      throw new IllegalArgumentException (
+        "An index must be open before its block-max index is opened");
+    }
+
+    BlockMaxIndex blockMaxIndex =
+      BlockMaxIndex.open (indexPath, (DirectoryReader) indexReader, k1, b);
+
+    openBlockMaxIndexes.put (indexPath, blockMaxIndex);
+
+    if (Idx.INDEXREADER == indexReader) {
+      Idx.BLOCKMAXINDEX = blockMaxIndex;
+    }
+  }
+
+  /**
+   *  Open the ForwardIndex of a field of an open Lucene index, so
+   *  that getTermVector reads from it.  Idx.open doesn't open forward
+   *  indexes, because they are only needed for feedback, learning to
+   *  rank, and diversification.
+   *  @param indexPath A directory that contains an open Lucene index.
+   *  @param fieldName The name of a document field.
+   *  @param withLocations Whether term locations are stored.
+   *  @throws IllegalArgumentException The specified index isn't open.
+   *  @throws IOException Error accessing the index.
+   */
+  public static void openForwardIndex (String indexPath, String fieldName,
+                                       boolean withLocations)
+    throws IllegalArgumentException, IOException {
+
+    IndexReader indexReader = openIndexReaders.get (indexPath);
+
+    if (indexReader == null) {
+      throw new IllegalArgumentException (
+        "An index must be open before its forward index is opened");
+    }
+
+    ForwardIndex forwardIndex =
+      ForwardIndex.open (indexPath, (DirectoryReader) indexReader, fieldName,
+                         withLocations);
+
+    openForwardIndexes.get (indexPath).put (fieldName, forwardIndex);
+  }
+
   /**
    *  Change the current index to another open Lucene index.
    *  @param indexPath A directory that contains an open Lucene index.
@@ -213,5 +467,10 @@ public class Idx {
 
     Idx.INDEXREADER = indexReader;
     Idx.DOCLENGTHSTORE = docLengthStore;
+    Idx.DOCIDMAP = openDocIdMaps.get (indexPath);
+    Idx.FIELDSTATS = openFieldStats.get (indexPath);
+    Idx.BLOCKMAXINDEX = openBlockMaxIndexes.get (indexPath);
+    Idx.FORWARDINDEXES = openForwardIndexes.get (indexPath);
+    Idx.TERMDICTIONARY = openTermDictionaries.get (indexPath);
   }
 }
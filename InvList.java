@@ -14,11 +14,35 @@ import org.apache.lucene.search.*;
  *  provides methods for accessing and manipulating inverted lists.
  *  Its purpose is to provide a simpler view of inverted lists than
  *  Lucene's native implementation.
+ *  <p>
+ *  Postings are stored in a columnar layout:  parallel int arrays of
+ *  docids and term frequencies, plus one flat int array that holds
+ *  the positions of every posting.  The positions of the n'th posting
+ *  are positions[positionOffsets[n]] ... positions[positionOffsets[n+1]-1].
+ *  This avoids allocating an object (and boxed Integers) for every
+ *  posting, which matters for frequent terms.
+ *  </p>
  */
 public class InvList {
 
   //  --------------- Constants and variables -----------------------
 
+  /**
+   *  The initial capacity of the posting arrays when the size of
+   *  the inverted list is not known in advance.
+   */
+  private static final int INITIAL_CAPACITY = 16;
+
+  /**
+   *  Lists with at least this many postings get skip pointers.
+   */
+  private static final int SKIP_THRESHOLD = 4096;
+
+  /**
+   *  Each skip pointer covers 2^SKIP_SHIFT postings.
+   */
+  private static final int SKIP_SHIFT = 7;
+
   /**
    *  Collection term frequency: The number of times that a term
    *  occurs across all instances of the specified field.
@@ -37,50 +61,33 @@ public class InvList {
   public String field;
 
   /**
-   *  Postings that contain information about the occurrence of the
-   *  term in individual documents.
+   *  The internal ids of the documents that contain the term, in
+   *  increasing order.
    */
-  public Vector<DocPosting> postings = new Vector<DocPosting>();
-
-  //  --------------- Nested classes --------------------------------
+  private int[] docids;
 
   /**
-   *  Utility class that makes it easier to construct postings.
+   *  The number of times the term occurs in each document.
    */
-  public class DocPosting {
+  private int[] tfs;
 
-    /**
-     *  The internal id of a document that contains the term in
-     *  the specified field.
-     */
-    public int docid = 0;
-
-    /**
-     *  Term frequency:  The number of times the term occurs in
-     *  the specified field of the document.
-     */
-    public int tf = 0;
-
-    /**
-     *  The locations where the term occurs in the specified field
-     *  of the document.
-     */
-    public Vector<Integer> positions = new Vector<Integer>();
+  /**
+   *  The index in positions of the first location of each posting.
+   *  It has df+1 valid entries; the last one marks the end of the
+   *  last posting.
+   */
+  private int[] positionOffsets;
 
-    public DocPosting(int d, int... locations) {
-      this.docid = d;
-      this.tf = locations.length;
-      for (int i = 0; i < locations.length; i++)
-        this.positions.add(locations[i]);
-    }
+  /**
+   *  The locations of every posting, concatenated in docid order.
+   */
+  private int[] positions;
 
-    public DocPosting(int d, List<Integer> locations) {
-      this.docid = d;
-      this.tf = locations.size();
-      for (int i = 0; i < locations.size(); i++)
-        this.positions.add(locations.get(i));
-    }
-  }
+  /**
+   *  Optional skip pointers:  the last docid of each block of
+   *  2^SKIP_SHIFT postings, or null if the list has none.
+   */
+  private int[] skipDocids = null;
 
   //  --------------- Methods ---------------------------------------
 
@@ -88,6 +95,7 @@ public class InvList {
    *  Constructor.  An empty inverted list. Useful for some query operators.
    */
   public InvList() {
+    this.allocate (INITIAL_CAPACITY, INITIAL_CAPACITY);
   }
 
   /**
@@ -96,6 +104,7 @@ public class InvList {
    */
   public InvList(String fieldString) {
     this.field = new String (fieldString);
+    this.allocate (INITIAL_CAPACITY, INITIAL_CAPACITY);
   }
 
   /**
@@ -110,37 +119,128 @@ public class InvList {
 
     this.field = new String (fieldString);
 
-    //  Prepare to access the index.
+    //  Terms that aren't in the dictionary don't need an index lookup.
 
-    BytesRef termBytes = new BytesRef(termString);
-    Term term = new Term(fieldString, termBytes);
+    int termId = Idx.getTermId(fieldString, termString);
 
-    if (Idx.INDEXREADER.docFreq(term) < 1)
+    if (termId < 0 || Idx.getDf(termId) < 1) {
+      this.allocate (0, 0);
       return;
+    }
+
+    //  The index statistics include deleted documents, so they are an
+    //  upper bound on the size of the list.  Use them to size the
+    //  arrays once instead of growing them.
+
+    int indexDf = Idx.getDf(termId);
+    long indexCtf = Idx.getTotalTermFreq(termId);
+    this.allocate (indexDf,
+                   (indexCtf < 0) ? INITIAL_CAPACITY : (int) indexCtf);
 
     //  Lookup the inverted list.
 
     DocsAndPositionsEnum iList =
       MultiFields.getTermPositionsEnum(Idx.INDEXREADER,
 				       MultiFields.getLiveDocs(Idx.INDEXREADER),
-				       fieldString, termBytes);
+				       fieldString, new BytesRef(termString));
+
+    this.readPostings (iList, 0);
+  }
+
+  /**
+   *  Get the part of an inverted list that is in one index segment
+   *  (leaf).  Docids are global, i.e., the leaf's docBase is added
+   *  to them, but df and ctf describe just this leaf.
+   *  @param termString The processed (stemmed, lower-cased, etc) term string.
+   *  @param fieldString The field that the term occurs in.
+   *  @param leaf The index segment to read.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public InvList(String termString, String fieldString,
+                 AtomicReaderContext leaf) throws IOException {
+
+    this.field = new String (fieldString);
+
+    Term term = new Term(fieldString, new BytesRef(termString));
+    AtomicReader reader = leaf.reader();
+    int leafDf = reader.docFreq(term);
+
+    if (leafDf < 1) {
+      this.allocate (0, 0);
+      return;
+    }
 
-    //  Copy from Lucene inverted list format to our inverted list
-    //  format. This is a little inefficient, but allows query
-    //  operators such as #SYN and #NEAR/n to be insulated from the
-    //  details of Lucene inverted list implementations.
+    long leafCtf = reader.totalTermFreq(term);
+    this.allocate (leafDf,
+                   (leafCtf < 0) ? INITIAL_CAPACITY : (int) leafCtf);
+
+    this.readPostings (reader.termPositionsEnum(term), leaf.docBase);
+  }
+
+  /**
+   *  Copy from Lucene inverted list format to our inverted list
+   *  format. This is a little inefficient, but allows query
+   *  operators such as #SYN and #NEAR/n to be insulated from the
+   *  details of Lucene inverted list implementations.
+   *  @param iList The Lucene inverted list.
+   *  @param docBase The value to add to each docid.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  private void readPostings (DocsAndPositionsEnum iList, int docBase)
+    throws IOException {
+
+    if (iList == null)		// The field doesn't have positions
+      return;
 
     while (iList.nextDoc() != DocIdSetIterator.NO_MORE_DOCS) {
 
       int tf = iList.freq();
-      int[] positions = new int[tf];
+
+      this.ensureCapacity (this.df + 1, this.ctf + tf);
+
+      int start = this.ctf;
 
       for (int j = 0; j < tf; j++)
-        positions[j] = iList.nextPosition();
+        this.positions[start + j] = iList.nextPosition();
 
-      this.postings.add(new DocPosting(iList.docID(), positions));
+      this.docids[this.df] = docBase + iList.docID();
+      this.tfs[this.df] = tf;
       this.df++;
       this.ctf += tf;
+      this.positionOffsets[this.df] = this.ctf;
+    }
+  }
+
+  /**
+   *  Allocate the posting arrays.
+   *  @param postingCapacity The number of postings to make room for.
+   *  @param positionCapacity The number of positions to make room for.
+   */
+  private void allocate (int postingCapacity, int positionCapacity) {
+    this.docids = new int[postingCapacity];
+    this.tfs = new int[postingCapacity];
+    this.positionOffsets = new int[postingCapacity + 1];
+    this.positions = new int[positionCapacity];
+  }
+
+  /**
+   *  Grow the posting arrays, if necessary, so that they can hold
+   *  the specified number of postings and positions.
+   *  @param postingCount The number of postings that must fit.
+   *  @param positionCount The number of positions that must fit.
+   */
+  private void ensureCapacity (int postingCount, int positionCount) {
+
+    if (postingCount > this.docids.length) {
+      int capacity = Math.max (postingCount, this.docids.length * 2);
+      this.docids = Arrays.copyOf (this.docids, capacity);
+      this.tfs = Arrays.copyOf (this.tfs, capacity);
+      this.positionOffsets = Arrays.copyOf (this.positionOffsets, capacity + 1);
+    }
+
+    if (positionCount > this.positions.length) {
+      int capacity = Math.max (positionCount, this.positions.length * 2);
+      this.positions = Arrays.copyOf (this.positions, capacity);
     }
   }
 
@@ -152,29 +252,173 @@ public class InvList {
    *  @return true if the posting was added successfully, otherwise false.
    */
   public boolean appendPosting (int docid, List<Integer> positions) {
-    
+
     //  A posting can only be appended if its docid is greater than
-    //  the last docid.
+    //  the last docid.  This includes the second posting, which an
+    //  earlier (df > 1) test didn't check.
+
+    if ((this.df > 0) &&
+	(this.docids[this.df-1] >= docid))
+      return false;
+
+    int tf = positions.size();
+
+    this.ensureCapacity (this.df + 1, this.ctf + tf);
+
+    for (int j = 0; j < tf; j++)
+      this.positions[this.ctf + j] = positions.get(j);
+
+    this.docids[this.df] = docid;
+    this.tfs[this.df] = tf;
+    this.skipDocids = null;
+    this.df ++;
+    this.ctf += tf;
+    this.positionOffsets[this.df] = this.ctf;
+    return true;
+  }
+
+  /**
+   *  Append a posting to the posting list.  Posting must be appended
+   *  in docid order, otherwise this method fails.
+   *  @param docid The internal document id of the posting.
+   *  @param positions An array that contains the positions where the
+   *  term occurs.  It is copied, so the caller may reuse it.
+   *  @param offset The index of the first position in the array.
+   *  @param length The number of positions.
+   *  @return true if the posting was added successfully, otherwise false.
+   */
+  public boolean appendPosting (int docid, int[] positions, int offset,
+                                int length) {
 
-    if ((this.df > 1) &&
-	(this.postings.get(this.df-1).docid >= docid))
+    if ((this.df > 0) &&
+	(this.docids[this.df-1] >= docid))
       return false;
 
-    DocPosting p = new DocPosting (docid, positions);
+    this.ensureCapacity (this.df + 1, this.ctf + length);
+
+    System.arraycopy (positions, offset, this.positions, this.ctf, length);
 
-    this.postings.add (p);
+    this.docids[this.df] = docid;
+    this.tfs[this.df] = length;
+    this.skipDocids = null;
     this.df ++;
-    this.ctf += p.tf;
+    this.ctf += length;
+    this.positionOffsets[this.df] = this.ctf;
     return true;
   }
 
+  /**
+   *  Build skip pointers if the list is long enough to benefit from
+   *  them.  Appending a posting discards the skip pointers, so call
+   *  this after the list is complete.  A list that already has skip
+   *  pointers isn't changed, so a list that is shared by several
+   *  threads (see PostingsCache) may be initialized by each of them.
+   */
+  public void buildSkipPointers () {
+
+    if ((this.df < SKIP_THRESHOLD) || (this.skipDocids != null)) {
+      return;
+    }
+
+    int blocks = ((this.df - 1) >> SKIP_SHIFT) + 1;
+    int[] skips = new int[blocks];
+
+    for (int b = 0; b < blocks; b++) {
+      skips[b] = this.docids[Math.min (this.df, (b + 1) << SKIP_SHIFT) - 1];
+    }
+
+    this.skipDocids = skips;
+  }
+
+  /**
+   *  Find the first posting at or after index <i>from</i> whose docid
+   *  is &gt;= docid.  The search gallops (1, 2, 4, ... postings ahead)
+   *  and then does a binary search, so skipping n postings costs
+   *  O(log n).  If the list has skip pointers, the gallop runs over
+   *  the skip pointers, and only one block of postings is searched.
+   *  @param from The index to start searching from.
+   *  @param docid The internal document id to search for.
+   *  @return The index of the posting, or df if there is none.
+   */
+  public int findDocid (int from, int docid) {
+
+    if ((from >= this.df) || (this.docids[from] >= docid)) {
+      return from;
+    }
+
+    //  Invariant:  docids[lo] < docid, and hi == df or docids[hi] >= docid.
+
+    int lo = from;
+    int hi;
+
+    if (this.skipDocids != null) {
+      int block = from >> SKIP_SHIFT;
+
+      if (this.skipDocids[block] < docid) {
+        block = gallop (this.skipDocids, block, this.skipDocids.length,
+                        docid);
+
+        if (block == this.skipDocids.length) {
+          return this.df;
+        }
+
+        lo = Math.max (lo, (block << SKIP_SHIFT) - 1);
+      }
+
+      hi = Math.min (this.df, (block + 1) << SKIP_SHIFT) - 1;
+      return binarySearch (this.docids, lo, hi, docid);
+    }
+
+    return gallop (this.docids, lo, this.df, docid);
+  }
+
+  /**
+   *  Gallop forward from array[lo] (which is &lt; value) until an
+   *  element &gt;= value is passed, then binary search the last step.
+   *  @return The index of the first element &gt;= value in
+   *  array[lo..end), or end if there is none.
+   */
+  private static int gallop (int[] array, int lo, int end, int value) {
+
+    int step = 1;
+    int hi = lo + step;
+
+    while ((hi < end) && (array[hi] < value)) {
+      lo = hi;
+      step <<= 1;
+      hi = lo + step;
+    }
+
+    return binarySearch (array, lo, Math.min (hi, end), value);
+  }
+
+  /**
+   *  Binary search array(lo..hi] for the first element &gt;= value,
+   *  given that array[lo] &lt; value and that hi is either the end of
+   *  the searchable range or an element &gt;= value.
+   */
+  private static int binarySearch (int[] array, int lo, int hi, int value) {
+
+    while (hi - lo > 1) {
+      int mid = (lo + hi) >>> 1;
+
+      if (array[mid] < value) {
+        lo = mid;
+      } else {
+        hi = mid;
+      }
+    }
+
+    return hi;
+  }
+
   /**
    *  Get the n'th document id from the inverted list.
    *  @param docid The index of the requested document.
    *  @return The internal document id.
    */
   public int getDocid(int docid) {
-    return this.postings.get(docid).docid;
+    return this.docids[docid];
   }
 
   /**
@@ -183,7 +427,89 @@ public class InvList {
    *  @return The document's term frequency.
    */
   public int getTf(int n) {
-    return this.postings.get(n).tf;
+    return this.tfs[n];
+  }
+
+  /**
+   *  Get the largest term frequency in the inverted list.
+   *  @return The largest term frequency, or 0 if the list is empty.
+   */
+  public int getMaxTf () {
+    int maxTf = 0;
+    for (int i = 0; i < this.df; i++) {
+      maxTf = Math.max (maxTf, this.tfs[i]);
+    }
+    return maxTf;
+  }
+
+  /**
+   *  Get the j'th location of the term in the n'th document of the
+   *  inverted list.
+   *  @param n The index of the requested document.
+   *  @param j The index of the requested location.
+   *  @return The location.
+   */
+  public int getPosition (int n, int j) {
+    return this.positions[this.positionOffsets[n] + j];
+  }
+
+  /**
+   *  Get a copy of the locations of the term in the n'th document of
+   *  the inverted list.
+   *  @param n The index of the requested document.
+   *  @return The locations, in increasing order.
+   */
+  public int[] getPositions (int n) {
+    return Arrays.copyOfRange (this.positions,
+                               this.positionOffsets[n],
+                               this.positionOffsets[n+1]);
+  }
+
+  /**
+   *  Get the shared array that stores the locations of every posting.
+   *  Use getPositionsOffset and getTf to find a document's locations.
+   *  The array must not be modified.
+   *  @return The positions array.
+   */
+  public int[] getPositionsArray () {
+    return this.positions;
+  }
+
+  /**
+   *  Get the index in getPositionsArray of the first location of the
+   *  n'th document of the inverted list.
+   *  @param n The index of the requested document.
+   *  @return The offset of the document's first location.
+   */
+  public int getPositionsOffset (int n) {
+    return this.positionOffsets[n];
+  }
+
+  /**
+   *  Estimate the heap memory used by the inverted list, including
+   *  unused array capacity.
+   *  @return The number of bytes used.
+   */
+  public long ramBytesUsed () {
+    long arrayHeader = 16;
+    long skipBytes = (this.skipDocids == null) ?
+      0 : arrayHeader + 4L * this.skipDocids.length;
+    return 48 + skipBytes +
+      (arrayHeader + 4L * this.docids.length) +
+      (arrayHeader + 4L * this.tfs.length) +
+      (arrayHeader + 4L * this.positionOffsets.length) +
+      (arrayHeader + 4L * this.positions.length);
+  }
+
+  /**
+   *  Release unused array capacity.  Useful for inverted lists that
+   *  are kept for a long time.
+   */
+  public void trimToSize () {
+    this.docids = Arrays.copyOf (this.docids, this.df);
+    this.tfs = Arrays.copyOf (this.tfs, this.df);
+    this.positionOffsets = Arrays.copyOf (this.positionOffsets, this.df + 1);
+    this.positions = Arrays.copyOf (this.positions, this.ctf);
   }
 
   /**
@@ -194,11 +520,11 @@ public class InvList {
     System.out.println("df:  " + this.df + ", ctf: " + this.ctf);
 
     for (int i = 0; i < this.df; i++) {
-      System.out.print("docid:  " + this.postings.elementAt(i).docid + ", tf: "
-          + this.postings.elementAt(i).tf + ", locs: ");
+      System.out.print("docid:  " + this.docids[i] + ", tf: "
+          + this.tfs[i] + ", locs: ");
 
-      for (int j = 0; j < this.postings.elementAt(i).tf; j++) {
-        System.out.print(this.postings.elementAt(i).positions.elementAt(j) + " ");
+      for (int j = 0; j < this.tfs[i]; j++) {
+        System.out.print(this.getPosition (i, j) + " ");
       }
 
       System.out.println();
@@ -120,10 +120,13 @@ public class LearningToRank {
                 float k_3 = Float.parseFloat(parameters.get("BM25:k_3"));
                 float b = Float.parseFloat(parameters.get("BM25:b"));
                 RetrievalModel model = new RetrievalModelBM25(k_1, b, k_3);
-                r = QryEval.processQuery(query, model);
+                long start = System.nanoTime();
+                r = QryEval.processQuery(query, model, QryEval.OUTPUT_LENGTH);
+                QryEval.pipeline.addTime("retrieve", System.nanoTime() - start);
 
+                //processQuery's results are already sorted
                 if (r != null) {
-                    r.sort();
+                    start = System.nanoTime();
 
                     int max_size = 100;
                     int loop = max_size < r.size() ? max_size : r.size();
@@ -139,16 +142,20 @@ public class LearningToRank {
                     //normalize and write to file
                     normalizeAndWrite(out, qid, qd_feat_list, max, min );
 //                    out.close();
+                    QryEval.pipeline.addTime("features", System.nanoTime() - start);
                 }
 
             }
             out.close();
 
-            //test model using SVM
+            //test model using SVM; every query is reranked at once
+            long start = System.nanoTime();
             Process cmdProc = Runtime.getRuntime().exec(
                     new String[] { parameters.get("letor:svmRankClassifyPath"), parameters.get("letor:testingFeatureVectorsFile"),
                             parameters.get("letor:svmRankModelFile"), parameters.get("letor:testingDocumentScores") });
             SVM(cmdProc);
+            QryEval.pipeline.addTime("rerank", System.nanoTime() - start);
+            start = System.nanoTime();
 
             //write the results into output file
             BufferedReader test_feat_vector = new BufferedReader(new FileReader(parameters.get("letor:testingFeatureVectorsFile")));
@@ -190,6 +197,7 @@ public class LearningToRank {
                 result.print(qid + " Q0 " + Idx.getExternalDocid(rnew[idx].getDocid(i)) + " " + (i + 1) + " " + rnew[idx].getDocidScore(i) + " agaur\n");
             }
             result.close();
+            QryEval.pipeline.addTime("output", System.nanoTime() - start);
         } catch (Exception ex) {
             ex.printStackTrace();
         } finally {
@@ -209,6 +217,18 @@ public class LearningToRank {
         }
         int index = 0;
 
+        //read each field's term vector once, and look up the query
+        //terms' ids once per field
+
+        TermVector body = Idx.getTermVector(internalDocID, "body");
+        TermVector title = Idx.getTermVector(internalDocID, "title");
+        TermVector url = Idx.getTermVector(internalDocID, "url");
+        TermVector inlink = Idx.getTermVector(internalDocID, "inlink");
+        int[] bodyIds = getTermIds("body", qTerms);
+        int[] titleIds = getTermIds("title", qTerms);
+        int[] urlIds = getTermIds("url", qTerms);
+        int[] inlinkIds = getTermIds("inlink", qTerms);
+
         //get all features
 
         //spam score
@@ -234,60 +254,60 @@ public class LearningToRank {
         }
 
         // feat-5 BM25 for body
-        feat_list[4] = getScoreBM25(internalDocID, "body", qTerms);
+        feat_list[4] = getScoreBM25(internalDocID, "body", body, bodyIds);
         getMinMax(feat_list[index], max, min, index++);
 
         //feat-6 Indri body
-        feat_list[5] = getScoreIndri(internalDocID, "body", qTerms);
+        feat_list[5] = getScoreIndri(internalDocID, "body", body, bodyIds);
         getMinMax(feat_list[index], max, min, index++);
 
         //feat-7 Term overlap body
-        feat_list[6] = termOverlapScore(internalDocID, "body", qTerms);
+        feat_list[6] = termOverlapScore(body, bodyIds);
         getMinMax(feat_list[index], max, min, index++);
 
         //feat-8 BM25 for title
-        feat_list[7] = getScoreBM25(internalDocID, "title", qTerms);
+        feat_list[7] = getScoreBM25(internalDocID, "title", title, titleIds);
         getMinMax(feat_list[index], max, min, index++);
 
         //feat-9 Indri Title
-        feat_list[8] = getScoreIndri(internalDocID, "title", qTerms);
+        feat_list[8] = getScoreIndri(internalDocID, "title", title, titleIds);
         getMinMax(feat_list[index], max, min, index++);
 
         //feat-10 Term overlap title
-        feat_list[9] = termOverlapScore(internalDocID, "title", qTerms);
+        feat_list[9] = termOverlapScore(title, titleIds);
         getMinMax(feat_list[index], max, min, index++);
 
         //feat-11 BM25 for url
-        feat_list[10] = getScoreBM25(internalDocID, "url", qTerms);
+        feat_list[10] = getScoreBM25(internalDocID, "url", url, urlIds);
         getMinMax(feat_list[index], max, min, index++);
 
         //feat-12 Indri Url
-        feat_list[11] = getScoreIndri(internalDocID, "url", qTerms);
+        feat_list[11] = getScoreIndri(internalDocID, "url", url, urlIds);
         getMinMax(feat_list[index], max, min, index++);
 
         //feat-13 Term overlap url
-        feat_list[12] = termOverlapScore(internalDocID, "url", qTerms);
+        feat_list[12] = termOverlapScore(url, urlIds);
         getMinMax(feat_list[index], max, min, index++);
 
         //feat-14 BM25 for inlink
-        feat_list[13] = getScoreBM25(internalDocID, "inlink", qTerms);
+        feat_list[13] = getScoreBM25(internalDocID, "inlink", inlink, inlinkIds);
         getMinMax(feat_list[index], max, min, index++);
 
         //feat-15 Indri inlink
-        feat_list[14] = getScoreIndri(internalDocID, "inlink", qTerms);
+        feat_list[14] = getScoreIndri(internalDocID, "inlink", inlink, inlinkIds);
         getMinMax(feat_list[index], max, min, index++);
 
         //feat-16 Term overlap inlink
-        feat_list[15] = termOverlapScore(internalDocID, "inlink", qTerms);
+        feat_list[15] = termOverlapScore(inlink, inlinkIds);
         getMinMax(feat_list[index], max, min, index++);
 
         // Custom Features
         // Rankedboolean AND
-        feat_list[16] = getScoreRankedBooleanAnd(internalDocID, qTerms, "body");
+        feat_list[16] = getScoreRankedBooleanAnd(body, bodyIds);
         getMinMax(feat_list[index], max, min, index++);
 
         //feat-7 Term overlap body
-        feat_list[17] = getScoreRankedBooleanOR(internalDocID, qTerms, "url");
+        feat_list[17] = getScoreRankedBooleanOR(url, urlIds);
         getMinMax(feat_list[index], max, min, index);
 
         // q-idf score
@@ -359,26 +379,37 @@ public class LearningToRank {
         return pgRank;
     }
 
-    public double getScoreBM25 (int doc_id, String field, String[] q) throws IOException {
+    /**
+     * Returns the term ids of the query terms in a field; terms that
+     * don't occur in the field get -1.
+     */
+    private static int[] getTermIds(String field, String[] q) {
+        int[] termIds = new int[q.length];
+        for (int i = 0; i < q.length; i++){
+            termIds[i] = Idx.getTermId(field, q[i]);
+        }
+        return termIds;
+    }
+
+    public double getScoreBM25 (int doc_id, String field, TermVector termVectorObj, int[] q) throws IOException {
 
 //        int tf = ((QryIop) q).docIteratorGetMatchPosting().tf;
 //        int df = ((QryIop) q).getDf()
 //            float k1 = ((RetrievalModelBM25) r).getK_1();
 //            float b = ((RetrievalModelBM25) r).getB();
-        TermVector termVectorObj = new TermVector(doc_id, field);
         if (termVectorObj.stemsLength() == 0){
             return Double.NaN;
         }
         double score = 0.0;
-        for (String q_i : q){
+        for (int q_i : q){
 
-            int idx = termVectorObj.indexOfStem(q_i);
+            int idx = termVectorObj.indexOfTermId(q_i);
             if (idx == -1){
                continue;
             }
 
             int tf = termVectorObj.stemFreq(idx);
-            int df = termVectorObj.stemDf(idx);
+            int df = Idx.getDf(q_i);
             double N = (double)Idx.getNumDocs();
             float k1 = Float.parseFloat(parameters.get("BM25:k_1"));
             float b = Float.parseFloat(parameters.get("BM25:b"));
@@ -393,15 +424,14 @@ public class LearningToRank {
         return score;
     }
 
-    private double getScoreRankedBooleanAnd (int docID, String[] qTerms, String field) throws IOException {
+    private double getScoreRankedBooleanAnd (TermVector obj, int[] qTerms) throws IOException {
 
         double score = Double.MAX_VALUE;
-        TermVector obj = new TermVector(docID, field);
-        for (String q : qTerms) {
+        for (int q : qTerms) {
             if (obj.stemsLength() == 0){
                 return Double.NaN;
             }
-            int idx = obj.indexOfStem(q);
+            int idx = obj.indexOfTermId(q);
             if ( idx == -1){
                 return 0;
             }
@@ -411,15 +441,14 @@ public class LearningToRank {
         return score;
     }
 
-    private double getScoreRankedBooleanOR (int docID, String[] qTerms, String field) throws IOException {
+    private double getScoreRankedBooleanOR (TermVector obj, int[] qTerms) throws IOException {
 
         double score = 0.0;
-        TermVector obj = new TermVector(docID, field);
-        for (String q : qTerms) {
+        for (int q : qTerms) {
             if (obj.stemsLength() == 0){
                 return Double.NaN;
             }
-            int idx = obj.indexOfStem(q);
+            int idx = obj.indexOfTermId(q);
             if ( idx == -1){
                 continue;
             }
@@ -429,18 +458,17 @@ public class LearningToRank {
         return score;
     }
 
-    public double getScoreIndri (int doc_id, String field, String[] q) throws IOException {
+    public double getScoreIndri (int doc_id, String field, TermVector termVectorObj, int[] q) throws IOException {
 
-        TermVector termVectorObj = new TermVector(doc_id, field);
         if (termVectorObj.stemsLength() == 0){
             return Double.NaN;
         }
         double score = 1.0;
         int queryTermsMissing = 0;
-        for (String q_i : q){
+        for (int q_i : q){
             float lambda = Float.parseFloat(parameters.get("Indri:lambda"));
             float mu = Float.parseFloat(parameters.get("Indri:mu"));
-            int idx = termVectorObj.indexOfStem(q_i);
+            int idx = termVectorObj.indexOfTermId(q_i);
             int tf = 0;
             queryTermsMissing++;
             if (idx != -1){
@@ -448,7 +476,7 @@ public class LearningToRank {
                 queryTermsMissing--;
             }
 
-            double ctf = Idx.getTotalTermFreq(field, q_i);
+            double ctf = (q_i < 0) ? 0 : Idx.getTotalTermFreq(q_i);
             double prob_mle_C = ctf / Idx.getSumOfFieldLengths(field);
             double prob_q = (1 - lambda) * ( (tf + mu * prob_mle_C) / ( Idx.getFieldLength(field, doc_id) + mu) ) + lambda * prob_mle_C;
             score *= prob_q;
@@ -462,15 +490,14 @@ public class LearningToRank {
 
     }
 
-    public double termOverlapScore(int doc_id, String field, String[] q) throws IOException {
+    public double termOverlapScore(TermVector obj, int[] q) throws IOException {
         double count = 0.0;
-        TermVector obj = new TermVector(doc_id, field);
         if (obj.stemsLength() == 0){
             return Double.NaN;
         }
-        for (String q_i : q){
+        for (int q_i : q){
             try{
-                if (obj.indexOfStem(q_i) != -1)
+                if (obj.indexOfTermId(q_i) != -1)
                     count++;
             }catch (Exception e){
                 System.out.println(e);
@@ -0,0 +1,392 @@
+/**
+ *  Copyright (c) 2017, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.util.*;
+
+import org.apache.lucene.index.*;
+
+/**
+ *  A process-wide cache of the inverted lists of TERM operators,
+ *  keyed by field and term.  Without it, every query copies each of
+ *  its terms' postings from the index again, although topics,
+ *  diversity intents, and the two evaluations of a query expanded by
+ *  relevance feedback often share terms.  Cached lists are shared by
+ *  every query and thread, so they must not be modified.
+ *  <p>
+ *  The cache holds at most a configurable number of bytes of lists
+ *  (InvList.ramBytesUsed).  Entries are admitted and evicted with
+ *  W-TinyLFU:  a new list enters a small LRU window (1% of the
+ *  budget); a list that falls out of the window is admitted to the
+ *  main space only if it has been requested more often than the
+ *  lists that it would evict.  Request frequencies are estimated by a
+ *  count-min sketch whose counters are halved periodically, so that
+ *  old popularity fades.  The main space is a segmented LRU:  lists
+ *  enter its probation segment, and move to its protected segment
+ *  (80% of the main space) when they are requested again.
+ *  </p>
+ *  <p>
+ *  The cache is cleared when the current index changes (see
+ *  Idx.setCurrentIndex).  A list is read from the index outside the
+ *  cache's lock, so threads that miss the same term at the same time
+ *  may each read it.
+ *  </p>
+ */
+public class PostingsCache {
+
+  //  --------------- Constants and variables ---------------------
+
+  private static final double WINDOW_FRACTION = 0.01;
+  private static final double PROTECTED_FRACTION = 0.8;
+
+  //  The sketch has a counter for every ~4 KB of the budget, within
+  //  these limits.
+
+  private static final int MIN_SKETCH_WIDTH = 1 << 10;
+  private static final int MAX_SKETCH_WIDTH = 1 << 20;
+  private static final int MAX_COUNT = 15;
+
+  private static final long[] SEEDS = {
+    0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L,
+    0x9ae16a3b2f90404fL, 0xcbf29ce484222325L };
+
+  private final long maxBytes;
+  private final long windowMaxBytes;
+  private final long protectedMaxBytes;
+
+  //  Each segment is in LRU order, least recently used first.
+
+  private final LinkedHashMap<String,Entry> window =
+    new LinkedHashMap<String,Entry> (16, 0.75f, true);
+  private final LinkedHashMap<String,Entry> probation =
+    new LinkedHashMap<String,Entry> (16, 0.75f, true);
+  private final LinkedHashMap<String,Entry> protectedSegment =
+    new LinkedHashMap<String,Entry> (16, 0.75f, true);
+
+  private long windowBytes = 0;
+  private long probationBytes = 0;
+  private long protectedBytes = 0;
+
+  //  The count-min sketch:  one row of counters per seed.
+
+  private final byte[][] counts;
+  private final int sampleSize;
+  private int additions = 0;
+
+  private IndexReader reader = null;	// The index that the lists are from
+
+  private long hits = 0;
+  private long misses = 0;
+  private long evictions = 0;
+
+  /**
+   *  A cached inverted list.
+   */
+  private static class Entry {
+    final String key;
+    final InvList list;
+    final long bytes;
+
+    Entry (String key, InvList list) {
+      this.key = key;
+      this.list = list;
+      this.bytes = list.ramBytesUsed ();
+    }
+  }
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  @param maxBytes The largest number of bytes of inverted lists
+   *  that the cache holds.
+   *  @throws IllegalArgumentException maxBytes is less than 1.
+   */
+  public PostingsCache (long maxBytes) {
+
+    if (maxBytes < 1) {
+      throw new IllegalArgumentException (
+        "The postings cache size must be positive, was " + maxBytes);
+    }
+
+    this.maxBytes = maxBytes;
+    this.windowMaxBytes = (long) (maxBytes * WINDOW_FRACTION);
+    this.protectedMaxBytes =
+      (long) ((maxBytes - this.windowMaxBytes) * PROTECTED_FRACTION);
+
+    long counters = Math.max (MIN_SKETCH_WIDTH,
+                              Math.min (MAX_SKETCH_WIDTH, maxBytes / 4096));
+    int width = Integer.highestOneBit ((int) counters);
+
+    this.counts = new byte[SEEDS.length][width];
+    this.sampleSize = 10 * width;
+  }
+
+  /**
+   *  Get the inverted list of a term from the cache, reading it from
+   *  the current index if it isn't cached.  The list has skip
+   *  pointers, and must not be modified.
+   *  @param term The processed (stemmed, lower-cased, etc) term string.
+   *  @param field The field that the term occurs in.
+   *  @return The inverted list.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public InvList get (String term, String field) throws IOException {
+
+    String key = field + '\0' + term;
+    IndexReader reader = Idx.INDEXREADER;
+
+    synchronized (this) {
+      if (this.reader != reader) {
+        this.clear ();
+        this.reader = reader;
+      }
+
+      this.increment (key);
+      Entry e = this.lookup (key);
+
+      if (e != null) {
+        this.hits++;
+        return e.list;
+      }
+
+      this.misses++;
+    }
+
+    InvList list = new InvList (term, field);
+    list.trimToSize ();
+    list.buildSkipPointers ();
+
+    synchronized (this) {
+      if ((this.reader == reader) &&
+          ! this.window.containsKey (key) &&
+          ! this.probation.containsKey (key) &&
+          ! this.protectedSegment.containsKey (key)) {
+        this.insert (new Entry (key, list));
+      }
+    }
+
+    return list;
+  }
+
+  /**
+   *  Find a cached list and record that it was used.  A list in the
+   *  probation segment is promoted to the protected segment, which
+   *  may demote that segment's least recently used lists.
+   */
+  private Entry lookup (String key) {
+
+    Entry e = this.window.get (key);
+
+    if (e != null)
+      return e;
+
+    e = this.protectedSegment.get (key);
+
+    if (e != null)
+      return e;
+
+    e = this.probation.remove (key);
+
+    if (e != null) {
+      this.probationBytes -= e.bytes;
+      this.protectedSegment.put (key, e);
+      this.protectedBytes += e.bytes;
+
+      while (this.protectedBytes > this.protectedMaxBytes) {
+        Entry demoted = removeEldest (this.protectedSegment);
+        this.protectedBytes -= demoted.bytes;
+        this.probation.put (demoted.key, demoted);
+        this.probationBytes += demoted.bytes;
+      }
+    }
+
+    return e;
+  }
+
+  /**
+   *  Add a list to the window.  Lists that fall out of the window
+   *  compete for the main space.
+   */
+  private void insert (Entry e) {
+
+    this.window.put (e.key, e);
+    this.windowBytes += e.bytes;
+
+    while (this.windowBytes > this.windowMaxBytes) {
+      Entry candidate = removeEldest (this.window);
+      this.windowBytes -= candidate.bytes;
+      this.admit (candidate);
+    }
+  }
+
+  /**
+   *  Move a list from the window to the probation segment if there is
+   *  room, or if it is requested more often than each of the least
+   *  recently used lists that must be evicted to make room for it.
+   *  Otherwise the list is evicted.
+   */
+  private void admit (Entry candidate) {
+
+    long mainMaxBytes = this.maxBytes - this.windowMaxBytes;
+    long needed = this.probationBytes + this.protectedBytes +
+                  candidate.bytes - mainMaxBytes;
+
+    if (candidate.bytes > mainMaxBytes) {
+      this.evictions++;
+      return;
+    }
+
+    if (needed > 0) {
+      int candidateFrequency = this.frequency (candidate.key);
+      List<Entry> victims = new ArrayList<Entry> ();
+      Iterator<Entry> probationLru = this.probation.values ().iterator ();
+      Iterator<Entry> protectedLru = this.protectedSegment.values ().iterator ();
+
+      while (needed > 0) {
+        Entry victim = probationLru.hasNext () ?
+          probationLru.next () : protectedLru.next ();
+
+        if (this.frequency (victim.key) >= candidateFrequency) {
+          this.evictions++;
+          return;
+        }
+
+        victims.add (victim);
+        needed -= victim.bytes;
+      }
+
+      for (Entry victim : victims) {
+        if (this.probation.remove (victim.key) != null) {
+          this.probationBytes -= victim.bytes;
+        } else {
+          this.protectedSegment.remove (victim.key);
+          this.protectedBytes -= victim.bytes;
+        }
+        this.evictions++;
+      }
+    }
+
+    this.probation.put (candidate.key, candidate);
+    this.probationBytes += candidate.bytes;
+  }
+
+  private static Entry removeEldest (LinkedHashMap<String,Entry> segment) {
+    Iterator<Entry> lru = segment.values ().iterator ();
+    Entry e = lru.next ();
+    lru.remove ();
+    return e;
+  }
+
+  /**
+   *  Remove every list, e.g., because the current index changed.
+   */
+  private void clear () {
+    this.window.clear ();
+    this.probation.clear ();
+    this.protectedSegment.clear ();
+    this.windowBytes = 0;
+    this.probationBytes = 0;
+    this.protectedBytes = 0;
+
+    for (byte[] row : this.counts) {
+      Arrays.fill (row, (byte) 0);
+    }
+    this.additions = 0;
+  }
+
+  //  --------------- Frequency sketch -----------------------------
+
+  private int indexOf (int hash, int row) {
+    long h = (hash + SEEDS[row]) * SEEDS[row];
+    h += (h >>> 32);
+    return ((int) h) & (this.counts[row].length - 1);
+  }
+
+  /**
+   *  Record a request for a key.  After sampleSize requests every
+   *  counter is halved.
+   */
+  private void increment (String key) {
+
+    int hash = key.hashCode ();
+
+    for (int row = 0; row < this.counts.length; row++) {
+      int i = this.indexOf (hash, row);
+
+      if (this.counts[row][i] < MAX_COUNT) {
+        this.counts[row][i]++;
+      }
+    }
+
+    if (++this.additions == this.sampleSize) {
+      for (byte[] row : this.counts) {
+        for (int i = 0; i < row.length; i++) {
+          row[i] = (byte) (row[i] >>> 1);
+        }
+      }
+      this.additions /= 2;
+    }
+  }
+
+  /**
+   *  Estimate the number of recent requests for a key.
+   */
+  private int frequency (String key) {
+
+    int hash = key.hashCode ();
+    int frequency = MAX_COUNT;
+
+    for (int row = 0; row < this.counts.length; row++) {
+      frequency = Math.min (frequency, this.counts[row][this.indexOf (hash, row)]);
+    }
+
+    return frequency;
+  }
+
+  //  --------------- Statistics -----------------------------------
+
+  /**
+   *  Get the number of requests that found their list in the cache.
+   *  @return The number of hits.
+   */
+  public synchronized long getHits () {
+    return this.hits;
+  }
+
+  /**
+   *  Get the number of requests that had to read their list from the
+   *  index.
+   *  @return The number of misses.
+   */
+  public synchronized long getMisses () {
+    return this.misses;
+  }
+
+  /**
+   *  Get the number of lists that were removed from the cache, or
+   *  not admitted to it, to stay within the budget.
+   *  @return The number of evictions.
+   */
+  public synchronized long getEvictions () {
+    return this.evictions;
+  }
+
+  /**
+   *  Get the number of bytes of lists in the cache.
+   *  @return The number of bytes.
+   */
+  public synchronized long getBytes () {
+    return this.windowBytes + this.probationBytes + this.protectedBytes;
+  }
+
+  /**
+   *  Describe the cache's use.
+   *  @return A one-line summary.
+   */
+  public synchronized String getStatistics () {
+    return String.format (
+      "Postings cache:  %d hits, %d misses, %d evictions, %.1f of %.1f MB used",
+      this.hits, this.misses, this.evictions,
+      this.getBytes () / 1048576.0, this.maxBytes / 1048576.0);
+  }
+}
@@ -4,6 +4,8 @@
 import java.io.*;
 import java.util.*;
 
+import org.apache.lucene.index.AtomicReaderContext;
+
 /**
  *  The root class in the query operator hierarchy.  Most of this
  *  class is abstract, because different <i>types</i> of query
@@ -106,6 +108,13 @@ public abstract class Qry {
   private boolean matchStored = false;	// Operators can cache matches
   private int matchingDocid;
 
+  /**
+   *  The union of the arguments' document iterators that
+   *  docIteratorHasMatchMin uses.  It is created when it is first
+   *  needed, and discarded when the arguments are initialized again.
+   */
+  protected QryUnionIterator unionIterator = null;
+
   //  --------------- Methods ---------------------------------------
 
   /**
@@ -200,12 +209,16 @@ public abstract class Qry {
    */
   public void docIteratorAdvancePast (int docid) {
 
+    if (this.unionIterator != null) {
+      this.unionIterator.advancePast (docid);
+    } else {
       for (Qry q_i: this.args) {
         q_i.docIteratorAdvancePast (docid);
       }
+    }
 
     this.docIteratorClearMatchCache ();
-    }
+  }
 
   /**
    *  Advance the internal document iterator to the specified
@@ -214,8 +227,12 @@ public abstract class Qry {
    */
   public void docIteratorAdvanceTo (int docid) {
     
-    for (Qry q_i: this.args) {
-      q_i.docIteratorAdvanceTo (docid);
+    if (this.unionIterator != null) {
+      this.unionIterator.advanceTo (docid);
+    } else {
+      for (Qry q_i: this.args) {
+        q_i.docIteratorAdvanceTo (docid);
+      }
     }
     
     this.docIteratorClearMatchCache ();
@@ -337,21 +354,12 @@ public abstract class Qry {
    */
   protected boolean docIteratorHasMatchMin (RetrievalModel r) {
 
-    int minDocid = Qry.INVALID_DOCID;
-
-    for (int i=0; i<this.args.size(); i++) {
-      Qry q_i = this.args.get(i);
-
-      if (q_i.docIteratorHasMatch (r)) {
-        int q_iDocid = q_i.docIteratorGetMatch ();
-
-        if ((minDocid > q_iDocid) ||
-            (minDocid == Qry.INVALID_DOCID)) {
-          minDocid = q_iDocid;
-        }
-      }
+    if (this.unionIterator == null) {
+      this.unionIterator = new QryUnionIterator (this.args);
     }
 
+    int minDocid = this.unionIterator.nextDocid (r);
+
     if (minDocid != Qry.INVALID_DOCID) {
       docIteratorSetMatchCache (minDocid);
       return true;
@@ -405,6 +413,19 @@ public abstract class Qry {
    */
   public abstract void initialize(RetrievalModel r) throws IOException;
 
+  /**
+   *  Restrict the query operator (and its arguments) to one segment
+   *  (leaf) of the index, so that several copies of a query can
+   *  evaluate different parts of the index in parallel.  Call it
+   *  before initialize.  Document ids remain global.
+   *  @param leaf The index segment to evaluate.
+   */
+  public void setLeaf (AtomicReaderContext leaf) {
+    for (Qry q_i: this.args) {
+      q_i.setLeaf (leaf);
+    }
+  }
+
   /**
    *  Removes an argument from the list of query operator arguments.
    *  @param i The index of the query operator to remove.
@@ -422,6 +443,31 @@ public abstract class Qry {
     this.displayName = new String (name);
   }
 
+  /**
+   *  Get a canonical string version of this query operator, which is
+   *  the same for queries that are evaluated the same way, e.g., to
+   *  identify a query in a cache.  Unlike toString, operator names
+   *  are lower-cased and the argument weights of weighted operators
+   *  (#WAND and #WSUM) are included.  Call it on an optimized query.
+   *  @return The canonical string version of this query operator.
+   */
+  public String getCanonicalForm () {
+
+    boolean weighted = (this instanceof QrySopWAnd) || (this instanceof QrySopWSum);
+    StringBuilder result = new StringBuilder ();
+    result.append (this.displayName.toLowerCase ()).append ("(");
+
+    for (Qry q_i : this.args) {
+      result.append (' ');
+      if (weighted) {
+        result.append (q_i.getWeight ()).append (' ');
+      }
+      result.append (q_i.getCanonicalForm ());
+    }
+
+    return result.append (" )").toString ();
+  }
+
   /**
    *  Get a string version of this query operator.  This is a generic
    *  method that works for most query operators.  However, some query
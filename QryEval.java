@@ -5,6 +5,8 @@
 import java.io.*;
 import java.lang.reflect.Array;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.lucene.analysis.Analyzer.TokenStreamComponents;
 import org.apache.lucene.analysis.TokenStream;
@@ -32,6 +34,44 @@ public class QryEval {
   private static final String[] TEXT_FIELDS =
     { "body", "title", "url", "inlink" };
 
+  /**
+   *  The number of documents written to the trec_eval output file for
+   *  each query.
+   */
+  static final int OUTPUT_LENGTH = 100;
+
+  /**
+   *  When it is not null, processQuery evaluates each index segment
+   *  on a separate worker of this pool.  See the segmentThreads
+   *  parameter.
+   */
+  private static ForkJoinPool segmentPool = null;
+
+  /**
+   *  When it is not null, processQuery returns cached results for
+   *  queries that it has already evaluated.  See the queryCacheSize
+   *  parameter.
+   */
+  private static QueryResultCache resultCache = null;
+
+  /**
+   *  The stages that the queries of the last query file went through,
+   *  and their times, which are reported at the end of the run.
+   *  processQueryFileNew builds a new pipeline for each query file;
+   *  learning to rank only records its times here.
+   */
+  static RankingPipeline pipeline = new RankingPipeline();
+
+  /**
+   *  The number of documents that dynamic pruning (see the
+   *  BM25:pruning and Indri:pruning parameters) scored, and the number
+   *  of candidate documents that it rejected without scoring them, in
+   *  all queries.  Documents that only non-essential arguments match
+   *  are never candidates, so they aren't counted in either.
+   */
+  private static final AtomicLong documentsScored = new AtomicLong ();
+  private static final AtomicLong documentsSkipped = new AtomicLong ();
+
 
   //  --------------- Methods ---------------------------------------
 
@@ -62,16 +102,67 @@ public class QryEval {
 
     //  Open the index and initialize the retrieval model.
 
+    if (parameters.containsKey ("docLengths")) {
+      DocLengthStore.setDefaultMode (parameters.get ("docLengths"));
+    }
+
     Idx.open (parameters.get ("indexPath"));
     RetrievalModel model = initializeRetrievalModel (parameters);
 
+    if (parameters.containsKey ("docLengths")) {
+      System.out.print (Idx.getDocLengthFootprint ());
+    }
+
+    //  Terms can stream their postings from the index instead of
+    //  copying them into an InvList first.
+
+    QryIopTerm.setStreaming (parameters.containsKey ("streamingTerms") &&
+                             parameters.get ("streamingTerms").equals ("true"));
+
+    //  Terms' inverted lists can be shared across queries.
+
+    if (parameters.containsKey ("postingsCacheMB")) {
+      QryIopTerm.setPostingsCache (new PostingsCache (
+        Long.parseLong (parameters.get ("postingsCacheMB")) * 1024 * 1024));
+    }
+
+    //  Query results can be reused when a query is evaluated again.
+
+    if (parameters.containsKey ("queryCacheSize")) {
+      resultCache = new QueryResultCache (
+        Integer.parseInt (parameters.get ("queryCacheSize")));
+    }
+
+    //  Feedback and feature extraction can read term vectors from
+    //  forward indexes instead of Lucene term vectors.
+
+    if (parameters.containsKey ("forwardIndexFields")) {
+      boolean withLocations =
+        parameters.containsKey ("forwardIndexLocations") &&
+        parameters.get ("forwardIndexLocations").equals ("true");
+
+      for (String field : parameters.get ("forwardIndexFields").split (",")) {
+        Idx.openForwardIndex (parameters.get ("indexPath"), field.trim (),
+                              withLocations);
+      }
+    }
+
+    //  A query can be evaluated in parallel, one index segment per
+    //  worker.
+
+    if (parameters.containsKey ("segmentThreads")) {
+      setSegmentThreads (Integer.parseInt (parameters.get ("segmentThreads")));
+    }
+
     // Call learning to rank class
     if (model instanceof RetrievalModelLETOR){
 
       LearningToRank obj = new LearningToRank(parameters,true);
 
       //fit and transform model on training data
+      long start = System.nanoTime();
       obj.fit_transform();
+      pipeline.addTime("train", System.nanoTime() - start);
       obj.transform();
 
       // predict value of test data
@@ -80,6 +171,30 @@ public class QryEval {
       processQueryFileNew(parameters, model);
     }
 
+    String pruning = "none";
+
+    if (model instanceof RetrievalModelBM25) {
+      pruning = ((RetrievalModelBM25) model).getPruning ();
+    } else if (model instanceof RetrievalModelIndri) {
+      pruning = ((RetrievalModelIndri) model).getPruning ();
+    }
+
+    if (! pruning.equals ("none")) {
+      System.out.println ("Documents scored with " + pruning + " pruning:  " +
+                          documentsScored.get () + ", candidates skipped:  " +
+                          documentsSkipped.get ());
+    }
+
+    if (QryIopTerm.getPostingsCache () != null) {
+      System.out.println (QryIopTerm.getPostingsCache ().getStatistics ());
+    }
+
+    if (resultCache != null) {
+      System.out.println (resultCache.getStatistics ());
+    }
+
+    System.out.println (pipeline.getTimingReport ());
+
 
     //  Perform experiments.
     
@@ -91,11 +206,22 @@ public class QryEval {
   }
 
 
-  static void processQueryFileNew(Map<String, String> parameters,
-                               RetrievalModel model)
+  /**
+   *  Process the query file.  Queries are independent, so when the
+   *  numThreads parameter is greater than 1 they are evaluated
+   *  concurrently, each with its own query tree.  The results of each
+   *  query are buffered and written in query file order, so the
+   *  output doesn't depend on the number of threads.
+   *  @param parameters The parameters from the parameter file.
+   *  @param model The retrieval model.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  static void processQueryFileNew(final Map<String, String> parameters,
+                               final RetrievalModel model)
           throws IOException {
 
     BufferedReader input = null;
+    ExecutorService pool = null;
 
     try {
       String qLine = null;
@@ -111,64 +237,204 @@ public class QryEval {
         expanded_out = new PrintWriter(parameters.get("fbExpansionQueryFile"));
       }
 
+      // read the initial rankings and intents once, before the queries
+      // that share them start
+      boolean fb = parameters.containsKey("fb") && !parameters.get("fb").equals("false");
+      boolean diversity = parameters.containsKey("diversity") && !parameters.get("diversity").equals("false");
+      TrecRunFile fbInitialRanking = null;
+      TrecRunFile diversityInitialRanking = null;
+      HashMap<String, List<String>> intentsByQid = null;
+
+      if (fb && parameters.containsKey("fbInitialRankingFile")) {
+        fbInitialRanking = new TrecRunFile(parameters.get("fbInitialRankingFile"));
+      }
+      if (diversity) {
+        if (parameters.containsKey("diversity:initialRankingFile")) {
+          diversityInitialRanking =
+            new TrecRunFile(parameters.get("diversity:initialRankingFile"));
+        } else if (parameters.containsKey("diversity:intentsFile")) {
+          intentsByQid = readIntents(parameters.get("diversity:intentsFile"));
+        }
+      }
+
+      final RankingPipeline stages = new RankingPipeline();
+      addStages(stages, parameters, model, fbInitialRanking,
+                diversityInitialRanking, intentsByQid);
+      pipeline = stages;
+
+      int numThreads = parameters.containsKey("numThreads") ?
+        Integer.parseInt(parameters.get("numThreads")) : 1;
+      pool = Executors.newFixedThreadPool(Math.max(1, numThreads));
+
+      // each query is submitted as soon as it is read; its output
+      // (result lines and expansion line) comes back as two strings
+      List<Future<String[]>> results = new ArrayList<Future<String[]>>();
+      IllegalArgumentException syntaxError = null;
+
       while ((qLine = input.readLine()) != null) {
 
         int d = qLine.indexOf(':');
         if (d < 0) {
-          throw new IllegalArgumentException
+          syntaxError = new IllegalArgumentException
                   ("Syntax error:  Missing ':' in query line.");
+          break;
         }
-        String qid = qLine.substring(0, d);
-        String query = qLine.substring(d + 1);
-        ScoreList r = null;
+        final String qid = qLine.substring(0, d);
+        final String query = qLine.substring(d + 1);
+
+        results.add(pool.submit(new Callable<String[]>() {
+          public String[] call() {
+            StringWriter result = new StringWriter();
+            StringWriter expansion = new StringWriter();
+            processQueryLine(stages, qid, query,
+                             new PrintWriter(result),
+                             new PrintWriter(expansion));
+            return new String[] { result.toString(), expansion.toString() };
+          }
+        }));
+      }
 
-        // based on value of fbexpansion check if expansion is needed or not
-        if (!parameters.containsKey("fb") || parameters.get("fb").equals("false")){
-          r = processQuery(query, model);
-        }else{
-          r = getExpandedRanking(parameters, qid, expanded_out, query, model);
+      for (Future<String[]> f : results) {
+        String[] text = f.get();
+        out.print(text[0]);
+        if (expanded_out != null) {
+          expanded_out.print(text[1]);
         }
+      }
 
-        // perform diversification
-        if (!parameters.containsKey("diversity") || parameters.get("diversity").equals("false")){
-          r = processQuery(query, model);
-        }else{
-          r = getDiversifiedRanking(parameters, qid, query, model);
+      if (parameters.containsKey("fbExpansionQueryFile")) {
+        expanded_out.close();
+      }
+      out.close();
 
-        }
+      if (syntaxError != null) {
+        throw syntaxError;
+      }
+    } catch (Exception ex) {
+      ex.printStackTrace();
+    } finally {
+      if (pool != null) {
+        pool.shutdown();
+      }
+      input.close();
+    }
+  }
 
+  /**
+   *  Add the stages that each query goes through to a pipeline:
+   *  initial retrieval, relevance feedback (if the fb parameter is
+   *  true), diversification (if the diversity parameter is true), and
+   *  output.  Each stage retrieves only as many documents as the next
+   *  stage uses.
+   *  @param pipeline The pipeline, which has no stages yet.
+   *  @param parameters The parameters from the parameter file.
+   *  @param model The retrieval model.
+   *  @param fbInitialRanking The initial rankings for feedback (see
+   *  fbInitialRankingFile), or null to retrieve them.
+   *  @param diversityInitialRanking The rankings of the queries and
+   *  their intents for diversification (see
+   *  diversity:initialRankingFile), or null to retrieve them.
+   *  @param intentsByQid The intents of each query (see
+   *  diversity:intentsFile), used if diversityInitialRanking is null.
+   */
+  private static void addStages(RankingPipeline pipeline,
+                                final Map<String, String> parameters,
+                                final RetrievalModel model,
+                                final TrecRunFile fbInitialRanking,
+                                final TrecRunFile diversityInitialRanking,
+                                final HashMap<String, List<String>> intentsByQid) {
+
+    final boolean fb = parameters.containsKey("fb") && !parameters.get("fb").equals("false");
+    final boolean diversity = parameters.containsKey("diversity") && !parameters.get("diversity").equals("false");
+
+    // the number of documents that diversification or output uses
+    final int k = diversity ?
+      Integer.parseInt(parameters.get("diversity:maxInputRankingsLength")) : OUTPUT_LENGTH;
+
+    pipeline.add(new RankingPipeline.Stage("retrieve") {
+      public ScoreList apply(RankingPipeline.Request request, ScoreList r) throws Exception {
+        if (fb) {
+          // only the top fbDocs documents are used for feedback
+          int fbDocs = Integer.parseInt(parameters.get("fbDocs"));
+          return (fbInitialRanking != null) ?
+            fbInitialRanking.getRanking(request.qid, fbDocs) :
+            processQuery(request.query, model, fbDocs);
+        } else if (diversity && diversityInitialRanking != null) {
+          return diversityInitialRanking.getRanking(request.qid, Integer.MAX_VALUE);
+        } else {
+          return processQuery(request.query, model, k);
+        }
+      }
+    });
 
+    if (fb) {
+      pipeline.add(new RankingPipeline.Stage("expand") {
+        public ScoreList apply(RankingPipeline.Request request, ScoreList r) throws Exception {
+          return getExpandedRanking(parameters, request.qid, request.expansionOut,
+                                    request.query, model, r, k);
+        }
+      });
+    }
 
-        try {
+    if (diversity) {
+      pipeline.add(new RankingPipeline.Stage("diversify") {
+        public ScoreList apply(RankingPipeline.Request request, ScoreList r) throws Exception {
+          r = getDiversifiedRanking(parameters, request.qid, request.query, model, r,
+                                    diversityInitialRanking, intentsByQid);
           if (r != null) {
             r.sort();
-            if (r.size() < 1) {
-              out.print(qid + " Q0 " + "dummy" + " " + 1 +" "+ 0 + " agaur\n");
-            } else {
-              int max_size = 100;
-              int loop = max_size < r.size() ? max_size : r.size();
-              for (int i = 0; i < loop; i++) {
-                out.print(qid + " Q0 " + Idx.getExternalDocid(r.getDocid(i)) + " " + (i+1) +" "+ r.getDocidScore(i) + " agaur\n");
-              }
-            }
           }
+          return r;
+        }
+      });
+    }
 
-        } catch (Exception e) {
-          e.printStackTrace();
+    // rankings from retrieval and feedback are already sorted
+    pipeline.add(new RankingPipeline.Stage("output") {
+      public ScoreList apply(RankingPipeline.Request request, ScoreList r) throws Exception {
+        if (r != null) {
+          if (r.size() < 1) {
+            request.out.print(request.qid + " Q0 " + "dummy" + " " + 1 +" "+ 0 + " agaur\n");
+          } else {
+            int loop = OUTPUT_LENGTH < r.size() ? OUTPUT_LENGTH : r.size();
+            for (int i = 0; i < loop; i++) {
+              request.out.print(request.qid + " Q0 " + Idx.getExternalDocid(r.getDocid(i)) + " " + (i+1) +" "+ r.getDocidScore(i) + " agaur\n");
+            }
+          }
         }
+        return r;
       }
-      if (parameters.containsKey("fbExpansionQueryFile")) {
-        expanded_out.close();
-      }
-      out.close();
-    } catch (Exception ex) {
-      ex.printStackTrace();
+    });
+  }
+
+  /**
+   *  Evaluate one query from the query file and print its results.
+   *  This only uses state that belongs to the query, so it may run
+   *  concurrently with other queries.
+   *  @param pipeline The stages that the query goes through.
+   *  @param qid The query id.
+   *  @param query The query string.
+   *  @param out Where the trec_eval results are printed.
+   *  @param expanded_out Where the expanded query is printed.
+   */
+  private static void processQueryLine(RankingPipeline pipeline,
+                                       String qid, String query,
+                                       PrintWriter out,
+                                       PrintWriter expanded_out) {
+
+    try {
+      pipeline.run(new RankingPipeline.Request(qid, query, out, expanded_out));
+    } catch (Exception e) {
+      e.printStackTrace();
     } finally {
-      input.close();
+      out.flush();
+      expanded_out.flush();
     }
   }
 
-  private static ScoreList getDiversifiedRanking(Map<String, String> parameters, String qid, String query, RetrievalModel model) throws IOException {
+  private static ScoreList getDiversifiedRanking(Map<String, String> parameters, String qid, String query, RetrievalModel model, ScoreList initial,
+                                                 TrecRunFile diversityInitialRanking,
+                                                 HashMap<String, List<String>> intentsByQid) throws IOException {
 
 
     ScoreList r = null;
@@ -178,50 +444,35 @@ public class QryEval {
 
       HashMap<String, ScoreList> qiScore = new HashMap<>();
       ArrayList<String> queryIntents = new ArrayList<>();
-      if (parameters.containsKey("diversity:initialRankingFile")) {
-
-        r = new ScoreList();
-
-        String line = null;
-        String[] pair = null;
-        BufferedReader docFile = new BufferedReader(new FileReader(parameters.get("diversity:initialRankingFile")));
-        while ((line = docFile.readLine()) != null) {
-
-          pair = line.split(" ");
-          String currqid;
-          if (pair[0].contains(".")) {
-            currqid = pair[0].split("\\.")[0];
-          } else {
-            currqid = pair[0];
-          }
-
-          if (qid.equals(currqid)) {
-            if (!qiScore.containsKey(pair[0])) {
-              r = new ScoreList();
-              qiScore.put(pair[0], r);
-              if ( !queryIntents.contains(pair[0])){
-                queryIntents.add(pair[0]);
-              }
-            }
-            r.add(Idx.getInternalDocid(pair[2]), Double.parseDouble(pair[4]));
+      // the query's ranking comes from the previous stage
+      if (diversityInitialRanking != null) {
+
+        // its intents' rankings, e.g. "10.1", "10.2", in the order
+        // that they are in the file
+        queryIntents.add(qid);
+        qiScore.put(qid, initial);
+        for (String id : diversityInitialRanking.getQids(qid)) {
+          if (!qiScore.containsKey(id)) {
+            r = diversityInitialRanking.getRanking(id, Integer.MAX_VALUE);
+            qiScore.put(id, r);
+            queryIntents.add(id);
           }
         }
       }else{
 
+        // only the top maxInputRankingsLength documents of each
+        // ranking are diversified
+        int maxInput = Integer.parseInt(parameters.get("diversity:maxInputRankingsLength"));
         queryIntents.add(query);
-        BufferedReader intentFile = new BufferedReader(new FileReader(parameters.get("diversity:intentsFile")));
-        String qIntent;
-        while ((qIntent = intentFile.readLine()) != null) {
-          String[] pair = qIntent.split("\\.");
-          if ( pair[0].equals(qid)){
-            int d = qIntent.indexOf(':');
-            queryIntents.add(qIntent.substring(d + 1));
-          }
-
+        qiScore.put(query, initial);
+        if (intentsByQid.containsKey(qid)) {
+          queryIntents.addAll(intentsByQid.get(qid));
         }
         for (String q : queryIntents){
-          r = processQuery(q, model);
-          qiScore.put(q, r);
+          if (!qiScore.containsKey(q)) {
+            r = processQuery(q, model, maxInput);
+            qiScore.put(q, r);
+          }
         }
       }
 
@@ -393,46 +644,17 @@ public class QryEval {
     r.add(maxdocid,max);
   }
 
-  private static ScoreList getExpandedRanking(Map<String, String> parameters, String qid, PrintWriter expanded_out, String query, RetrievalModel model) throws IOException{
+  /**
+   *  Expand a query with pseudo relevance feedback, and evaluate the
+   *  expanded query.
+   *  @param r The initial ranking, whose top fbDocs documents are used.
+   *  @param k The number of documents to return.
+   *  @return The ranking of the expanded query.
+   */
+  private static ScoreList getExpandedRanking(Map<String, String> parameters, String qid, PrintWriter expanded_out, String query, RetrievalModel model, ScoreList r, int k) throws IOException{
 
-    ScoreList r = null;
     try {
 
-      // check which reference system is to be used for getting documents to expand query
-      if (parameters.containsKey("fbInitialRankingFile")) {
-
-        // read a document ranking in trec_eval input format from the fbInitialRankingFile
-        File parameterFile = new File(parameters.get("fbInitialRankingFile"));
-        r = new ScoreList();
-        Scanner scan = new Scanner(parameterFile);
-        String line = null;
-        String[] pair = null;
-        for (int i = 0; i < Integer.parseInt(parameters.get("fbDocs")); i++) {
-
-          if (!scan.hasNext()) {
-            break;
-          }
-          line = scan.nextLine();
-          pair = line.split(" ");
-
-          while (scan.hasNext() && !pair[0].equals(qid)) {
-            line = scan.nextLine();
-            pair = line.split(" ");
-          }
-
-          if (!scan.hasNext()) {
-            break;
-          }
-
-          r.add(Idx.getInternalDocid(pair[2]), Double.parseDouble(pair[4]));
-
-        }
-        scan.close();
-
-      } else {
-        r = processQuery(query, model);
-      }
-
       HashMap<String, Double> q_learned = createLearnedQuery(r, parameters);
       double weight = Double.parseDouble(parameters.get("fbOrigWeight"));
 
@@ -450,7 +672,7 @@ public class QryEval {
         expanded_out.println(qid + ": " + q_learned_str);
       }
       //System.out.println(q_expanded);
-      r = processQuery(q_expanded.toString(), model);
+      r = processQuery(q_expanded.toString(), model, k);
 //      return r;
     }catch (Exception ex) {
       ex.printStackTrace();
@@ -459,70 +681,48 @@ public class QryEval {
   }
 
   /**
-   *  This method will used the scorelist of the documents to find top fbTerms for creating learned query.
-   *  @param : Scorelist r: contains list of documents with their corresponding score
-   *  @param : parameters: Hashmap containing entries of the input file
-   *  @return : hashmap containing top fbTerms with their corresponding score in sorted(decreasing) order
+   *  Read the intents file.  Each line is "qid.n:query", where qid is
+   *  the query's id, n numbers the intent, and query is the intent's
+   *  query string.
+   *  @param intentsFile The path of the intents file.
+   *  @return The intents' query strings of each qid, in file order.
+   *  @throws IOException Error accessing the intents file.
    */
-  private static HashMap<String, Double> createLearnedQuery(ScoreList r, Map<String, String> parameters) throws IOException{
+  private static HashMap<String, List<String>> readIntents(String intentsFile) throws IOException {
 
-    HashMap<String, Double> map = new HashMap<String, Double>();
-
-    // consider whichever is smaller between fbdocs and docs in scorelist
-    // traverse for these docs and store all the terms apperaing in these docs in a map
-    int loop = r.size() < Integer.parseInt(parameters.get("fbDocs")) ? r.size() : Integer.parseInt(parameters.get("fbDocs"));
-    for (int i = 0; i < loop; i++){
-      int doc_id = r.getDocid(i);
-      TermVector obj = new TermVector(doc_id,"body");
-      for (int j = 1; j < obj.stemsLength(); j++){
-        String stem = obj.stemString(j);
-        if (stem.contains(".") || stem.contains(",")){
-          continue;
-        }
-        map.put(stem,0.0);
-      }
-    }
-    // calculate the score for each of these terms using the Pseudo relevance feedback formula of Indri
-    for(int i = 0; i < loop; i++){
+    HashMap<String, List<String>> intents = new HashMap<String, List<String>>();
+    BufferedReader intentFile = new BufferedReader(new FileReader(intentsFile));
 
-      int doc_id = r.getDocid(i);
-      TermVector obj = new TermVector(doc_id,"body");
-      for (String stem : map.keySet()){
-        int index = obj.indexOfStem(stem);
-        int tf;
-        if( index == -1){
-          tf = 0;
-        }else{
-          tf = obj.stemFreq(index);
+    try {
+      String qIntent;
+      while ((qIntent = intentFile.readLine()) != null) {
+        String qid = qIntent.split("\\.")[0];
+        if (!intents.containsKey(qid)) {
+          intents.put(qid, new ArrayList<String>());
         }
-        int len = Idx.getFieldLength("body", doc_id);
-        float mu = Float.parseFloat(parameters.get("fbMu"));
-        float probTermC = Idx.getTotalTermFreq("body", stem)/(float) Idx.getSumOfFieldLengths("body");
-        float probTermDoc = (tf + mu * probTermC )/( len + mu );
-        double probID = r.getDocidScore(i);
-        double probTermI = probTermDoc * probID * Math.log(1/probTermC);
-
-        map.put(stem, map.get(stem) + probTermI);
+        int d = qIntent.indexOf(':');
+        intents.get(qid).add(qIntent.substring(d + 1));
       }
+    } finally {
+      intentFile.close();
     }
-    // sort the hash map
-    List<Map.Entry<String, Double>> list = new LinkedList<Map.Entry<String, Double>>(map.entrySet());
-    Collections.sort(list, new Comparator<Map.Entry<String, Double>>() {
-      public int compare(Map.Entry<String, Double> o1,
-                         Map.Entry<String, Double> o2) {
-        return (o2.getValue()).compareTo(o1.getValue());
-      }
-    });
-
-    map = new HashMap<String, Double>();
-    //only store top m terms in the map
-    int loop_var = Integer.parseInt(parameters.get("fbTerms")) < list.size() ? Integer.parseInt(parameters.get("fbTerms")) : list.size() ;
-    for (int i = 0; i < loop_var; i++){
+    return intents;
+  }
 
-      map.put(list.get(i).getKey(), list.get(i).getValue());
-    }
+  /**
+   *  This method will used the scorelist of the documents to find top fbTerms for creating learned query.
+   *  @param : Scorelist r: contains list of documents with their corresponding score
+   *  @param : parameters: Hashmap containing entries of the input file
+   *  @return : hashmap containing top fbTerms with their corresponding score in sorted(decreasing) order
+   */
+  private static HashMap<String, Double> createLearnedQuery(ScoreList r, Map<String, String> parameters) throws IOException{
 
-    return map;
+    FeedbackTermScorer scorer =
+      new FeedbackTermScorer(Integer.parseInt(parameters.get("fbDocs")),
+                             Integer.parseInt(parameters.get("fbTerms")),
+                             Float.parseFloat(parameters.get("fbMu")),
+                             "body");
+    return scorer.getExpansionTerms(r);
   }
 
   /**
@@ -548,11 +748,39 @@ public class QryEval {
       float b = Float.parseFloat(parameters.get("BM25:b"));
       model = new RetrievalModelBM25(k_1, b, k_3);
 
+      if (parameters.containsKey("BM25:pruning")) {
+        ((RetrievalModelBM25) model).setPruning(parameters.get("BM25:pruning"));
+      }
+
+      if (((RetrievalModelBM25) model).getPruning().equals("blockmax")) {
+        Idx.openBlockMaxIndex(parameters.get("indexPath"), k_1, b);
+      }
+
     } else if (modelString.equals("indri")) {
 
       float mu =  Float.parseFloat(parameters.get("Indri:mu"));
       float lambda =  Float.parseFloat(parameters.get("Indri:lambda"));
       model = new RetrievalModelIndri(mu, lambda);
+      ((RetrievalModelIndri) model).setLogSpace(parameters.containsKey("Indri:logSpace") &&
+                                                parameters.get("Indri:logSpace").equals("true"));
+
+      //  Pruning needs log space.
+
+      if (parameters.containsKey("Indri:pruning")) {
+        ((RetrievalModelIndri) model).setPruning(parameters.get("Indri:pruning"));
+        if (! parameters.get("Indri:pruning").equals("none")) {
+          ((RetrievalModelIndri) model).setLogSpace(true);
+
+          //  The bounds use the block-max index's tf / doclen, which
+          //  doesn't depend on the BM25 parameters that are its key.
+
+          float k_1 = parameters.containsKey("BM25:k_1") ?
+            Float.parseFloat(parameters.get("BM25:k_1")) : 1.2f;
+          float b = parameters.containsKey("BM25:b") ?
+            Float.parseFloat(parameters.get("BM25:b")) : 0.75f;
+          Idx.openBlockMaxIndex(parameters.get("indexPath"), k_1, b);
+        }
+      }
 
     } else if (modelString.equals("letor")){
       model = new RetrievalModelLETOR();
@@ -588,6 +816,21 @@ public class QryEval {
 
 
 
+  /**
+   *  Set the number of workers that evaluate the index segments of a
+   *  query in parallel (see the segmentThreads parameter).
+   *  @param threads The number of workers, or 0 to evaluate a query's
+   *  segments together, in the calling thread.
+   */
+  static void setSegmentThreads (int threads) {
+
+    if (segmentPool != null) {
+      segmentPool.shutdown ();
+    }
+
+    segmentPool = (threads > 0) ? new ForkJoinPool (threads) : null;
+  }
+
   /**
    * Process one query.
    * @param qString A string that contains a query.
@@ -597,6 +840,25 @@ public class QryEval {
    */
   static ScoreList processQuery(String qString, RetrievalModel model)
     throws IOException {
+    return processQuery(qString, model, 0);
+  }
+
+  /**
+   * Process one query, keeping only the top k documents.  The result
+   * is the same as the first k entries of the full ranking, but the
+   * documents that can't make the top k are discarded as they are
+   * scored instead of being stored and sorted.  If there is a result
+   * cache (see the queryCacheSize parameter), a query that was already
+   * evaluated with the same model parameters and k isn't evaluated
+   * again.
+   * @param qString A string that contains a query.
+   * @param model The retrieval model determines how matching and scoring is done.
+   * @param k The number of documents to return, or 0 for all of them.
+   * @return Search results, sorted
+   * @throws IOException Error accessing the index
+   */
+  static ScoreList processQuery(String qString, RetrievalModel model, int k)
+    throws IOException {
 
     String defaultOp = model.defaultQrySopName ();
     qString = defaultOp + "(" + qString + ")";
@@ -606,29 +868,292 @@ public class QryEval {
     
     //System.out.println("    --> " + q);
     
-    if (q != null) {
+    if ((q != null) && (resultCache != null)) {
+      String key = QueryResultCache.getKey (q, model, k);
+      ScoreList r = resultCache.get (key);
 
-      ScoreList r = new ScoreList ();
-      
-      if (q.args.size () > 0) {		// Ignore empty queries
+      if (r == null) {
+        r = evaluateParsedQuery (q, qString, model, k);
+        resultCache.put (key, r);
+      }
+
+      return r;
+    }
 
-        q.initialize (model);
+    return (q != null) ? evaluateParsedQuery (q, qString, model, k) : null;
+  }
 
-        while (q.docIteratorHasMatch (model)) {
-          int docid = q.docIteratorGetMatch ();
-          double score = ((QrySop) q).getScore (model);
-          r.add (docid, score);
-          q.docIteratorAdvancePast (docid);
+  /**
+   * Evaluate a parsed query, keeping only the top k documents.
+   * @param q The optimized query.
+   * @param qString The query string that q was parsed from, including
+   * the default query operator.
+   * @param model The retrieval model determines how matching and scoring is done.
+   * @param k The number of documents to return, or 0 for all of them.
+   * @return Search results, sorted
+   * @throws IOException Error accessing the index
+   */
+  private static ScoreList evaluateParsedQuery(Qry q, String qString,
+                                               RetrievalModel model, int k)
+    throws IOException {
+
+    ScoreList r = new ScoreList ();
+    TopKCollector topK = (k > 0) ? new TopKCollector (k) : null;
+
+    if (q.args.size () > 0) {		// Ignore empty queries
+
+      if ((segmentPool != null) && (Idx.INDEXREADER.leaves ().size () > 1)) {
+        return toProbabilities (processQueryByLeaf (qString, model, k), model);
+      }
+
+      q.initialize (model);
+      evaluateQuery (q, model, topK, r);
+    }
+
+    if (topK != null) {
+      return toProbabilities (topK.getScoreList (), model);
+    }
+
+    r.sort();
+    return toProbabilities (r, model);
+  }
+
+  /**
+   *  Indri queries that are evaluated in log space (see the
+   *  Indri:logSpace parameter) produce log probabilities, which are
+   *  converted to probabilities only here, once the ranking is done.
+   *  exp is monotonic, so the order doesn't change.
+   *  @param r Search results.
+   *  @param model The retrieval model that produced them.
+   *  @return The search results, with probabilities as scores.
+   */
+  private static ScoreList toProbabilities(ScoreList r, RetrievalModel model) {
+
+    if ((model instanceof RetrievalModelIndri) &&
+        ((RetrievalModelIndri) model).isLogSpace ()) {
+      for (int i = 0; i < r.size (); i++) {
+        r.setDocidScore (i, Math.exp (r.getDocidScore (i)));
+      }
+    }
+
+    return r;
+  }
+
+  /**
+   *  Score every document that an initialized query matches.
+   *  @param q An initialized query.
+   *  @param model The retrieval model.
+   *  @param topK Collects the scores, if it is not null.
+   *  @param r Collects the scores, if topK is null.
+   *  @throws IOException Error accessing the index
+   */
+  private static void evaluateQuery(Qry q, RetrievalModel model,
+                                    TopKCollector topK, ScoreList r)
+    throws IOException {
+
+    if ((topK != null) && (q instanceof QrySopSum) &&
+        ((QrySopSum) q).canUsePruning (model)) {
+      if (((RetrievalModelBM25) model).getPruning ().equals ("blockmax")) {
+        documentsSkipped.addAndGet (((QrySopSum) q).evaluateBlockMaxWand (model, topK));
+      } else {
+        documentsSkipped.addAndGet (((QrySopSum) q).evaluateMaxScore (model, topK));
+      }
+      documentsScored.addAndGet (topK.getNumOffered ());
+      return;
+    }
+
+    if ((topK != null) && (q instanceof QrySop) &&
+        ((QrySop) q).canUseIndriPruning (model)) {
+      documentsSkipped.addAndGet (((QrySop) q).evaluateIndriMaxScore (model, topK));
+      documentsScored.addAndGet (topK.getNumOffered ());
+      return;
+    }
+
+    //  Score with the compiled plan if the model and every operator in
+    //  the query support it.
+
+    QryScorer scorer = ((QrySop) q).compile (model);
+
+    while (q.docIteratorHasMatch (model)) {
+      int docid = q.docIteratorGetMatch ();
+      double score = (scorer != null) ?
+        scorer.score (docid) : ((QrySop) q).getScore (model);
+      if (topK != null) {
+        topK.add (docid, score);
+      } else {
+        r.add (docid, score);
+      }
+      q.docIteratorAdvancePast (docid);
+    }
+  }
+
+  /**
+   * Process one query by evaluating each index segment (leaf) on a
+   * separate worker of the segment pool.  Each leaf gets its own copy
+   * of the query tree, which reads only that leaf's postings but uses
+   * global docids.  After the trees are initialized, the df and ctf
+   * of each inverted list operator are summed across leaves, so the
+   * scores are the same as when the whole index is evaluated at once.
+   * The per-leaf rankings are then merged.
+   * @param qString A query string that includes the default operator.
+   * @param model The retrieval model determines how matching and scoring is done.
+   * @param k The number of documents to return, or 0 for all of them.
+   * @return Search results, sorted
+   * @throws IOException Error accessing the index
+   */
+  private static ScoreList processQueryByLeaf(String qString,
+                                              final RetrievalModel model,
+                                              final int k)
+    throws IOException {
+
+    List<AtomicReaderContext> leaves = Idx.INDEXREADER.leaves ();
+    final Qry[] trees = new Qry[leaves.size ()];
+
+    for (int i = 0; i < trees.length; i++) {
+      trees[i] = QryParser.getQuery (qString);
+      trees[i].setLeaf (leaves.get (i));
+    }
+
+    //  Read the inverted lists of every leaf.
+
+    List<Callable<ScoreList>> tasks = new ArrayList<Callable<ScoreList>> ();
+
+    for (final Qry tree : trees) {
+      tasks.add (new Callable<ScoreList> () {
+        public ScoreList call () throws IOException {
+          tree.initialize (model);
+          return null;
+        }
+      });
+    }
+
+    invokeAll (tasks);
+    aggregateStatistics (trees, model);
+
+    //  Score every leaf.
+
+    tasks.clear ();
+
+    for (final Qry tree : trees) {
+      tasks.add (new Callable<ScoreList> () {
+        public ScoreList call () throws IOException {
+          ScoreList r = new ScoreList ();
+          TopKCollector topK = (k > 0) ? new TopKCollector (k) : null;
+          evaluateQuery (tree, model, topK, r);
+          return (topK != null) ? topK.getScoreList () : r;
+        }
+      });
+    }
+
+    //  Merge.
+
+    ScoreList r = new ScoreList ();
+    TopKCollector topK = (k > 0) ? new TopKCollector (k) : null;
+
+    for (ScoreList leafResults : invokeAll (tasks)) {
+      for (int i = 0; i < leafResults.size (); i++) {
+        if (topK != null) {
+          topK.add (leafResults.getDocid (i), leafResults.getDocidScore (i));
+        } else {
+          r.add (leafResults.getDocid (i), leafResults.getDocidScore (i));
         }
       }
+    }
 
-      r.sort();
-      return r;
-    } else
-      return null;
+    if (topK != null) {
+      return topK.getScoreList ();
+    }
+
+    r.sort ();
+    return r;
+  }
+
+  /**
+   *  Give corresponding inverted list operators in each leaf's query
+   *  tree the df and ctf of the whole index, i.e., the sum of the
+   *  leaf values, and recompute the SCORE operators' statistics.  The
+   *  trees have the same structure, because they were parsed from
+   *  the same query string.  The arguments of an operator that
+   *  shares another operator's inverted list are skipped, because
+   *  they weren't initialized; the other operator's arguments are
+   *  aggregated where it occurs.
+   *  @param trees The query trees of each leaf, after initialization.
+   *  @param model The retrieval model.
+   *  @throws IOException Error accessing the index
+   */
+  private static void aggregateStatistics(Qry[] trees, RetrievalModel model)
+    throws IOException {
+
+    if (trees[0] instanceof QryIop) {
+      int df = 0;
+      int ctf = 0;
+
+      for (Qry tree : trees) {
+        df += ((QryIop) tree).getDf ();
+        ctf += ((QryIop) tree).getCtf ();
+      }
+
+      for (Qry tree : trees) {
+        ((QryIop) tree).setCollectionStatistics (df, ctf);
+      }
+    }
+
+    if ((trees[0] instanceof QryIop) &&
+        ((QryIop) trees[0]).sharesInvertedList ()) {
+      return;
+    }
+
+    for (int i = 0; i < trees[0].args.size (); i++) {
+      Qry[] args = new Qry[trees.length];
+
+      for (int j = 0; j < trees.length; j++) {
+        args[j] = trees[j].args.get (i);
+      }
+
+      aggregateStatistics (args, model);
+    }
+
+    if (trees[0] instanceof QrySopScore) {
+      for (Qry tree : trees) {
+        ((QrySopScore) tree).initializeStatistics (model);
+      }
+    }
   }
 
+  /**
+   *  Run tasks on the segment pool and wait for all of them.
+   *  @param tasks The tasks to run.
+   *  @return The results of the tasks, in order.
+   *  @throws IOException A task failed.
+   */
+  private static <T> List<T> invokeAll(List<Callable<T>> tasks)
+    throws IOException {
+
+    List<T> results = new ArrayList<T> ();
+
+    try {
+      for (Future<T> f : segmentPool.invokeAll (tasks)) {
+        results.add (f.get ());
+      }
+    } catch (InterruptedException ex) {
+      Thread.currentThread ().interrupt ();
+      throw new InterruptedIOException ("Query evaluation was interrupted");
+    } catch (ExecutionException ex) {
+      Throwable cause = ex.getCause ();
+
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      } else if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      } else if (cause instanceof Error) {
+        throw (Error) cause;
+      } else {
+        throw new IOException (cause);
+      }
+    }
 
+    return results;
+  }
 
   /**
    *  Process the query file.
@@ -747,6 +1272,16 @@ public class QryEval {
         ("Required parameters were missing from the parameter file.");
     }
 
+    // diversification gets its intents from a ranking file or an
+    // intents file
+    if (parameters.containsKey ("diversity") &&
+        ! parameters.get ("diversity").equals ("false") &&
+        ! parameters.containsKey ("diversity:initialRankingFile") &&
+        ! parameters.containsKey ("diversity:intentsFile")) {
+      throw new IllegalArgumentException
+        ("diversity=true requires diversity:intentsFile or diversity:initialRankingFile.");
+    }
+
     return parameters;
   }
 
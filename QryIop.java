@@ -18,6 +18,10 @@ import java.util.*;
  *  QryIop.locIterator.  Corpus-level information, for example, 
  *  document frequency (df) and collection term frequency (ctf), are
  *  available via specific methods (e.g., getDf and getCtf).
+ *  QryIopTerm has a streaming mode that reads postings from the index
+ *  as the iterators advance instead of caching them; consumers of
+ *  QryIop arguments must therefore use the iterators, not the
+ *  inverted list.
  *  </p><p>
  *  QryIop operators support iteration over the locations in the
  *  document that Qry.docIteratorHasMatch matches.  The semantics
@@ -53,6 +57,20 @@ public abstract class QryIop extends Qry {
    */
   protected InvList invertedList = null;
 
+  /**
+   *  A structurally identical operator earlier in the same query whose
+   *  inverted list this operator shares, or null.  See
+   *  shareInvertedList.
+   */
+  private QryIop listSource = null;
+
+  /**
+   *  The df and ctf of the whole index, when the inverted list covers
+   *  only one index segment; -1 if the list's own values are used.
+   */
+  private int collectionDf = -1;
+  private int collectionCtf = -1;
+
   /**
    *  The index of the document that the docIterator points to now.
    */
@@ -70,11 +88,13 @@ public abstract class QryIop extends Qry {
    */
   public void docIteratorAdvancePast (int docid) {
 
-    while ((this.docIteratorIndex < this.invertedList.df) &&
-           (this.invertedList.getDocid (this.docIteratorIndex) <= docid)) {
-      this.docIteratorIndex ++;
+    if (docid == Integer.MAX_VALUE) {
+      this.docIteratorIndex = this.invertedList.df;
+    } else {
+      this.docIteratorIndex =
+        this.invertedList.findDocid (this.docIteratorIndex, docid + 1);
     }
-           
+
     this.locIteratorIndex = 0;
   }
 
@@ -85,11 +105,8 @@ public abstract class QryIop extends Qry {
    */
   public void docIteratorAdvanceTo (int docid) {
 
-    while ((this.docIteratorIndex < this.invertedList.df) &&
-           (this.invertedList.getDocid (this.docIteratorIndex) < docid)) {
-      this.docIteratorIndex ++;
-    }
-           
+    this.docIteratorIndex =
+      this.invertedList.findDocid (this.docIteratorIndex, docid);
     this.locIteratorIndex = 0;
   }
 
@@ -98,7 +115,7 @@ public abstract class QryIop extends Qry {
    *  any possible document.
    */
   public void docIteratorFinish () {
-    this.docIteratorIndex = this.invertedList.postings.size();
+    this.docIteratorIndex = this.invertedList.df;
   }
 
   /**
@@ -113,12 +130,44 @@ public abstract class QryIop extends Qry {
   }
 
   /**
-   *  Return the postings for the document that the docIterator points to
-   *  now, or throw an error if the docIterator doesn't point at a document.
-   *  @return A document posting.
+   *  Return the term frequency of the document that the docIterator
+   *  points to now, or throw an error if the docIterator doesn't point
+   *  at a document.
+   *  @return The document's term frequency.
+   */
+  public int docIteratorGetMatchTf () {
+    return this.invertedList.getTf (this.docIteratorIndex);
+  }
+
+  /**
+   *  Return a copy of the locations in the document that the
+   *  docIterator points to now, or throw an error if the docIterator
+   *  doesn't point at a document.
+   *  @return The document's locations, in increasing order.
    */
-  public InvList.DocPosting docIteratorGetMatchPosting () {
-    return this.invertedList.postings.get(docIteratorIndex);
+  public int[] docIteratorGetMatchPositions () {
+    return this.invertedList.getPositions (this.docIteratorIndex);
+  }
+
+  /**
+   *  Get the shared array that stores the locations of the document
+   *  that the docIterator points to now, without copying them.  The
+   *  document's docIteratorGetMatchTf locations start at
+   *  docIteratorGetMatchPositionsOffset.  The array must not be
+   *  modified.
+   *  @return The positions array.
+   */
+  public int[] docIteratorGetMatchPositionsArray () {
+    return this.invertedList.getPositionsArray ();
+  }
+
+  /**
+   *  Get the index in docIteratorGetMatchPositionsArray of the first
+   *  location of the document that the docIterator points to now.
+   *  @return The offset of the document's first location.
+   */
+  public int docIteratorGetMatchPositionsOffset () {
+    return this.invertedList.getPositionsOffset (this.docIteratorIndex);
   }
 
   /**
@@ -137,7 +186,8 @@ public abstract class QryIop extends Qry {
    *  @return The collection term frequency (ctf).
    */
   public int getCtf () {
-    return this.invertedList.ctf;
+    return (this.collectionCtf >= 0) ?
+      this.collectionCtf : this.invertedList.ctf;
   }
 
   /**
@@ -147,7 +197,43 @@ public abstract class QryIop extends Qry {
    *  @return The document frequency (df).
    */
   public int getDf () {
-    return this.invertedList.df;
+    return (this.collectionDf >= 0) ?
+      this.collectionDf : this.invertedList.df;
+  }
+
+  /**
+   *  Get the inverted list that the query operator iterates over.  It
+   *  is an error to call this method before the object's initialize
+   *  method is called.
+   *  @return The inverted list, or null if the postings aren't stored
+   *  in one.
+   */
+  public InvList getInvertedList () {
+    return this.invertedList;
+  }
+
+  /**
+   *  Get the largest term frequency of any document that this query
+   *  operator matches, which bounds its documents' scores.  It is an
+   *  error to call this method before the object's initialize method
+   *  is called.
+   *  @return The largest term frequency.
+   */
+  public int getMaxTf () {
+    return this.invertedList.getMaxTf ();
+  }
+
+  /**
+   *  Set the df and ctf that getDf and getCtf report, for example
+   *  when the inverted list covers only one segment of the index
+   *  (see Qry.setLeaf) but scores must use statistics of the whole
+   *  index.
+   *  @param df The document frequency (df).
+   *  @param ctf The collection term frequency (ctf).
+   */
+  public void setCollectionStatistics (int df, int ctf) {
+    this.collectionDf = df;
+    this.collectionCtf = ctf;
   }
 
   /**
@@ -158,6 +244,33 @@ public abstract class QryIop extends Qry {
     return this.field;
   }
 
+  /**
+   *  Share the inverted list of a structurally identical operator in
+   *  the same query (e.g., a term that occurs twice), instead of
+   *  evaluating this operator and its arguments.  Each operator keeps
+   *  its own iterators.  The source must be initialized first, i.e.,
+   *  it must come first in a depth-first walk of the query; if it
+   *  doesn't have an inverted list (see QryIopTerm.setStreaming),
+   *  this operator is evaluated normally.
+   *  @param source The operator whose inverted list is shared.
+   */
+  public void shareInvertedList (QryIop source) {
+    this.listSource = source;
+  }
+
+  /**
+   *  Indicates whether initialize shared the inverted list of another
+   *  operator (see shareInvertedList).  If it did, the operator's
+   *  arguments weren't initialized, so they have no inverted lists or
+   *  statistics.
+   *  @return True if the inverted list is shared, otherwise false.
+   */
+  public boolean sharesInvertedList () {
+    return (this.listSource != null) &&
+      (this.invertedList != null) &&
+      (this.invertedList == this.listSource.getInvertedList ());
+  }
+
   /**
    *  Evaluate the query operator; the result is an internal inverted
    *  list that may be accessed via the internal iterators.
@@ -173,15 +286,28 @@ public abstract class QryIop extends Qry {
    */
   public void initialize(RetrievalModel r) throws IOException {
 
-    //  Initialize the query arguments (if any).
+    if ((this.listSource != null) &&
+        (this.listSource.getInvertedList () != null)) {
+      this.invertedList = this.listSource.getInvertedList ();
+    } else {
 
-    for (Qry q_i: this.args) {
-      ((QryIop) q_i).initialize (r);
-    }
+      //  Initialize the query arguments (if any).
 
-    //  Evaluate the operator.
-    
-    this.evaluate ();
+      for (Qry q_i: this.args) {
+        ((QryIop) q_i).initialize (r);
+      }
+
+      //  Evaluate the operator.
+
+      this.evaluate ();
+
+      //  Long lists get skip pointers so that docIteratorAdvanceTo can
+      //  jump over them quickly.
+
+      if (this.invertedList != null) {
+        this.invertedList.buildSkipPointers ();
+      }
+    }
 
     //  Initialize the internal iterators.
 
@@ -203,11 +329,12 @@ public abstract class QryIop extends Qry {
    *  @param loc The location to advance beyond.
    */
   public void locIteratorAdvancePast (int loc) {
-    int tf = this.invertedList.postings.get(this.docIteratorIndex).tf;
-    Vector<Integer> positions = this.invertedList.postings.get(this.docIteratorIndex).positions;
+    int tf = this.invertedList.getTf (this.docIteratorIndex);
+    int[] positions = this.invertedList.getPositionsArray ();
+    int offset = this.invertedList.getPositionsOffset (this.docIteratorIndex);
 
     while ((this.locIteratorIndex < tf) &&
-           (positions.get (this.locIteratorIndex) <= loc)) {
+           (positions[offset + this.locIteratorIndex] <= loc)) {
       locIteratorIndex ++;
     }
   }
@@ -218,7 +345,7 @@ public abstract class QryIop extends Qry {
    */
   public void locIteratorFinish () {
     this.locIteratorIndex =
-      this.invertedList.postings.get(this.docIteratorIndex).tf;
+      this.invertedList.getTf (this.docIteratorIndex);
   }
 
   /**
@@ -229,8 +356,8 @@ public abstract class QryIop extends Qry {
    *  @return The internal id of the current document.
    */
   public int locIteratorGetMatch () {
-    Vector<Integer> locations = this.docIteratorGetMatchPosting().positions;
-    return locations.get (this.locIteratorIndex);
+    return this.invertedList.getPosition (this.docIteratorIndex,
+                                          this.locIteratorIndex);
   }
 
   /**
@@ -82,75 +82,20 @@ public class QryIopNear extends QryIop {
                 continue;
             }
 
-            //  Create a new posting by storing the position that satisfies near operator constraint for the arguments.
+            //  Create a new posting by storing the positions that satisfy the near operator constraint for the arguments.
 
-            List<Integer> position = new ArrayList<Integer>();
-            while (true) {
-                boolean locRemaining = true;
-
-                Qry q = this.args.get(0);
-                if (!((QryIop) q).locIteratorHasMatch()){
-                    locRemaining = false;
-                    break;
-                }
+            int[][] positions = new int[this.args.size()][];
+            int minTf = Integer.MAX_VALUE;
+            for (int i = 0; i < positions.length; i++) {
+                positions[i] = ((QryIop) this.args.get(i)).docIteratorGetMatchPositions();
+                minTf = Math.min(minTf, positions[i].length);
+            }
 
-                // get the location of curr argument and next argument and check if it satisfies
-                //if it does not advance the argument with smaller loc to next location and start iterating back from the beginning.
-
-                int loc = 0;
-                int curr_loc = 0;
-                int next_loc = 0;
-                for (int i = 0; i < this.args.size() - 1; i++) {
-                    QryIop q_curr = (QryIop) this.args.get(i);
-                    QryIop q_next = (QryIop) this.args.get(i+1);
-
-                    if (q_curr.locIteratorHasMatch()){
-                        curr_loc = ((QryIop) q_curr).locIteratorGetMatch();
-                    } else{
-                        locRemaining = false;
-                        break;
-                    }
-                    if (q_next.locIteratorHasMatch()){
-                        next_loc = ((QryIop) q_next).locIteratorGetMatch();
-                    } else{
-                        locRemaining = false;
-                        break;
-                    }
-                    if (next_loc - curr_loc > operatorDistance ){
-                        if (q_curr.locIteratorHasMatch()){
-                            q_curr.locIteratorAdvance();
-                            i = -1;
-                            continue;
-                        } else {
-                            locRemaining = false;
-                            break;
-                        }
-                    } if (next_loc - curr_loc < 0){
-                        if (q_next.locIteratorHasMatch()){
-                            q_next.locIteratorAdvance();
-                            i = -1;
-                            continue;
-                        } else {
-                            locRemaining = false;
-                            break;
-                        }
-                    }
-                    loc = next_loc;
-                }
-                //if there is no location remaining/matching then break and get the next document
-                if (!locRemaining) {
-                    break;
-                }
-                //if there is a set of location satisfying near operator then add to position arraylist
-                position.add(loc);
-                for (Qry query : this.args){
-                    ((QryIop) query).locIteratorAdvance();
-                }
+            int[] matches = new int[minTf];
+            int count = matchPositions(positions, this.operatorDistance, matches);
 
-            }
-            // if there is are entries in position then append that to the inverted list.
-            if (position.size() > 0){
-                this.invertedList.appendPosting(maxDocid, position);
+            if (count > 0){
+                this.invertedList.appendPosting(maxDocid, matches, 0, count);
             }
 
             //once a document is checked advance all the arguments past that document.
@@ -159,4 +104,58 @@ public class QryIopNear extends QryIop {
             }
         }
     }
-}
\ No newline at end of file
+
+    /**
+     *  Find the matches of an ordered #NEAR/n in one document with a
+     *  single forward sweep.  The sweep checks adjacent pairs of
+     *  arguments from left to right.  If the i'th argument is too far
+     *  from the next one, it is advanced and only the pair before it
+     *  needs to be checked again; if the next argument is before the
+     *  i'th one, the next argument is advanced.  When every pair
+     *  matches, the location of the last argument is a match, and
+     *  every argument moves to its next location.  Each step advances
+     *  a location or moves to the next pair, so the cost is linear in
+     *  the number of locations.
+     *  @param positions The locations of each argument in the document, in increasing order.
+     *  @param distance The largest distance between adjacent arguments.
+     *  @param matches Receives the matches; it must have room for as
+     *  many locations as the argument that has the fewest.
+     *  @return The number of matches.
+     */
+    static int matchPositions(int[][] positions, int distance, int[] matches) {
+        int n = positions.length;
+        int[] next = new int[n];        // The current location of each argument
+        int count = 0;
+
+        while (next[0] < positions[0].length) {
+            int i = 0;
+
+            while (i < n - 1) {
+                if ((next[i] >= positions[i].length) ||
+                    (next[i + 1] >= positions[i + 1].length)) {
+                    return count;
+                }
+
+                int curr_loc = positions[i][next[i]];
+                int next_loc = positions[i + 1][next[i + 1]];
+
+                if (next_loc - curr_loc > distance) {
+                    next[i]++;
+                    i = Math.max(i - 1, 0);
+                } else if (next_loc - curr_loc < 0) {
+                    next[i + 1]++;
+                } else {
+                    i++;
+                }
+            }
+
+            matches[count++] = (n > 1) ? positions[n - 1][next[n - 1]] : 0;
+
+            for (int j = 0; j < n; j++) {
+                next[j]++;
+            }
+        }
+
+        return count;
+    }
+}
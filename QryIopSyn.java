@@ -28,46 +28,129 @@ public class QryIopSyn extends QryIop {
     //  Each pass of the loop adds 1 document to result inverted list
     //  until all of the argument inverted lists are depleted.
 
+    int n = this.args.size ();
+    QryUnionIterator union = new QryUnionIterator (this.args);
+    QryIop[] runArgs = new QryIop[n];
+    int[][] arrays = new int[n][];
+    int[] heap = new int[n];
+    int[] next = new int[n];
+    int[] end = new int[n];
+    int[] merged = new int[16];
+
     while (true) {
 
       //  Find the minimum next document id.  If there is none, we're done.
 
-      int minDocid = Qry.INVALID_DOCID;
-
-      for (Qry q_i: this.args) {
-        if (q_i.docIteratorHasMatch (null)) {
-          int q_iDocid = q_i.docIteratorGetMatch ();
-          
-          if ((minDocid > q_iDocid) ||
-              (minDocid == Qry.INVALID_DOCID)) {
-            minDocid = q_iDocid;
-          }
-        }
-      }
+      int minDocid = union.nextDocid (null);
 
       if (minDocid == Qry.INVALID_DOCID)
         break;				// All docids have been processed.  Done.
       
       //  Create a new posting that is the union of the posting lists
-      //  that match the minDocid.  Save it.
-      //  Note:  This implementation assumes that a location will not appear
-      //  in two or more arguments.  #SYN (apple apple) would break it.
-
-      List<Integer> positions = new ArrayList<Integer>();
-
-      for (Qry q_i: this.args) {
-        if (q_i.docIteratorHasMatch (null) &&
-            (q_i.docIteratorGetMatch () == minDocid)) {
-          Vector<Integer> locations_i =
-            ((QryIop) q_i).docIteratorGetMatchPosting().positions;
-	  positions.addAll (locations_i);
-          q_i.docIteratorAdvancePast (minDocid);
-	}
+      //  that match the minDocid.  Save it.  A location that appears
+      //  in several arguments, e.g., #SYN (apple apple), appears that
+      //  many times.
+
+      int m = union.getMatchCount ();
+      int tf = 0;
+
+      for (int j = 0; j < m; j++) {
+        QryIop q_j = this.getArg (union.getMatch (j));
+        runArgs[j] = q_j;
+        arrays[j] = q_j.docIteratorGetMatchPositionsArray ();
+        next[j] = q_j.docIteratorGetMatchPositionsOffset ();
+        end[j] = next[j] + q_j.docIteratorGetMatchTf ();
+        tf += end[j] - next[j];
+      }
+
+      if (m == 1) {
+        this.invertedList.appendPosting (minDocid, arrays[0], next[0], tf);
+      } else {
+        if (merged.length < tf) {
+          merged = new int[Math.max (tf, 2 * merged.length)];
+        }
+
+        mergePositions (arrays, next, end, heap, m, merged);
+        this.invertedList.appendPosting (minDocid, merged, 0, tf);
+      }
+
+      for (int j = 0; j < m; j++) {
+        runArgs[j].docIteratorAdvancePast (minDocid);
+      }
+    }
+  }
+
+  /**
+   *  Merge the sorted locations of several arguments into one sorted
+   *  array, with a min-heap of the arguments ordered by their next
+   *  locations.  Argument j's locations are arrays[j][next[j]] to
+   *  arrays[j][end[j]-1].
+   *  @param arrays The arguments' positions arrays.
+   *  @param next The index of each argument's next location; it is
+   *  advanced to end.
+   *  @param end The index after each argument's last location.
+   *  @param heap Scratch space for the heap, at least m long.
+   *  @param m The number of arguments.
+   *  @param merged The result; it must be long enough for every location.
+   */
+  private static void mergePositions (int[][] arrays, int[] next, int[] end,
+                                      int[] heap, int m, int[] merged) {
+
+    int size = 0;
+
+    for (int j = 0; j < m; j++) {
+      if (next[j] < end[j]) {
+        heap[size++] = j;
       }
+    }
+
+    for (int p = size / 2 - 1; p >= 0; p--) {
+      siftDown (arrays, next, heap, size, p);
+    }
+
+    int k = 0;
+
+    while (size > 0) {
+      int j = heap[0];
+      merged[k++] = arrays[j][next[j]++];
 
-      Collections.sort (positions);
-      this.invertedList.appendPosting (minDocid, positions);
+      if (next[j] == end[j]) {
+        heap[0] = heap[-- size];
+      }
+
+      if (size > 0) {
+        siftDown (arrays, next, heap, size, 0);
+      }
     }
   }
 
+  /**
+   *  Restore the heap order below position p.
+   */
+  private static void siftDown (int[][] arrays, int[] next, int[] heap,
+                                int size, int p) {
+
+    int j = heap[p];
+    int loc = arrays[j][next[j]];
+
+    while (true) {
+      int child = 2 * p + 1;
+
+      if (child >= size)
+        break;
+
+      if ((child + 1 < size) &&
+          (arrays[heap[child + 1]][next[heap[child + 1]]] <
+           arrays[heap[child]][next[heap[child]]]))
+        child++;
+
+      if (arrays[heap[child]][next[heap[child]]] >= loc)
+        break;
+
+      heap[p] = heap[child];
+      p = child;
+    }
+
+    heap[p] = j;
+  }
 }
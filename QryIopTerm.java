@@ -4,18 +4,61 @@
 import java.io.*;
 import java.util.*;
 
+import org.apache.lucene.index.*;
+import org.apache.lucene.search.*;
+import org.apache.lucene.util.*;
+
 /**
  *  The TERM operator for all retrieval models.  The TERM operator stores
  *  information about a query term, for example "apple" in the query
  *  "#AND (apple pie).  Although it may seem odd to use a query
  *  operator to store a term, doing so makes it easy to build
  *  structured queries with nested query operators.
- *
+ *  <p>
+ *  By default the term's inverted list is copied from the index into
+ *  an InvList when the operator is initialized, or is shared with
+ *  other queries through a PostingsCache.  In streaming mode
+ *  (see setStreaming), the docIterator and locIterator instead wrap
+ *  Lucene's DocsAndPositionsEnum directly:  nothing is copied, and the
+ *  locations of a document are decoded only if a proximity operator
+ *  or scorer asks for them.  df and ctf come from the index statistics.
+ *  </p><p>
+ *  A TERM operator that is restricted to one index segment (see
+ *  Qry.setLeaf) always materializes that segment's part of the list.
+ *  </p>
  */
 public class QryIopTerm extends QryIop {
 
+  /**
+   *  When true, new TERM operators stream their postings from the
+   *  index instead of materializing an InvList.
+   */
+  private static boolean streaming = false;
+
+  /**
+   *  When not null, materialized TERM operators get their inverted
+   *  lists from this cache, which shares them across queries.
+   */
+  private static PostingsCache postingsCache = null;
+
   private String term;
 
+  /**
+   *  The index segment to read, or null to read the whole index.
+   */
+  private AtomicReaderContext leaf = null;
+
+  //  Streaming mode state.  postings is null in materialized mode.
+
+  private DocsAndPositionsEnum postings = null;
+  private int streamingDocid = DocIdSetIterator.NO_MORE_DOCS;
+  private int streamingTf = 0;
+  private int streamingDf = 0;
+  private int streamingCtf = 0;
+  private int[] positionBuffer = new int[16];
+  private int positionsDecoded = 0;	// Positions of streamingDocid read so far
+  private int streamingLocIndex = 0;
+
   /**
    *  The term is assumed to match the body field.
    *  @param termString A term string.
@@ -35,20 +78,406 @@ public class QryIopTerm extends QryIop {
     this.field = fieldString;
   }
 
+  /**
+   *  Get the term string.
+   *  @return The processed (stemmed, lower-cased, etc) term string.
+   */
+  public String getTerm () {
+    return this.term;
+  }
+
+  /**
+   *  Select how TERM operators access their inverted lists.
+   *  @param streamPostings True to stream postings from the index,
+   *  false to materialize them in an InvList.
+   */
+  public static void setStreaming (boolean streamPostings) {
+    streaming = streamPostings;
+  }
+
+  /**
+   *  Share the inverted lists of materialized TERM operators across
+   *  queries.  Segment (see setLeaf) and streaming operators don't use
+   *  the cache.
+   *  @param cache The cache, or null to read every list from the index.
+   */
+  public static void setPostingsCache (PostingsCache cache) {
+    postingsCache = cache;
+  }
+
+  /**
+   *  Get the cache that materialized TERM operators use.
+   *  @return The cache, or null if there is none.
+   */
+  public static PostingsCache getPostingsCache () {
+    return postingsCache;
+  }
+
   /**
    *  Evaluate the query operator; the result is an internal inverted
    *  list that may be accessed via the internal iterators.
    *  @throws IOException Error accessing the Lucene index.
    */
   protected void evaluate () throws IOException {
-    this.invertedList = new InvList(this.term, this.field);
+
+    if (this.leaf != null) {
+      this.invertedList = new InvList(this.term, this.field, this.leaf);
+      return;
+    }
+
+    if (! streaming) {
+      PostingsCache cache = postingsCache;
+      this.invertedList = (cache != null) ?
+        cache.get (this.term, this.field) : new InvList(this.term, this.field);
+      return;
+    }
+
+    //  Streaming mode.  Position the iterator on the first document.
+
+    int termId = Idx.getTermId (this.field, this.term);
+
+    this.streamingDf = (termId < 0) ? 0 : Idx.getDf (termId);
+    this.streamingCtf =
+      (termId < 0) ? 0 : (int) Math.max (0, Idx.getTotalTermFreq (termId));
+    this.postings = null;
+
+    if (this.streamingDf > 0) {
+      this.postings =
+        MultiFields.getTermPositionsEnum (Idx.INDEXREADER,
+                                          MultiFields.getLiveDocs (Idx.INDEXREADER),
+                                          this.field, new BytesRef (this.term));
+    }
+
+    if (this.postings == null) {
+      this.postings = EMPTY;
+    }
+
+    this.streamingSetDoc (this.postings.nextDoc ());
+  }
+
+  /**
+   *  Read only one segment of the index.  Segments are always
+   *  materialized; streaming mode applies to the whole index.
+   *  @param leaf The index segment to read.
+   */
+  public void setLeaf (AtomicReaderContext leaf) {
+    this.leaf = leaf;
+  }
+
+  /**
+   *  Record that the streaming iterator moved to a new document.
+   */
+  private void streamingSetDoc (int docid) throws IOException {
+    this.streamingDocid = docid;
+    this.streamingTf =
+      (docid == DocIdSetIterator.NO_MORE_DOCS) ? 0 : this.postings.freq ();
+    this.positionsDecoded = 0;
+    this.streamingLocIndex = 0;
+  }
+
+  /**
+   *  Decode the locations of the current document, up to and
+   *  including the n'th one.
+   */
+  private void streamingDecodeTo (int n) {
+
+    if (n >= this.positionBuffer.length) {
+      this.positionBuffer = Arrays.copyOf (this.positionBuffer,
+        Math.max (n + 1, this.positionBuffer.length * 2));
+    }
+
+    try {
+      while (this.positionsDecoded <= n) {
+        this.positionBuffer[this.positionsDecoded++] =
+          this.postings.nextPosition ();
+      }
+    } catch (IOException ex) {
+      throw new IllegalStateException ("Error reading locations of " +
+                                       this, ex);
+    }
+  }
+
+  /**
+   *  Advance the query operator's internal iterator beyond the
+   *  specified document.
+   *  @param docid The document's internal document id
+   */
+  public void docIteratorAdvancePast (int docid) {
+
+    if (this.postings == null) {
+      super.docIteratorAdvancePast (docid);
+      return;
+    }
+
+    if (this.streamingDocid <= docid) {
+      if (docid == Integer.MAX_VALUE) {
+        this.docIteratorFinish ();
+      } else {
+        this.streamingAdvance (docid + 1);
+      }
+    }
+
+    this.streamingLocIndex = 0;
+  }
+
+  /**
+   *  Advance the query operator's internal iterator to the specified
+   *  document if it exists, or beyond if it doesn't.
+   *  @param docid The document's internal document id
+   */
+  public void docIteratorAdvanceTo (int docid) {
+
+    if (this.postings == null) {
+      super.docIteratorAdvanceTo (docid);
+      return;
+    }
+
+    if (this.streamingDocid < docid) {
+      this.streamingAdvance (docid);
+    }
+
+    this.streamingLocIndex = 0;
+  }
+
+  /**
+   *  Move the streaming iterator to the first document &gt;= target.
+   *  The target must be greater than the current document.
+   */
+  private void streamingAdvance (int target) {
+    try {
+      if (target == this.streamingDocid + 1) {
+        this.streamingSetDoc (this.postings.nextDoc ());
+      } else {
+        this.streamingSetDoc (this.postings.advance (target));
+      }
+    } catch (IOException ex) {
+      throw new IllegalStateException ("Error reading postings of " +
+                                       this, ex);
+    }
+  }
+
+  /**
+   *  Advance the query operator's internal iterator beyond the
+   *  any possible document.
+   */
+  public void docIteratorFinish () {
+
+    if (this.postings == null) {
+      super.docIteratorFinish ();
+      return;
+    }
+
+    this.streamingDocid = DocIdSetIterator.NO_MORE_DOCS;
+    this.streamingTf = 0;
+    this.postings = EMPTY;
+  }
+
+  /**
+   *  Return the id of the document that the query operator's internal
+   *  iterator points to now.
+   *  @return The internal id of the current document.
+   */
+  public int docIteratorGetMatch () {
+    return (this.postings == null) ?
+      super.docIteratorGetMatch () : this.streamingDocid;
+  }
+
+  /**
+   *  Return the term frequency of the document that the docIterator
+   *  points to now.
+   *  @return The document's term frequency.
+   */
+  public int docIteratorGetMatchTf () {
+    return (this.postings == null) ?
+      super.docIteratorGetMatchTf () : this.streamingTf;
+  }
+
+  /**
+   *  Return a copy of the locations in the document that the
+   *  docIterator points to now.
+   *  @return The document's locations, in increasing order.
+   */
+  public int[] docIteratorGetMatchPositions () {
+
+    if (this.postings == null) {
+      return super.docIteratorGetMatchPositions ();
+    }
+
+    this.streamingDecodeTo (this.streamingTf - 1);
+    return Arrays.copyOf (this.positionBuffer, this.streamingTf);
+  }
+
+  /**
+   *  Get the array that stores the locations of the document that the
+   *  docIterator points to now, without copying them.
+   *  @return The positions array.
+   */
+  public int[] docIteratorGetMatchPositionsArray () {
+
+    if (this.postings == null) {
+      return super.docIteratorGetMatchPositionsArray ();
+    }
+
+    this.streamingDecodeTo (this.streamingTf - 1);
+    return this.positionBuffer;
   }
 
   /**
-   *  Get a string version of this query operator.  
+   *  Get the index in docIteratorGetMatchPositionsArray of the first
+   *  location of the document that the docIterator points to now.
+   *  @return The offset of the document's first location.
+   */
+  public int docIteratorGetMatchPositionsOffset () {
+    return (this.postings == null) ?
+      super.docIteratorGetMatchPositionsOffset () : 0;
+  }
+
+  /**
+   *  Indicates whether the query has a matching document.
+   *  @param r A retrieval model (that is ignored - it can be null)
+   *  @return True if the query matches a document, otherwise false.
+   */
+  public boolean docIteratorHasMatch (RetrievalModel r) {
+    return (this.postings == null) ?
+      super.docIteratorHasMatch (r) :
+      (this.streamingDocid != DocIdSetIterator.NO_MORE_DOCS);
+  }
+
+  /**
+   *  Get the collection term frequency (ctf) of the term.
+   *  @return The collection term frequency (ctf).
+   */
+  public int getCtf () {
+    return (this.postings == null) ? super.getCtf () : this.streamingCtf;
+  }
+
+  /**
+   *  Get the document frequency (df) of the term.
+   *  @return The document frequency (df).
+   */
+  public int getDf () {
+    return (this.postings == null) ? super.getDf () : this.streamingDf;
+  }
+
+  /**
+   *  Get the inverted list that the term iterates over.
+   *  @return The inverted list, or null if the term streams its
+   *  postings.
+   */
+  public InvList getInvertedList () {
+    return (this.postings == null) ? super.getInvertedList () : null;
+  }
+
+  /**
+   *  Get the largest term frequency of any document that the term
+   *  matches.  A streaming term doesn't know it without reading every
+   *  posting, so it reports Integer.MAX_VALUE.
+   *  @return The largest term frequency, or an upper bound on it.
+   */
+  public int getMaxTf () {
+    return (this.postings == null) ? super.getMaxTf () : Integer.MAX_VALUE;
+  }
+
+  /**
+   *  Advance the query operator's internal iterator to the
+   *  next location.
+   */
+  public void locIteratorAdvance () {
+    if (this.postings == null) {
+      super.locIteratorAdvance ();
+    } else {
+      this.streamingLocIndex ++;
+    }
+  }
+
+  /**
+   *  Advance the query operator's internal iterator beyond the
+   *  specified location.
+   *  @param loc The location to advance beyond.
+   */
+  public void locIteratorAdvancePast (int loc) {
+
+    if (this.postings == null) {
+      super.locIteratorAdvancePast (loc);
+      return;
+    }
+
+    while ((this.streamingLocIndex < this.streamingTf) &&
+           (this.locIteratorGetMatch () <= loc)) {
+      this.streamingLocIndex ++;
+    }
+  }
+
+  /**
+   *  Advance the query operator's internal iterator beyond
+   *  any possible location.
+   */
+  public void locIteratorFinish () {
+    if (this.postings == null) {
+      super.locIteratorFinish ();
+    } else {
+      this.streamingLocIndex = this.streamingTf;
+    }
+  }
+
+  /**
+   *  Return the document location that the query operator's internal
+   *  iterator points to now.
+   *  @return The current location.
+   */
+  public int locIteratorGetMatch () {
+
+    if (this.postings == null) {
+      return super.locIteratorGetMatch ();
+    }
+
+    if (this.streamingLocIndex >= this.positionsDecoded) {
+      this.streamingDecodeTo (this.streamingLocIndex);
+    }
+
+    return this.positionBuffer[this.streamingLocIndex];
+  }
+
+  /**
+   *  Returns true if the query operator's internal iterator currently
+   *  points to a location.
+   *  @return True if the iterator currently points to a location.
+   */
+  public boolean locIteratorHasMatch () {
+    return (this.postings == null) ?
+      super.locIteratorHasMatch () :
+      (this.streamingLocIndex < this.streamingTf);
+  }
+
+  /**
+   *  Get a canonical string version of this query operator.
+   *  @return The canonical string version of this query operator.
+   */
+  public String getCanonicalForm () {
+    return this.toString ();
+  }
+
+  /**
+   *  Get a string version of this query operator.
    *  @return The string version of this query operator.
    */
   public String toString(){
     return (this.term + "." + this.field);
   }
+
+  /**
+   *  An exhausted postings iterator, used for terms that do not
+   *  occur in the index.
+   */
+  private static final DocsAndPositionsEnum EMPTY = new DocsAndPositionsEnum () {
+    public int nextPosition () { return -1; }
+    public int startOffset () { return -1; }
+    public int endOffset () { return -1; }
+    public BytesRef getPayload () { return null; }
+    public int freq () { return 0; }
+    public int docID () { return NO_MORE_DOCS; }
+    public int nextDoc () { return NO_MORE_DOCS; }
+    public int advance (int target) { return NO_MORE_DOCS; }
+    public long cost () { return 0; }
+  };
 }
@@ -81,68 +81,119 @@ public class QryIopWindow extends QryIop {
                 continue;
             }
 
-            //  Create a new posting by storing the position that satisfies near operator constraint for the arguments.
+            //  Create a new posting by storing the positions that satisfy the window operator constraint for the arguments.
 
-            List<Integer> position = new ArrayList<Integer>();
-            while (true) {
-                boolean locRemaining = true;
+            int[][] positions = new int[this.args.size()][];
+            int minTf = Integer.MAX_VALUE;
+            for (int i = 0; i < positions.length; i++) {
+                positions[i] = ((QryIop) this.args.get(i)).docIteratorGetMatchPositions();
+                minTf = Math.min(minTf, positions[i].length);
+            }
 
-                // get the location of curr argument and next argument and check if it satisfies
-                //if it does not advance the argument with smaller loc to next location and start iterating back from the beginning.
+            int[] matches = new int[minTf];
+            int count = matchPositions(positions, this.operatorDistance, matches);
 
-                int loc = 0;
+            if (count > 0){
+                this.invertedList.appendPosting(maxDocid, matches, 0, count);
+            }
 
-                int min_loc = ((QryIop) this.args.get(0)).locIteratorGetMatch();
-                int max_loc = min_loc;
-                int min_idx = 0;
-                for (int i = 0; i < this.args.size(); i++) {
+            //once a document is checked advance all the arguments past that document.
+            for (Qry queries : this.args) {
+                queries.docIteratorAdvancePast(maxDocid);
+            }
+        }
+    }
 
-                    Qry q = this.args.get(i);
+    /**
+     *  Find the matches of an unordered #WINDOW/n in one document with
+     *  a sliding window.  The arguments' current locations are kept in
+     *  a min-heap, ordered by location and then by argument, and the
+     *  largest of them is tracked as the window's end.  If the window
+     *  is too wide, the argument at its start advances, which costs
+     *  O(log n) instead of a scan of every argument.  When the window
+     *  fits, its end is a match, and every argument moves to its next
+     *  location.
+     *  @param positions The locations of each argument in the document, in increasing order.
+     *  @param distance The largest window size.
+     *  @param matches Receives the matches; it must have room for as
+     *  many locations as the argument that has the fewest.
+     *  @return The number of matches.
+     */
+    static int matchPositions(int[][] positions, int distance, int[] matches) {
+        int n = positions.length;
+        int[] next = new int[n];        // The current location of each argument
+        int[] heap = new int[n];        // Arguments, by current location
+        int count = 0;
+
+        while (true) {
+            int max_loc = Integer.MIN_VALUE;
+            for (int i = 0; i < n; i++) {
+                heap[i] = i;
+                max_loc = Math.max(max_loc, positions[i][next[i]]);
+            }
+            for (int i = n / 2 - 1; i >= 0; i--) {
+                siftDown(heap, n, i, positions, next);
+            }
 
-                    if (min_loc > ((QryIop)q).locIteratorGetMatch() ){
-                        min_loc = ((QryIop)q).locIteratorGetMatch();
-                        min_idx = i;
-                    }else if (max_loc < ((QryIop)q).locIteratorGetMatch() ) {
-                        max_loc = ((QryIop) q).locIteratorGetMatch();
-                    }
+            while (true) {
+                int min_idx = heap[0];
+                int min_loc = positions[min_idx][next[min_idx]];
 
+                if (1 + max_loc - min_loc <= distance) {
+                    break;
                 }
 
-                if(1 + max_loc - min_loc <= operatorDistance){
-                    position.add(max_loc);
-                    for (Qry query : this.args){
-                        ((QryIop) query).locIteratorAdvance();
-                        if(!((QryIop) query).locIteratorHasMatch()){
-                            locRemaining = false;
-                            break;
-                        }
-                    }
-                }else{
-                    QryIop q_min = (QryIop)this.args.get(min_idx);
-                    (q_min).locIteratorAdvance();
-                    if(!q_min.locIteratorHasMatch()){
-                        locRemaining = false;
-                    }
+                if (++next[min_idx] == positions[min_idx].length) {
+                    return count;
                 }
 
+                max_loc = Math.max(max_loc, positions[min_idx][next[min_idx]]);
+                siftDown(heap, n, 0, positions, next);
+            }
 
-                    //if there is no location remaining/matching then break and get the next document
-                if (!locRemaining) {
-                    break;
+            matches[count++] = max_loc;
+
+            for (int i = 0; i < n; i++) {
+                if (++next[i] == positions[i].length) {
+                    return count;
                 }
-                //if there is a set of location satisfying near operator then add to position arraylist
+            }
+        }
+    }
 
+    /**
+     *  Restore the heap order below heap[i].  An argument is before
+     *  another if its current location is smaller, or if the locations
+     *  are equal and it comes first in the query.
+     */
+    private static void siftDown(int[] heap, int size, int i,
+                                 int[][] positions, int[] next) {
+        while (true) {
+            int child = 2 * i + 1;
 
+            if (child >= size) {
+                return;
             }
-            // if there is are entries in position then append that to the inverted list.
-            if (position.size() > 0){
-                this.invertedList.appendPosting(maxDocid, position);
+
+            if ((child + 1 < size) &&
+                before(heap[child + 1], heap[child], positions, next)) {
+                child++;
             }
 
-            //once a document is checked advance all the arguments past that document.
-            for (Qry queries : this.args) {
-                queries.docIteratorAdvancePast(maxDocid);
+            if (! before(heap[child], heap[i], positions, next)) {
+                return;
             }
+
+            int a = heap[i];
+            heap[i] = heap[child];
+            heap[child] = a;
+            i = child;
         }
     }
-}
\ No newline at end of file
+
+    private static boolean before(int a, int b, int[][] positions, int[] next) {
+        int loc_a = positions[a][next[a]];
+        int loc_b = positions[b][next[b]];
+        return (loc_a < loc_b) || ((loc_a == loc_b) && (a < b));
+    }
+}
@@ -196,9 +196,44 @@ public class QryParser {
 
     Qry q = parseString (queryString);		// An exact parse
     q = optimizeQuery (q);			// An optimized parse
+
+    if (q != null) {
+      shareInvertedLists (q, new HashMap<String,QryIop> ());
+    }
+
     return q;
   }
 
+  /**
+   *  Eliminate common subexpressions:  structurally identical
+   *  inverted list operators (the same term and field, or the same
+   *  #NEAR, #WINDOW, or #SYN of them) share one evaluated inverted
+   *  list, so a term that is repeated, e.g., in a query expanded by
+   *  relevance feedback, is read from the index once per query.  The
+   *  query is walked depth-first, so the operator that evaluates the
+   *  list is initialized before the operators that share it.
+   *  @param q An optimized query.
+   *  @param lists The first operator with each canonical form.
+   */
+  private static void shareInvertedLists (Qry q, Map<String,QryIop> lists) {
+
+    if (q instanceof QryIop) {
+      String key = q.getCanonicalForm ();
+      QryIop source = lists.get (key);
+
+      if (source != null) {
+        ((QryIop) q).shareInvertedList (source);
+        return;
+      }
+
+      lists.put (key, (QryIop) q);
+    }
+
+    for (Qry q_i : q.args) {
+      shareInvertedLists (q_i, lists);
+    }
+  }
+
   /**
    *  Get the index of the right parenenthesis that balances the
    *  left-most parenthesis.  Return -1 if it doesn't exist.
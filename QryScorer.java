@@ -0,0 +1,434 @@
+/**
+ *  Copyright (c) 2017, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+
+/**
+ *  A compiled query plan for scoring.  QrySop.getScore decides what to
+ *  do for each document:  it checks which retrieval model it was given
+ *  with a chain of instanceof tests, casts its arguments, and looks up
+ *  the model parameters.  QrySop.compile makes those decisions once,
+ *  after the query is initialized, and returns a tree of QryScorer
+ *  nodes.  Each node is a final class that does one thing for one
+ *  retrieval model, and keeps its parameters and children in final
+ *  fields, so the JIT can inline the scoring loop.
+ *  <p>
+ *  Scorers don't iterate.  The query tree still finds the matching
+ *  documents; the root scorer is called for each document that the
+ *  root query operator matches, and the nodes use the query operators'
+ *  match caches to see which arguments match it.  Scores are computed
+ *  with exactly the same expressions as getScore, so they are
+ *  identical.
+ *  </p>
+ */
+public abstract class QryScorer {
+
+  //  --------------- Constants and variables ---------------------
+
+  /**
+   *  The query operator that this node scores.
+   */
+  protected final Qry qry;
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  @param qry The query operator that this node scores.
+   */
+  protected QryScorer (Qry qry) {
+    this.qry = qry;
+  }
+
+  /**
+   *  Get the score of a document that the query operator matches.
+   *  @param docid The document.
+   *  @return The document score.
+   *  @throws IOException Error accessing the Lucene index
+   */
+  public abstract double score (int docid) throws IOException;
+
+  /**
+   *  Get the score of a document that the query operator doesn't
+   *  match, for retrieval models that have one (Indri).
+   *  @param docid The document.
+   *  @return The document score.
+   *  @throws IOException Error accessing the Lucene index
+   */
+  public double defaultScore (int docid) throws IOException {
+    throw new IllegalArgumentException (
+      this.getClass ().getName () + " doesn't have a default score.");
+  }
+
+  /**
+   *  Returns true if the query operator matches the document, i.e.,
+   *  its docIteratorHasMatch found it.
+   *  @param docid The document.
+   *  @return True if the query operator matches the document.
+   */
+  protected final boolean matches (int docid) {
+    return (this.qry.docIteratorHasMatchCache () &&
+            (this.qry.docIteratorGetMatch () == docid));
+  }
+
+  //  --------------- Boolean ---------------------------------------
+
+  /**
+   *  A constant score, e.g., for the UnrankedBoolean model.
+   */
+  public static final class Constant extends QryScorer {
+    private final double value;
+
+    public Constant (Qry qry, double value) {
+      super (qry);
+      this.value = value;
+    }
+
+    public double score (int docid) {
+      return this.value;
+    }
+  }
+
+  /**
+   *  #SCORE for the RankedBoolean model:  the term frequency.
+   */
+  public static final class RankedBooleanScore extends QryScorer {
+    private final QryIop iop;
+
+    public RankedBooleanScore (Qry qry, QryIop iop) {
+      super (qry);
+      this.iop = iop;
+    }
+
+    public double score (int docid) {
+      return this.iop.docIteratorGetMatchTf ();
+    }
+  }
+
+  /**
+   *  #AND for the RankedBoolean model:  the smallest argument score.
+   *  Every argument matches the document.
+   */
+  public static final class RankedBooleanAnd extends QryScorer {
+    private final QryScorer[] args;
+
+    public RankedBooleanAnd (Qry qry, QryScorer[] args) {
+      super (qry);
+      this.args = args;
+    }
+
+    public double score (int docid) throws IOException {
+      double min_score = this.args[0].score (docid);
+      for (int i = 1; i < this.args.length; i++) {
+        double score = this.args[i].score (docid);
+        if (min_score > score) {
+          min_score = score;
+        }
+      }
+      return min_score;
+    }
+  }
+
+  /**
+   *  #OR for the RankedBoolean model:  the largest score of the
+   *  arguments that match the document.
+   */
+  public static final class RankedBooleanOr extends QryScorer {
+    private final QryScorer[] args;
+
+    public RankedBooleanOr (Qry qry, QryScorer[] args) {
+      super (qry);
+      this.args = args;
+    }
+
+    public double score (int docid) throws IOException {
+      double max_score = 0.0;
+      for (QryScorer arg : this.args) {
+        if (arg.matches (docid)) {
+          double score = arg.score (docid);
+          if (max_score < score) {
+            max_score = score;
+          }
+        }
+      }
+      return max_score;
+    }
+  }
+
+  //  --------------- BM25 ------------------------------------------
+
+  /**
+   *  #SCORE for the BM25 model.
+   */
+  public static final class BM25Score extends QryScorer {
+    private final QryIop iop;
+    private final int fieldOrdinal;
+    private final double avg_doc_len;
+    private final double rsjWeight;
+    private final float k1;
+    private final float b;
+
+    public BM25Score (Qry qry, QryIop iop, int fieldOrdinal,
+                      double avg_doc_len, double rsjWeight, float k1, float b) {
+      super (qry);
+      this.iop = iop;
+      this.fieldOrdinal = fieldOrdinal;
+      this.avg_doc_len = avg_doc_len;
+      this.rsjWeight = rsjWeight;
+      this.k1 = k1;
+      this.b = b;
+    }
+
+    public double score (int docid) {
+      int tf = this.iop.docIteratorGetMatchTf ();
+      long doc_len = Idx.getFieldLength (this.fieldOrdinal, docid);
+      double term_wt = tf / (tf + k1 * ( 1 - b + ( b * doc_len / avg_doc_len)));
+      return this.rsjWeight * term_wt;
+    }
+  }
+
+  /**
+   *  #SUM for the BM25 model:  the sum of the scores of the arguments
+   *  that match the document, times the query term weight.
+   */
+  public static final class BM25Sum extends QryScorer {
+    private final QryScorer[] args;
+    private final double qtf_score;
+
+    public BM25Sum (Qry qry, QryScorer[] args, double qtf_score) {
+      super (qry);
+      this.args = args;
+      this.qtf_score = qtf_score;
+    }
+
+    public double score (int docid) throws IOException {
+      double score = 0.0;
+      for (QryScorer arg : this.args) {
+        if (arg.matches (docid)) {
+          score += (arg.score (docid) * this.qtf_score);
+        }
+      }
+      return score;
+    }
+  }
+
+  //  --------------- Indri -----------------------------------------
+
+  /**
+   *  #SCORE for the Indri model, as a probability or in log space.
+   */
+  public static final class IndriScore extends QryScorer {
+    private final QryIop iop;
+    private final int fieldOrdinal;
+    private final double prob_mle_C;
+    private final float mu;
+    private final float lambda;
+    private final boolean logSpace;
+
+    public IndriScore (Qry qry, QryIop iop, int fieldOrdinal,
+                       double prob_mle_C, float mu, float lambda,
+                       boolean logSpace) {
+      super (qry);
+      this.iop = iop;
+      this.fieldOrdinal = fieldOrdinal;
+      this.prob_mle_C = prob_mle_C;
+      this.mu = mu;
+      this.lambda = lambda;
+      this.logSpace = logSpace;
+    }
+
+    public double score (int docid) {
+      int tf = this.iop.docIteratorGetMatchTf ();
+      double prob_q = (1 - lambda) * ( (tf + mu * prob_mle_C) / ( Idx.getFieldLength(this.fieldOrdinal, docid) + mu) ) + lambda * prob_mle_C;
+      return this.logSpace ? Math.log (prob_q) : prob_q;
+    }
+
+    public double defaultScore (int docid) {
+      int tf = 0;
+      double prob_q = (1 - lambda) * ( (tf + mu * prob_mle_C) / ( Idx.getFieldLength(this.fieldOrdinal, docid) + mu) ) + lambda * prob_mle_C;
+      return this.logSpace ? Math.log (prob_q) : prob_q;
+    }
+  }
+
+  /**
+   *  #AND for the Indri model:  the geometric mean of the arguments'
+   *  probabilities.
+   */
+  public static final class IndriAnd extends QryScorer {
+    private final QryScorer[] args;
+
+    public IndriAnd (Qry qry, QryScorer[] args) {
+      super (qry);
+      this.args = args;
+    }
+
+    public double score (int docid) throws IOException {
+      double score = 1.0;
+      for (QryScorer arg : this.args) {
+        if (arg.matches (docid)) {
+          score *= arg.score (docid);
+        } else {
+          score *= arg.defaultScore (docid);
+        }
+      }
+      return Math.pow (score, 1.0 / this.args.length);
+    }
+
+    public double defaultScore (int docid) throws IOException {
+      double score = 1.0;
+      for (QryScorer arg : this.args) {
+        score *= arg.defaultScore (docid);
+      }
+      return Math.pow (score, 1.0 / this.args.length);
+    }
+  }
+
+  /**
+   *  #WAND for the Indri model:  the weighted geometric mean of the
+   *  arguments' probabilities.
+   */
+  public static final class IndriWAnd extends QryScorer {
+    private final QryScorer[] args;
+    private final float[] weights;
+    private final double total_wt;
+
+    public IndriWAnd (Qry qry, QryScorer[] args, float[] weights) {
+      super (qry);
+      this.args = args;
+      this.weights = weights;
+
+      double total_wt = 0.0;
+      for (float weight : weights) {
+        total_wt += weight;
+      }
+      this.total_wt = total_wt;
+    }
+
+    public double score (int docid) throws IOException {
+      double score = 1.0;
+      for (int i = 0; i < this.args.length; i++) {
+        double curr_score = this.args[i].matches (docid) ?
+          this.args[i].score (docid) : this.args[i].defaultScore (docid);
+        score *= Math.pow (curr_score, this.weights[i]);
+      }
+      return Math.pow (score, 1.0 / this.total_wt);
+    }
+
+    public double defaultScore (int docid) throws IOException {
+      double score = 1.0;
+      for (int i = 0; i < this.args.length; i++) {
+        score *= Math.pow (this.args[i].defaultScore (docid), this.weights[i]);
+      }
+      return Math.pow (score, 1.0 / this.total_wt);
+    }
+  }
+
+  /**
+   *  #WSUM for the Indri model:  the weighted mean of the arguments'
+   *  probabilities.
+   */
+  public static final class IndriWSum extends QryScorer {
+    private final QryScorer[] args;
+    private final float[] weights;
+    private final double total_wt;
+
+    public IndriWSum (Qry qry, QryScorer[] args, float[] weights) {
+      super (qry);
+      this.args = args;
+      this.weights = weights;
+
+      double total_wt = 0.0;
+      for (float weight : weights) {
+        total_wt += weight;
+      }
+      this.total_wt = total_wt;
+    }
+
+    public double score (int docid) throws IOException {
+      double score = 0.0;
+      for (int i = 0; i < this.args.length; i++) {
+        double curr_score = this.args[i].matches (docid) ?
+          this.args[i].score (docid) : this.args[i].defaultScore (docid);
+        score += (curr_score * this.weights[i]);
+      }
+      return (score / this.total_wt);
+    }
+
+    public double defaultScore (int docid) throws IOException {
+      double score = 0.0;
+      for (int i = 0; i < this.args.length; i++) {
+        score += (this.args[i].defaultScore (docid) * this.weights[i]);
+      }
+      return (score / this.total_wt);
+    }
+  }
+
+  /**
+   *  #AND and #WAND for the Indri model in log space:  the weighted sum
+   *  of the arguments' log probabilities.
+   */
+  public static final class IndriLogWAnd extends QryScorer {
+    private final QryScorer[] args;
+    private final double[] normalizedWeights;
+
+    public IndriLogWAnd (Qry qry, QryScorer[] args, double[] normalizedWeights) {
+      super (qry);
+      this.args = args;
+      this.normalizedWeights = normalizedWeights;
+    }
+
+    public double score (int docid) throws IOException {
+      double score = 0.0;
+      for (int i = 0; i < this.args.length; i++) {
+        if (this.args[i].matches (docid)) {
+          score += this.normalizedWeights[i] * this.args[i].score (docid);
+        } else {
+          score += this.normalizedWeights[i] * this.args[i].defaultScore (docid);
+        }
+      }
+      return score;
+    }
+
+    public double defaultScore (int docid) throws IOException {
+      double score = 0.0;
+      for (int i = 0; i < this.args.length; i++) {
+        score += this.normalizedWeights[i] * this.args[i].defaultScore (docid);
+      }
+      return score;
+    }
+  }
+
+  /**
+   *  #WSUM for the Indri model in log space:  the log of the weighted
+   *  mean of the arguments' probabilities.  A plan is used by one
+   *  thread, so the arguments' scores go in one array per node.
+   */
+  public static final class IndriLogWSum extends QryScorer {
+    private final QryScorer[] args;
+    private final double[] normalizedWeights;
+    private final double[] scores;	// Reused for each document
+
+    public IndriLogWSum (Qry qry, QryScorer[] args, double[] normalizedWeights) {
+      super (qry);
+      this.args = args;
+      this.normalizedWeights = normalizedWeights;
+      this.scores = new double[args.length];
+    }
+
+    public double score (int docid) throws IOException {
+      double[] scores = this.scores;
+      for (int i = 0; i < this.args.length; i++) {
+        scores[i] = this.args[i].matches (docid) ?
+          this.args[i].score (docid) : this.args[i].defaultScore (docid);
+      }
+      return QrySopWSum.getLogSum (scores, this.normalizedWeights);
+    }
+
+    public double defaultScore (int docid) throws IOException {
+      double[] scores = this.scores;
+      for (int i = 0; i < this.args.length; i++) {
+        scores[i] = this.args[i].defaultScore (docid);
+      }
+      return QrySopWSum.getLogSum (scores, this.normalizedWeights);
+    }
+  }
+}
@@ -2,6 +2,7 @@
  *  Copyright (c) 2017, Carnegie Mellon University.  All Rights Reserved.
  */
 import java.io.*;
+import java.util.*;
 
 /**
  *  The root class of all query operators that use a retrieval model
@@ -14,6 +15,12 @@ import java.io.*;
  */
 public abstract class QrySop extends Qry {
 
+  /**
+   *  Indri log space:  the argument weights, normalized by initialize
+   *  (#AND, #WAND, and #WSUM), or null in other modes.
+   */
+  protected double[] normalizedWeights = null;
+
   /**
    *  Get a score for the document that docIteratorHasMatch matched.
    *  @param r The retrieval model that determines how scores are calculated.
@@ -33,6 +40,345 @@ public abstract class QrySop extends Qry {
 
   public abstract double getDefaultScore (RetrievalModel r, int doc_id)
           throws IOException;
+  /**
+   *  Compile the query operator into a QryScorer for a retrieval
+   *  model.  Call it after the query is initialized, because the
+   *  scorer copies the document-independent values that initialize
+   *  computes.  See QryScorer.
+   *  @param r The retrieval model that determines how scores are calculated.
+   *  @return The scorer, or null if the operator or one of its
+   *  arguments doesn't support the retrieval model, in which case
+   *  getScore must be used.
+   */
+  public QryScorer compile (RetrievalModel r) {
+    return null;
+  }
+
+  /**
+   *  Compile the arguments of the query operator.
+   *  @param r The retrieval model that determines how scores are calculated.
+   *  @return The arguments' scorers, in argument order, or null if one
+   *  of them can't be compiled.
+   */
+  protected QryScorer[] compileArgs (RetrievalModel r) {
+    QryScorer[] scorers = new QryScorer[this.args.size ()];
+
+    for (int i = 0; i < scorers.length; i++) {
+      Qry q_i = this.args.get (i);
+
+      if (! (q_i instanceof QrySop) ||
+          ((scorers[i] = ((QrySop) q_i).compile (r)) == null)) {
+        return null;
+      }
+    }
+
+    return scorers;
+  }
+
+  /**
+   *  Get the weights of the query operator's arguments.
+   *  @return The weights, in argument order.
+   */
+  protected float[] getArgWeights () {
+    float[] weights = new float[this.args.size ()];
+
+    for (int i = 0; i < weights.length; i++) {
+      weights[i] = this.args.get (i).getWeight ();
+    }
+
+    return weights;
+  }
+
+  /**
+   *  Indicates whether evaluateIndriMaxScore can evaluate the query:
+   *  the retrieval model is Indri with pruning, and the query is a
+   *  tree of #AND and #WAND operators over SCORE operators (e.g., an
+   *  expanded query from relevance feedback).  In log space the score
+   *  of such a tree is a weighted sum of its SCORE operators' scores.
+   *  @param r The retrieval model.
+   *  @return True if the query can be evaluated with pruning.
+   */
+  public boolean canUseIndriPruning (RetrievalModel r) {
+    return ((r instanceof RetrievalModelIndri) &&
+            ! ((RetrievalModelIndri) r).getPruning ().equals ("none") &&
+            this.collectIndriLeaves (1.0, new ArrayList<QrySopScore> (),
+                                     new ArrayList<Double> ()));
+  }
+
+  /**
+   *  Find the SCORE operators of a tree of #AND and #WAND operators,
+   *  and the weight of each one in the tree's log-space score.
+   *  @return False if the tree has other operators.
+   */
+  private boolean collectIndriLeaves (double weight, List<QrySopScore> leaves,
+                                      List<Double> weights) {
+
+    if (this instanceof QrySopScore) {
+      leaves.add ((QrySopScore) this);
+      weights.add (weight);
+      return true;
+    }
+
+    if (! ((this instanceof QrySopAnd) || (this instanceof QrySopWAnd)) ||
+        (this.normalizedWeights == null)) {
+      return false;
+    }
+
+    for (int i = 0; i < this.args.size (); i++) {
+      Qry q_i = this.args.get (i);
+
+      if (! (q_i instanceof QrySop) ||
+          ! ((QrySop) q_i).collectIndriLeaves (weight * this.normalizedWeights[i],
+                                               leaves, weights)) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  /**
+   *  Evaluate an initialized Indri query for the top k documents with
+   *  MaxScore dynamic pruning.  Every document that a SCORE operator
+   *  matches is a candidate, but each one's log probability is at
+   *  most the sum of its operators' largest default scores (the base)
+   *  plus, for each operator that matches it, the most that a match
+   *  can add (its gain).  The operators with the smallest gains, whose
+   *  gains plus the base can't reach the collector's threshold, are
+   *  non-essential:  only documents that an essential operator matches
+   *  are candidates.
+   *  <p>
+   *  A candidate's bound uses the actual scores of the essential
+   *  operators that match it and the gains of the non-essential
+   *  operators, which are lowered to the bounds of the candidate's
+   *  blocks for terms in the BlockMaxIndex.  The non-essential
+   *  operators are then advanced to the candidate, largest gain
+   *  first, and each one's gain is replaced by its actual score, or
+   *  by nothing if it doesn't match.  A candidate whose bound falls
+   *  below the threshold is skipped without being scored by the
+   *  whole query; the rest are scored exactly as getScore does.
+   *  </p>
+   *  @param r The retrieval model (Indri, in log space).
+   *  @param topK Collects the scores.
+   *  @return The number of candidate documents that weren't scored.
+   *  @throws IOException Error accessing the Lucene index
+   */
+  public long evaluateIndriMaxScore (RetrievalModel r, TopKCollector topK)
+    throws IOException {
+
+    List<QrySopScore> leaves = new ArrayList<QrySopScore> ();
+    List<Double> weights = new ArrayList<Double> ();
+    this.collectIndriLeaves (1.0, leaves, weights);
+
+    //  Compute the base and the gains, and sort the operators by gain.
+
+    int n = leaves.size ();
+    double base = 0.0;
+    final double[] gains = new double[n];
+    double[] maxDefaults = new double[n];
+    Integer[] order = new Integer[n];
+
+    for (int i = 0; i < n; i++) {
+      double maxDefault = weights.get (i) * leaves.get (i).getMaxDefaultScoreIndri (r);
+      double maxMatch = weights.get (i) * leaves.get (i).getMaxScoreIndri (r);
+
+      base += maxDefault;
+      maxDefaults[i] = maxDefault;
+      gains[i] = Math.max (0.0, maxMatch - maxDefault);
+      order[i] = i;
+    }
+
+    Arrays.sort (order, new Comparator<Integer> () {
+      public int compare (Integer i, Integer j) {
+        return Double.compare (gains[i], gains[j]);
+      }
+    });
+
+    QrySopScore[] sorted = new QrySopScore[n];
+    double[] sortedWeights = new double[n];
+    double[] sortedMaxDefaults = new double[n];
+    double[] sumOfGains = new double[n];	// of sorted[0..i]
+    BlockMaxIndex.Cursor[] cursors = new BlockMaxIndex.Cursor[n];
+    double[] candidateGains = new double[n];	// Of one candidate
+
+    for (int i = 0; i < n; i++) {
+      sorted[i] = leaves.get (order[i]);
+      cursors[i] = sorted[i].getBlockMaxCursor ();
+      sortedWeights[i] = weights.get (order[i]);
+      sortedMaxDefaults[i] = maxDefaults[order[i]];
+      sumOfGains[i] = gains[order[i]] + ((i > 0) ? sumOfGains[i - 1] : 0.0);
+    }
+
+    long skipped = 0;
+
+    while (true) {
+
+      //  A document that ties the threshold may still win on its
+      //  external id, so there is a little slack for rounding.
+
+      double threshold = topK.getThreshold ();
+      double limit = threshold - 1e-9 * Math.abs (threshold);
+      int essential = 0;
+
+      while ((essential < n) && (base + sumOfGains[essential] < limit)) {
+        essential++;
+      }
+
+      if (essential == n) {
+        break;			// No remaining document can make the top k
+      }
+
+      //  The candidate is the next document of an essential operator.
+
+      int docid = Qry.INVALID_DOCID;
+
+      for (int i = essential; i < n; i++) {
+        if (sorted[i].docIteratorHasMatch (r)) {
+          int d = sorted[i].docIteratorGetMatch ();
+          if ((docid == Qry.INVALID_DOCID) || (d < docid)) {
+            docid = d;
+          }
+        }
+      }
+
+      if (docid == Qry.INVALID_DOCID) {
+        break;
+      }
+
+      //  The essential operators that match the candidate add their
+      //  actual scores; the others add at most their default bounds,
+      //  which are in the base.
+
+      double bound = base + ((essential > 0) ? sumOfGains[essential - 1] : 0.0);
+
+      for (int i = essential; i < n; i++) {
+        if (sorted[i].docIteratorHasMatch (r) &&
+            (sorted[i].docIteratorGetMatch () == docid)) {
+          bound += sortedWeights[i] * sorted[i].getScore (r) - sortedMaxDefaults[i];
+        }
+      }
+
+      //  Lower the non-essential gains to the bounds of the blocks
+      //  that contain the candidate.  A list that has no block there
+      //  doesn't match the candidate.
+
+      for (int i = 0; i < essential; i++) {
+        candidateGains[i] = gains[order[i]];
+
+        if (cursors[i] != null) {
+          candidateGains[i] = ! cursors[i].advanceTo (docid) ? 0.0 :
+            Math.min (candidateGains[i],
+                      Math.max (0.0, sortedWeights[i] * sorted[i].getBlockMaxScoreIndri (r, cursors[i]) -
+                                sortedMaxDefaults[i]));
+          bound -= gains[order[i]] - candidateGains[i];
+        }
+      }
+
+      //  Replace the non-essential gains with actual scores, largest
+      //  gain first, until the bound falls below the threshold.
+
+      for (int i = essential - 1; (i >= 0) && (bound >= limit); i--) {
+        bound -= candidateGains[i];
+        sorted[i].docIteratorAdvanceTo (docid);
+
+        if (sorted[i].docIteratorHasMatch (r) &&
+            (sorted[i].docIteratorGetMatch () == docid)) {
+          bound += sortedWeights[i] * sorted[i].getScore (r) - sortedMaxDefaults[i];
+        }
+      }
+
+      if (bound < limit) {
+        skipped++;
+      } else {
+        this.docIteratorAdvanceTo (docid);
+
+        if (this.docIteratorHasMatch (r) &&
+            (this.docIteratorGetMatch () == docid)) {
+          topK.add (docid, this.getScore (r));
+        }
+      }
+
+      for (int i = essential; i < n; i++) {
+        if (sorted[i].docIteratorHasMatch (r) &&
+            (sorted[i].docIteratorGetMatch () == docid)) {
+          sorted[i].docIteratorAdvancePast (docid);
+        }
+      }
+    }
+
+    return skipped;
+  }
+
+  /**
+   *  Divide the weights of query arguments by their total, so that
+   *  they sum to 1.
+   *  @param args The query arguments.
+   *  @return The normalized weights, in argument order.
+   */
+  protected static double[] getNormalizedWeights (List<Qry> args) {
+    double[] weights = new double[args.size ()];
+    double total_wt = 0.0;
+
+    for (int i = 0; i < weights.length; i++) {
+      weights[i] = args.get (i).getWeight ();
+      total_wt += weights[i];
+    }
+
+    for (int i = 0; i < weights.length; i++) {
+      weights[i] /= total_wt;
+    }
+
+    return weights;
+  }
+
+  /**
+   *  getScore for #AND and #WAND in Indri log space:  the weighted
+   *  sum of the arguments' log probabilities, using normalizedWeights.
+   *  @param r The retrieval model that determines how scores are calculated.
+   *  @param doc_id The document to score.
+   *  @return The log probability of the document.
+   *  @throws IOException Error accessing the Lucene index
+   */
+  protected double getLogScoreIndri (RetrievalModel r, int doc_id)
+    throws IOException {
+
+    double score = 0.0;
+
+    for (int i = 0; i < this.args.size (); i++) {
+      Qry q_i = this.args.get (i);
+
+      if (! q_i.docIteratorHasMatchCache () ||
+          (doc_id != q_i.docIteratorGetMatch ())) {
+        score += this.normalizedWeights[i] * ((QrySop) q_i).getDefaultScore (r, doc_id);
+      } else {
+        score += this.normalizedWeights[i] * ((QrySop) q_i).getScore (r);
+      }
+    }
+
+    return score;
+  }
+
+  /**
+   *  getDefaultScore for #AND and #WAND in Indri log space:  the
+   *  weighted sum of the arguments' default log probabilities.
+   *  @param r The retrieval model that determines how scores are calculated.
+   *  @param doc_id The document to score.
+   *  @return The log probability of the document.
+   *  @throws IOException Error accessing the Lucene index
+   */
+  protected double getLogDefaultScoreIndri (RetrievalModel r, int doc_id)
+    throws IOException {
+
+    double score = 0.0;
+
+    for (int i = 0; i < this.args.size (); i++) {
+      score += this.normalizedWeights[i] *
+        ((QrySop) this.args.get (i)).getDefaultScore (r, doc_id);
+    }
+
+    return score;
+  }
+
   /**
    *  Initialize the query operator (and its arguments), including any
    *  internal iterators.  If the query operator is of type QryIop, it
@@ -45,5 +391,7 @@ public abstract class QrySop extends Qry {
     for (Qry q_i: this.args) {
       q_i.initialize (r);
     }
+
+    this.unionIterator = null;
   }
 }
@@ -3,12 +3,29 @@
  */
 
 import java.io.*;
+import java.util.*;
 
 /**
  *  The AND operator for all retrieval models.
  */
 public class QrySopAnd extends QrySop {
 
+    /**
+     *  Initialize the query operator and its arguments.  In Indri log
+     *  space, the geometric mean becomes an average of the arguments'
+     *  log probabilities, so its weights are computed here once.
+     *  @param r A retrieval model that guides initialization
+     *  @throws IOException Error accessing the Lucene index.
+     */
+    public void initialize (RetrievalModel r) throws IOException {
+        super.initialize(r);
+
+        if ((r instanceof RetrievalModelIndri) && ((RetrievalModelIndri) r).isLogSpace()) {
+            this.normalizedWeights = new double[this.args.size()];
+            Arrays.fill(this.normalizedWeights, 1.0 / this.args.size());
+        }
+    }
+
     /**
      *  Indicates whether the query has a match.
      *  @param r The retrieval model that determines what is a match
@@ -47,6 +64,32 @@ public class QrySopAnd extends QrySop {
         }
     }
 
+    /**
+     *  Compile the query operator into a QryScorer for a retrieval model.
+     *  @param r The retrieval model that determines how scores are calculated.
+     *  @return The scorer, or null if the model isn't supported.
+     */
+    public QryScorer compile (RetrievalModel r) {
+
+        if (r instanceof RetrievalModelUnrankedBoolean) {
+            return new QryScorer.Constant(this, 1.0);
+        }
+
+        QryScorer[] args = this.compileArgs(r);
+
+        if (args == null) {
+            return null;
+        } else if (r instanceof RetrievalModelRankedBoolean) {
+            return new QryScorer.RankedBooleanAnd(this, args);
+        } else if (r instanceof RetrievalModelIndri) {
+            return (this.normalizedWeights != null) ?
+                new QryScorer.IndriLogWAnd(this, args, this.normalizedWeights) :
+                new QryScorer.IndriAnd(this, args);
+        } else {
+            return null;
+        }
+    }
+
     /**
      *  getScore for the UnrankedBoolean retrieval model.
      *  @param r The retrieval model that determines how scores are calculated.
@@ -98,6 +141,10 @@ public class QrySopAnd extends QrySop {
             if (this.docIteratorHasMatch(r)){
                 doc_id = this.docIteratorGetMatch();
             }
+            if (this.normalizedWeights != null) {
+                return this.getLogScoreIndri(r, doc_id);
+            }
+
             double score =  1.0;
 
             for(int i = 0; i < this.args.size(); i++){
@@ -116,6 +163,10 @@ public class QrySopAnd extends QrySop {
 
     public double getDefaultScore (RetrievalModel r, int doc_id) throws IOException{
 
+        if (this.normalizedWeights != null) {
+            return this.getLogDefaultScoreIndri(r, doc_id);
+        }
+
         double score = 1.0;
         if (r instanceof RetrievalModelIndri) {
 
@@ -39,6 +39,23 @@ public class QrySopOr extends QrySop {
     }
   }
   
+  /**
+   *  Compile the query operator into a QryScorer for a retrieval model.
+   *  @param r The retrieval model that determines how scores are calculated.
+   *  @return The scorer, or null if the model isn't supported.
+   */
+  public QryScorer compile (RetrievalModel r) {
+
+    if (r instanceof RetrievalModelUnrankedBoolean) {
+      return new QryScorer.Constant (this, 1.0);
+    } else if (r instanceof RetrievalModelRankedBoolean) {
+      QryScorer[] args = this.compileArgs (r);
+      return (args == null) ? null : new QryScorer.RankedBooleanOr (this, args);
+    } else {
+      return null;
+    }
+  }
+
   /**
    *  getScore for the UnrankedBoolean retrieval model.
    *  @param r The retrieval model that determines how scores are calculated.
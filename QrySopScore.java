@@ -12,9 +12,28 @@ public class QrySopScore extends QrySop {
 
   /**
    *  Document-independent values that should be determined just once.
-   *  Some retrieval models have these, some don't.
+   *  Some retrieval models have these, some don't.  They are set by
+   *  initializeStatistics.
    */
-  
+
+  private String field;
+  private int fieldOrdinal;
+  private FieldStats fieldStats;
+
+  //  BM25:  the RSJ weight of the term, and the model parameters.
+
+  private double rsjWeight;
+  private float k1;
+  private float b;
+
+  //  Indri:  P (t | C), the model parameters, and whether scores are
+  //  log probabilities.
+
+  private double probMleC;
+  private float mu;
+  private float lambda;
+  private boolean logSpace;
+
   /**
    *  Indicates whether the query has a match.
    *  @param r The retrieval model that determines what is a match
@@ -58,21 +77,179 @@ public class QrySopScore extends QrySop {
     } else {
 
       Qry q = this.args.get(0);
-      String field = ((QryIop) q).field;
       int doc_id = ((QryIop) q).docIteratorGetMatch();
-      int tf = ((QryIop) q).docIteratorGetMatchPosting().tf;
-      int df = ((QryIop) q).getDf();
-      double N = (double)Idx.getNumDocs();
-      float k1 = ((RetrievalModelBM25) r).getK_1();
-      float b = ((RetrievalModelBM25) r).getB();
-      long doc_len = Idx.getFieldLength(field, doc_id);
-
-      double RSJ_wt = Math.max(0, Math.log( (N - df + 0.5) / (df + 0.5) ));
-      double avg_doc_len = (double)Idx.getSumOfFieldLengths(field) / Idx.getDocCount(field);
+      int tf = ((QryIop) q).docIteratorGetMatchTf();
+      long doc_len = Idx.getFieldLength(this.fieldOrdinal, doc_id);
+
+      double avg_doc_len = this.fieldStats.avgDocLength;
       double term_wt = tf / (tf + k1 * ( 1 - b + ( b * doc_len / avg_doc_len)));
 
-      return RSJ_wt * term_wt;
+      return this.rsjWeight * term_wt;
+    }
+  }
+
+  /**
+   *  Compile the query operator into a QryScorer for a retrieval model.
+   *  @param r The retrieval model that determines how scores are calculated.
+   *  @return The scorer, or null if the model isn't supported.
+   */
+  public QryScorer compile (RetrievalModel r) {
+
+    QryIop q = (QryIop) this.args.get (0);
+
+    if (r instanceof RetrievalModelUnrankedBoolean) {
+      return new QryScorer.Constant (this, 1.0);
+    } else if (r instanceof RetrievalModelRankedBoolean) {
+      return new QryScorer.RankedBooleanScore (this, q);
+    } else if (r instanceof RetrievalModelBM25) {
+      return new QryScorer.BM25Score (this, q, this.fieldOrdinal,
+                                      this.fieldStats.avgDocLength,
+                                      this.rsjWeight, this.k1, this.b);
+    } else if (r instanceof RetrievalModelIndri) {
+      return new QryScorer.IndriScore (this, q, this.fieldOrdinal,
+                                       this.probMleC, this.mu, this.lambda,
+                                       this.logSpace);
+    } else {
+      return null;
+    }
+  }
+
+  /**
+   *  Get an upper bound on the BM25 score of any document that the
+   *  argument matches.  The tf weight grows with tf and shrinks with
+   *  the document length, so it is largest for the largest tf and a
+   *  document of length 0.  The bound is raised slightly so that
+   *  rounding can't make an actual score exceed it.
+   *  @param r The retrieval model that determines how scores are calculated.
+   *  @return The upper bound, or positive infinity if b &gt; 1, which
+   *  makes short documents unbounded.
+   */
+  public double getMaxScoreBM25 (RetrievalModel r) {
+    double minNorm = k1 * (1 - b);
+
+    if (minNorm < 0) {
+      return Double.POSITIVE_INFINITY;
     }
+
+    double maxTf = ((QryIop) this.args.get (0)).getMaxTf ();
+
+    if (maxTf == 0) {
+      return 0.0;
+    }
+
+    return this.rsjWeight * (maxTf / (maxTf + minNorm)) * (1 + 1e-9);
+  }
+
+  /**
+   *  Get a BlockMaxIndex cursor over the argument's inverted list.
+   *  @return A new cursor, or null if the argument isn't a term that
+   *  the current index's BlockMaxIndex has.
+   */
+  public BlockMaxIndex.Cursor getBlockMaxCursor () {
+    Qry q = this.args.get (0);
+    return (q instanceof QryIopTerm) ?
+      Idx.getBlockMaxCursor (this.field, ((QryIopTerm) q).getTerm ()) : null;
+  }
+
+  /**
+   *  Get an upper bound on the BM25 score of the documents in the
+   *  current block of a BlockMaxIndex cursor.
+   *  @param r The retrieval model that determines how scores are calculated.
+   *  @param cursor A cursor from getBlockMaxCursor.
+   *  @return The upper bound.
+   */
+  public double getBlockMaxScoreBM25 (RetrievalModel r,
+                                      BlockMaxIndex.Cursor cursor) {
+    return this.rsjWeight * cursor.getMaxTfWeight () * (1 + 1e-9);
+  }
+
+  /**
+   *  Get an upper bound on the Indri log probability of any document
+   *  that the argument matches.  For a term in the BlockMaxIndex, the
+   *  bound comes from the largest tf / doclen of its blocks, which is
+   *  computed once per index.  Any other inverted list is scanned on
+   *  every query, and each posting is scored:  a term that isn't in
+   *  the BlockMaxIndex has at most one block of postings, but a list
+   *  that a query operator (e.g., #NEAR or #SYN) computed may be
+   *  long, and the scan costs a doclen lookup per posting.  If the
+   *  postings are streamed, (tf + mu * P (t | C)) / (doclen + mu)
+   *  &lt;= 1 is used, because tf &lt;= doclen.  The bound is raised
+   *  slightly so that rounding can't make an actual score exceed it.
+   *  @param r The retrieval model that determines how scores are calculated.
+   *  @return The upper bound.
+   *  @throws IOException Error accessing the Lucene index
+   */
+  public double getMaxScoreIndri (RetrievalModel r) throws IOException {
+    BlockMaxIndex.Cursor cursor = this.getBlockMaxCursor ();
+
+    if (cursor != null) {
+      return getMaxScoreIndri (cursor.getListMaxTfLenRatio ());
+    }
+
+    InvList list = ((QryIop) this.args.get (0)).getInvertedList ();
+    double max_prob = (1 - lambda) + lambda * this.probMleC;
+
+    if (list != null) {
+      max_prob = 0.0;
+
+      for (int i = 0; i < list.df; i++) {
+        max_prob = Math.max (max_prob,
+                             this.getProbIndri (list.getTf (i), list.getDocid (i)));
+      }
+    }
+
+    return raiseBound (Math.log (max_prob));
+  }
+
+  /**
+   *  Get an upper bound on the Indri log probability of the documents
+   *  in the current block of a BlockMaxIndex cursor.  A document's
+   *  (tf + mu * P (t | C)) / (doclen + mu) is at most the larger of
+   *  its tf / doclen and P (t | C).
+   *  @param r The retrieval model that determines how scores are calculated.
+   *  @param cursor A cursor from getBlockMaxCursor.
+   *  @return The upper bound.
+   */
+  public double getBlockMaxScoreIndri (RetrievalModel r,
+                                       BlockMaxIndex.Cursor cursor) {
+    return getMaxScoreIndri (cursor.getMaxTfLenRatio ());
+  }
+
+  /**
+   *  Get an upper bound on the Indri log probability of documents
+   *  whose tf / doclen is at most maxTfLenRatio.
+   */
+  private double getMaxScoreIndri (double maxTfLenRatio) {
+    double max_prob = (1 - lambda) * Math.max (maxTfLenRatio, this.probMleC) +
+      lambda * this.probMleC;
+    return raiseBound (Math.log (max_prob));
+  }
+
+  /**
+   *  Get an upper bound on the Indri log probability of any document
+   *  that the argument doesn't match, which is largest for a document
+   *  of length 0:  log P (t | C).
+   *  @param r The retrieval model that determines how scores are calculated.
+   *  @return The upper bound.
+   */
+  public double getMaxDefaultScoreIndri (RetrievalModel r) {
+    return raiseBound (Math.log (this.probMleC));
+  }
+
+  private static double raiseBound (double bound) {
+    return Double.isInfinite (bound) ? bound : bound + 1e-9 * Math.abs (bound);
+  }
+
+  /**
+   *  Get the smoothed probability of the argument in a document:
+   *  (1 - lambda) * (tf + mu * P (t | C)) / (doclen + mu) + lambda * P (t | C).
+   */
+  private double getProbIndri (int tf, int doc_id) throws IOException {
+    double prob_mle_C = this.probMleC;
+    int doc_len = Idx.getFieldLength (this.fieldOrdinal, doc_id);
+
+    return (1 - lambda) * ((tf + mu * prob_mle_C) / (doc_len + mu)) +
+      lambda * prob_mle_C;
   }
 
   //Calculate score for Indri when the term is present in the doc using the formula.
@@ -84,16 +261,11 @@ public class QrySopScore extends QrySop {
       //calculate probability
 
       Qry q = this.args.get(0);
-      String field = ((QryIop)q).field;
       int doc_id = ((QryIop)q).docIteratorGetMatch();
-      float lambda = ((RetrievalModelIndri)r).getLambda();
-      float mu = ((RetrievalModelIndri)r).getMu();
-      int tf = ((QryIop) q).docIteratorGetMatchPosting().tf;
-      double ctf = ((QryIop) q).getCtf();
-      double prob_mle_C = ctf / Idx.getSumOfFieldLengths(field);
-      double prob_q = (1 - lambda) * ( (tf + mu * prob_mle_C) / ( Idx.getFieldLength(field, doc_id) + mu) ) + lambda * prob_mle_C;
+      int tf = ((QryIop) q).docIteratorGetMatchTf();
+      double prob_q = this.getProbIndri (tf, doc_id);
 
-      return prob_q;
+      return this.logSpace ? Math.log (prob_q) : prob_q;
 
     }
   }
@@ -104,16 +276,9 @@ public class QrySopScore extends QrySop {
 
       //calculate score if matched by getting the arguments frequency
 
-      Qry q = this.args.get(0);
-      String field = ((QryIop)q).field;
-      float lambda = ((RetrievalModelIndri)r).getLambda();
-      float mu = ((RetrievalModelIndri)r).getMu();
-      int tf = 0;
-      double ctf = ((QryIop) q).getCtf();
-      double prob_mle_C = ctf / Idx.getSumOfFieldLengths(field);
-      double prob_q = (1 - lambda) * ( (tf + mu * prob_mle_C) / ( Idx.getFieldLength(field, doc_id) + mu) ) + lambda * prob_mle_C;
+      double prob_q = this.getProbIndri (0, doc_id);
 
-      return prob_q;
+      return this.logSpace ? Math.log (prob_q) : prob_q;
   }
 
 
@@ -155,7 +320,7 @@ public class QrySopScore extends QrySop {
       //calculate score if matched by getting the arguments frequency
 
       Qry q = this.args.get(0);
-      return ((QryIop) q).docIteratorGetMatchPosting().tf;
+      return ((QryIop) q).docIteratorGetMatchTf();
 
     }
   }
@@ -172,6 +337,37 @@ public class QrySopScore extends QrySop {
 
     Qry q = this.args.get (0);
     q.initialize (r);
+    this.initializeStatistics (r);
+  }
+
+  /**
+   *  Compute the document-independent values that the retrieval model
+   *  uses to score the argument's documents.  initialize calls this;
+   *  call it again if the argument's df or ctf change afterwards (see
+   *  QryIop.setCollectionStatistics).
+   *  @param r A retrieval model that guides initialization
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public void initializeStatistics (RetrievalModel r) throws IOException {
+
+    QryIop q = (QryIop) this.args.get (0);
+    this.field = q.getField ();
+    this.fieldOrdinal = Idx.getFieldOrdinal (this.field);
+    this.fieldStats = Idx.getFieldStats (this.field);
+
+    if (r instanceof RetrievalModelBM25) {
+      double N = (double) this.fieldStats.numDocs;
+      int df = q.getDf ();
+      this.rsjWeight = Math.max(0, Math.log( (N - df + 0.5) / (df + 0.5) ));
+      this.k1 = ((RetrievalModelBM25) r).getK_1 ();
+      this.b = ((RetrievalModelBM25) r).getB ();
+    } else if (r instanceof RetrievalModelIndri) {
+      double ctf = q.getCtf ();
+      this.probMleC = ctf / this.fieldStats.sumTotalTermFreq;
+      this.lambda = ((RetrievalModelIndri) r).getLambda ();
+      this.mu = ((RetrievalModelIndri) r).getMu ();
+      this.logSpace = ((RetrievalModelIndri) r).isLogSpace ();
+    }
   }
 
 
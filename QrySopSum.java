@@ -1,4 +1,5 @@
 import java.io.*;
+import java.util.*;
 
 /**
  * Created by akshatgaur on 2/18/17.
@@ -40,6 +41,21 @@ public class QrySopSum extends QrySop {
         }
     }
 
+    /**
+     *  Compile the query operator into a QryScorer for a retrieval model.
+     *  @param r The retrieval model that determines how scores are calculated.
+     *  @return The scorer, or null if the model isn't supported.
+     */
+    public QryScorer compile (RetrievalModel r) {
+
+        QryScorer[] args = this.compileArgs(r);
+
+        if ((args == null) || ! (r instanceof RetrievalModelBM25)) {
+            return null;
+        }
+        return new QryScorer.BM25Sum(this, args, this.getQtfScoreBM25(r));
+    }
+
     /**
      *  Get a score for the BM25 model if term is present in the doc ID.
      *  @param r The retrieval model that determines how scores are calculated.
@@ -70,6 +86,295 @@ public class QrySopSum extends QrySop {
         }
     }
 
+    /**
+     *  Indicates whether evaluateMaxScore or evaluateBlockMaxWand can
+     *  evaluate the query:  the retrieval model is BM25 with pruning,
+     *  and every argument is a SCORE operator, so each one has a score
+     *  bound.
+     *  @param r The retrieval model.
+     *  @return True if the query can be evaluated with pruning.
+     */
+    public boolean canUsePruning (RetrievalModel r) {
+        if (! (r instanceof RetrievalModelBM25) ||
+            ((RetrievalModelBM25) r).getPruning().equals("none")) {
+            return false;
+        }
+        for (Qry q_i : this.args) {
+            if (! (q_i instanceof QrySopScore)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     *  Evaluate an initialized query for the top k documents with
+     *  MaxScore dynamic pruning.  The arguments are ordered by their
+     *  score bounds.  A document can only make the top k if its score
+     *  can reach the collector's threshold, so the arguments with the
+     *  smallest bounds, whose bounds sum to less than the threshold,
+     *  are non-essential:  only documents that an essential argument
+     *  matches are candidates, and the non-essential arguments are
+     *  advanced to the candidates, skipping the documents in between.
+     *  A candidate whose essential scores plus non-essential bounds
+     *  can't reach the threshold isn't scored.  The documents that
+     *  are scored get exactly the same scores as from getScore, so the
+     *  top k are the same as exhaustive evaluation.
+     *  @param r The retrieval model (BM25).
+     *  @param topK Collects the scores.
+     *  @return The number of candidate documents that weren't scored.
+     *  @throws IOException Error accessing the Lucene index
+     */
+    public long evaluateMaxScore (RetrievalModel r, TopKCollector topK) throws IOException {
+
+        //  Sort the arguments by their bounds, smallest first.
+
+        int n = this.args.size();
+        double qtf_score = this.getQtfScoreBM25(r);
+        final double[] bounds = this.getMaxScoresBM25(r);
+        Integer[] order = new Integer[n];
+
+        for (int i = 0; i < n; i++) {
+            order[i] = i;
+        }
+
+        Arrays.sort(order, new Comparator<Integer>() {
+            public int compare(Integer i, Integer j) {
+                return Double.compare(bounds[i], bounds[j]);
+            }
+        });
+
+        QrySop[] sorted = new QrySop[n];
+        double[] sumOfBounds = new double[n];	// of sorted[0..i]
+
+        for (int i = 0; i < n; i++) {
+            sorted[i] = (QrySop) this.args.get(order[i]);
+            sumOfBounds[i] = bounds[order[i]] + ((i > 0) ? sumOfBounds[i - 1] : 0);
+        }
+
+        long skipped = 0;
+
+        while (true) {
+
+            double limit = getPruningLimit(topK);
+            int essential = 0;
+
+            while ((essential < n) && (sumOfBounds[essential] < limit)) {
+                essential++;
+            }
+
+            if (essential == n) {
+                break;			// No remaining document can make the top k
+            }
+
+            //  The candidate is the next document of an essential argument.
+
+            int doc_id = Qry.INVALID_DOCID;
+
+            for (int i = essential; i < n; i++) {
+                if (sorted[i].docIteratorHasMatch(r)) {
+                    int d = sorted[i].docIteratorGetMatch();
+                    if ((doc_id == Qry.INVALID_DOCID) || (d < doc_id)) {
+                        doc_id = d;
+                    }
+                }
+            }
+
+            if (doc_id == Qry.INVALID_DOCID) {
+                break;
+            }
+
+            double bound = (essential > 0) ? sumOfBounds[essential - 1] : 0.0;
+
+            for (int i = essential; i < n; i++) {
+                if (sorted[i].docIteratorHasMatch(r) &&
+                    (sorted[i].docIteratorGetMatch() == doc_id)) {
+                    bound += sorted[i].getScore(r) * qtf_score;
+                }
+            }
+
+            if ((essential > 0) && (bound < limit)) {
+                skipped++;
+            } else {
+                for (int i = 0; i < essential; i++) {
+                    sorted[i].docIteratorAdvanceTo(doc_id);
+                }
+
+                topK.add(doc_id, this.getPrunedScoreBM25(r, doc_id, qtf_score));
+            }
+
+            for (int i = essential; i < n; i++) {
+                sorted[i].docIteratorAdvancePast(doc_id);
+            }
+        }
+
+        return skipped;
+    }
+
+    /**
+     *  Evaluate an initialized query for the top k documents with
+     *  Block-Max WAND dynamic pruning.  The arguments are kept in order
+     *  of their current documents.  The pivot is the first document
+     *  whose arguments' list bounds can reach the collector's
+     *  threshold; no earlier document can, so the arguments before it
+     *  skip to it.  If the bounds of the pivot's blocks (from the
+     *  BlockMaxIndex) can't reach the threshold either, no document
+     *  up to the end of the shortest of those blocks can, and they are
+     *  all skipped.  Arguments that aren't terms in the BlockMaxIndex
+     *  use their list bounds for every block.  The documents that are
+     *  scored get exactly the same scores as from getScore.
+     *  @param r The retrieval model (BM25).
+     *  @param topK Collects the scores.
+     *  @return The number of pivot documents that weren't scored.
+     *  @throws IOException Error accessing the Lucene index
+     */
+    public long evaluateBlockMaxWand (RetrievalModel r, TopKCollector topK) throws IOException {
+
+        int n = this.args.size();
+        double qtf_score = this.getQtfScoreBM25(r);
+        double[] bounds = this.getMaxScoresBM25(r);
+        QrySopScore[] scorers = new QrySopScore[n];
+        BlockMaxIndex.Cursor[] cursors = new BlockMaxIndex.Cursor[n];
+        int[] docids = new int[n];
+        int[] order = new int[n];
+
+        for (int i = 0; i < n; i++) {
+            scorers[i] = (QrySopScore) this.args.get(i);
+            cursors[i] = scorers[i].getBlockMaxCursor();
+            order[i] = i;
+        }
+
+        long skipped = 0;
+
+        while (true) {
+
+            //  Order the arguments by their current documents.  There
+            //  are few arguments, and they are mostly in order already.
+
+            for (int i = 0; i < n; i++) {
+                docids[i] = scorers[i].docIteratorHasMatch(r) ?
+                    scorers[i].docIteratorGetMatch() : Integer.MAX_VALUE;
+            }
+
+            for (int j = 1; j < n; j++) {
+                int i = order[j];
+                int k = j - 1;
+                while ((k >= 0) && (docids[order[k]] > docids[i])) {
+                    order[k + 1] = order[k];
+                    k--;
+                }
+                order[k + 1] = i;
+            }
+
+            //  Find the pivot.
+
+            double limit = getPruningLimit(topK);
+            double sumOfBounds = 0.0;
+            int pivot = -1;
+
+            for (int j = 0; (j < n) && (docids[order[j]] != Integer.MAX_VALUE); j++) {
+                sumOfBounds += bounds[order[j]];
+                if (sumOfBounds >= limit) {
+                    pivot = j;
+                    break;
+                }
+            }
+
+            if (pivot < 0) {
+                break;			// No remaining document can make the top k
+            }
+
+            int doc_id = docids[order[pivot]];
+
+            while ((pivot + 1 < n) && (docids[order[pivot + 1]] == doc_id)) {
+                pivot++;
+            }
+
+            //  Check the bounds of the blocks that contain the pivot.
+
+            double sumOfBlockBounds = 0.0;
+            int nextDocid = (pivot + 1 < n) ? docids[order[pivot + 1]] : Integer.MAX_VALUE;
+
+            for (int j = 0; j <= pivot; j++) {
+                int i = order[j];
+                if (cursors[i] == null) {
+                    sumOfBlockBounds += bounds[i];
+                } else if (cursors[i].advanceTo(doc_id)) {
+                    sumOfBlockBounds += scorers[i].getBlockMaxScoreBM25(r, cursors[i]) * qtf_score;
+                    nextDocid = Math.min(nextDocid, cursors[i].getLastDocid() + 1);
+                }
+            }
+
+            if (sumOfBlockBounds < limit) {
+                skipped++;
+                if (nextDocid == Integer.MAX_VALUE) {
+                    break;
+                }
+                for (int j = 0; j <= pivot; j++) {
+                    scorers[order[j]].docIteratorAdvanceTo(nextDocid);
+                }
+            } else if (docids[order[0]] == doc_id) {
+                topK.add(doc_id, this.getPrunedScoreBM25(r, doc_id, qtf_score));
+                for (int j = 0; j <= pivot; j++) {
+                    scorers[order[j]].docIteratorAdvancePast(doc_id);
+                }
+            } else {
+                for (int j = 0; (j <= pivot) && (docids[order[j]] < doc_id); j++) {
+                    scorers[order[j]].docIteratorAdvanceTo(doc_id);
+                }
+            }
+        }
+
+        return skipped;
+    }
+
+    /**
+     *  Get the weight of a query term's frequency in the query.
+     */
+    private double getQtfScoreBM25 (RetrievalModel r) {
+        int qtf = 1;
+        return (((RetrievalModelBM25) r).getK_3() + 1) * qtf / (((RetrievalModelBM25) r).getK_3() + qtf);
+    }
+
+    /**
+     *  Get the upper bound of each argument's contribution to the score.
+     */
+    private double[] getMaxScoresBM25 (RetrievalModel r) {
+        double qtf_score = this.getQtfScoreBM25(r);
+        double[] bounds = new double[this.args.size()];
+
+        for (int i = 0; i < bounds.length; i++) {
+            bounds[i] = ((QrySopScore) this.args.get(i)).getMaxScoreBM25(r) * qtf_score;
+        }
+        return bounds;
+    }
+
+    /**
+     *  Get the score below which a document can't make the top k.  A
+     *  document that ties the collector's threshold may still win on
+     *  its external id, so there is a little slack for rounding.
+     */
+    private static double getPruningLimit (TopKCollector topK) {
+        double threshold = topK.getThreshold();
+        return threshold - 1e-9 * Math.abs(threshold);
+    }
+
+    /**
+     *  Score a document that the pruned evaluators didn't skip.  The
+     *  arguments are summed in argument order, as getScoreBM25 does,
+     *  so the score is exactly the same.
+     */
+    private double getPrunedScoreBM25 (RetrievalModel r, int doc_id, double qtf_score) throws IOException {
+        double score = 0.0;
+
+        for (Qry q_i : this.args) {
+            if (q_i.docIteratorHasMatch(r) && (q_i.docIteratorGetMatch() == doc_id)) {
+                score += ((QrySop) q_i).getScore(r) * qtf_score;
+            }
+        }
+        return score;
+    }
+
     /**
      *  Get a score for the BM25 model if term is not present in the doc ID.
      *  @param r The retrieval model that determines how scores are calculated.
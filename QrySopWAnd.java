@@ -9,6 +9,22 @@ import java.io.*;
  */
 public class QrySopWAnd extends QrySop {
 
+    /**
+     *  Initialize the query operator and its arguments.  In Indri log
+     *  space, the weighted geometric mean becomes a weighted sum of the
+     *  arguments' log probabilities, so the weights are divided by
+     *  their total here once.
+     *  @param r A retrieval model that guides initialization
+     *  @throws IOException Error accessing the Lucene index.
+     */
+    public void initialize (RetrievalModel r) throws IOException {
+        super.initialize(r);
+
+        if ((r instanceof RetrievalModelIndri) && ((RetrievalModelIndri) r).isLogSpace()) {
+            this.normalizedWeights = getNormalizedWeights(this.args);
+        }
+    }
+
     /**
      *  Indicates whether the query has a match.
      *  @param r The retrieval model that determines what is a match
@@ -43,6 +59,22 @@ public class QrySopWAnd extends QrySop {
         }
     }
 
+    /**
+     *  Compile the query operator into a QryScorer for a retrieval model.
+     *  @param r The retrieval model that determines how scores are calculated.
+     *  @return The scorer, or null if the model isn't supported.
+     */
+    public QryScorer compile (RetrievalModel r) {
+
+        QryScorer[] args = this.compileArgs(r);
+
+        if ((args == null) || ! (r instanceof RetrievalModelIndri)) {
+            return null;
+        }
+        return (this.normalizedWeights != null) ?
+            new QryScorer.IndriLogWAnd(this, args, this.normalizedWeights) :
+            new QryScorer.IndriWAnd(this, args, this.getArgWeights());
+    }
 
     //calculate score for Indri Retrieval Model
     private double getScoreIndri (RetrievalModel r) throws IOException {
@@ -54,6 +86,10 @@ public class QrySopWAnd extends QrySop {
             if (this.docIteratorHasMatch(r)){
                 doc_id = this.docIteratorGetMatch();
             }
+            if (this.normalizedWeights != null) {
+                return this.getLogScoreIndri(r, doc_id);
+            }
+
             double score =  1.0;
             double total_wt = 0.0;
 
@@ -83,6 +119,10 @@ public class QrySopWAnd extends QrySop {
 
     public double getDefaultScore (RetrievalModel r, int doc_id) throws IOException{
 
+        if (this.normalizedWeights != null) {
+            return this.getLogDefaultScoreIndri(r, doc_id);
+        }
+
         double score = 1.0;
         double total_wt = 0.0;
 
@@ -6,10 +6,26 @@ import java.io.*;
 
 
 /**
- *  The WAND operator for all retrieval models.
+ *  The WSUM operator for all retrieval models.
  */
 public class QrySopWSum extends QrySop {
 
+    /**
+     *  Initialize the query operator and its arguments.  In Indri log
+     *  space the arguments' scores are log probabilities, which are
+     *  summed with the log-sum-exp trick, using the weights divided by
+     *  their total here once.
+     *  @param r A retrieval model that guides initialization
+     *  @throws IOException Error accessing the Lucene index.
+     */
+    public void initialize (RetrievalModel r) throws IOException {
+        super.initialize(r);
+
+        if ((r instanceof RetrievalModelIndri) && ((RetrievalModelIndri) r).isLogSpace()) {
+            this.normalizedWeights = getNormalizedWeights(this.args);
+        }
+    }
+
     /**
      *  Indicates whether the query has a match.
      *  @param r The retrieval model that determines what is a match
@@ -44,6 +60,22 @@ public class QrySopWSum extends QrySop {
         }
     }
 
+    /**
+     *  Compile the query operator into a QryScorer for a retrieval model.
+     *  @param r The retrieval model that determines how scores are calculated.
+     *  @return The scorer, or null if the model isn't supported.
+     */
+    public QryScorer compile (RetrievalModel r) {
+
+        QryScorer[] args = this.compileArgs(r);
+
+        if ((args == null) || ! (r instanceof RetrievalModelIndri)) {
+            return null;
+        }
+        return (this.normalizedWeights != null) ?
+            new QryScorer.IndriLogWSum(this, args, this.normalizedWeights) :
+            new QryScorer.IndriWSum(this, args, this.getArgWeights());
+    }
 
     //calculate score for Indri Retrieval Model
     private double getScoreIndri (RetrievalModel r) throws IOException {
@@ -55,6 +87,19 @@ public class QrySopWSum extends QrySop {
             if (this.docIteratorHasMatch(r)){
                 doc_id = this.docIteratorGetMatch();
             }
+            if (this.normalizedWeights != null) {
+                double[] scores = new double[this.args.size()];
+                for(int i = 0; i < this.args.size(); i++){
+                    Qry q_i =  this.args.get(i);
+                    if ( !q_i.docIteratorHasMatchCache() || doc_id != q_i.docIteratorGetMatch()){
+                        scores[i] = ((QrySop) q_i).getDefaultScore(r, doc_id);
+                    } else{
+                        scores[i] = ((QrySop) q_i).getScore(r);
+                    }
+                }
+                return getLogSum(scores, this.normalizedWeights);
+            }
+
             double score =  0.0;
             double total_wt = 0.0;
 
@@ -81,8 +126,37 @@ public class QrySopWSum extends QrySop {
         }
     }
 
+    /**
+     *  Get log (sum (w_i * exp (scores[i]))), without underflow.
+     *  @param scores The log probabilities of the arguments.
+     *  @param weights The normalized weights of the arguments.
+     *  @return The log of the weighted sum of the probabilities.
+     */
+    static double getLogSum (double[] scores, double[] weights) {
+        double max = Double.NEGATIVE_INFINITY;
+        for (double s : scores) {
+            max = Math.max(max, s);
+        }
+        if (max == Double.NEGATIVE_INFINITY) {
+            return max;
+        }
+        double sum = 0.0;
+        for(int i = 0; i < scores.length; i++){
+            sum += weights[i] * Math.exp(scores[i] - max);
+        }
+        return max + Math.log(sum);
+    }
+
     public double getDefaultScore (RetrievalModel r, int doc_id) throws IOException{
 
+        if (this.normalizedWeights != null) {
+            double[] scores = new double[this.args.size()];
+            for(int i = 0; i < this.args.size(); i++){
+                scores[i] = ((QrySop) this.args.get(i)).getDefaultScore(r, doc_id);
+            }
+            return getLogSum(scores, this.normalizedWeights);
+        }
+
         double score = 0.0;
         double total_wt = 0.0;
         if (r instanceof RetrievalModelIndri) {
@@ -0,0 +1,250 @@
+/**
+ *  Copyright (c) 2017, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.util.*;
+
+/**
+ *  Finds the smallest docid that any of a query operator's arguments
+ *  matches, for operators whose matches are the union of their
+ *  arguments' matches (e.g., #SYN, #OR, #SUM, and the Indri #AND).
+ *  A linear scan of the arguments costs O(n) per document, which
+ *  adds up for synonym lists with many variants and for queries
+ *  expanded by relevance feedback.  Instead, the arguments are kept
+ *  in a min-heap ordered by docid, so that only the arguments that
+ *  moved since the last match are examined.
+ *  <p>
+ *  The caller (or the operator's parent) may advance the arguments
+ *  directly, so the heap doesn't own the iterators.  Each argument is
+ *  ordered by the docid that it had when it was last examined.
+ *  Document iterators only move forward, so that is a lower bound on
+ *  its current docid, and the heap is repaired lazily:  the argument
+ *  at the top of the heap is re-examined until its docid is current.
+ *  The union also advances the arguments for its operator, so that
+ *  arguments that are already past the target aren't visited.
+ *  Create a new union when the arguments are initialized again.
+ *  </p>
+ */
+public class QryUnionIterator {
+
+  //  --------------- Constants and variables ---------------------
+
+  private final Qry[] args;
+  private final int[] docids;	// Each argument's docid when last examined
+
+  //  The min-heap of the indexes of the arguments that aren't
+  //  exhausted, ordered by docids.
+
+  private final int[] heap;
+  private int size;
+
+  private final int[] stack;	// Scratch space for searching the heap
+  private final int[] matches;	// The arguments that match the min docid
+  private int matchCount = 0;
+  private final int[] behind;	// The arguments that must be advanced
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  @param args The query arguments.
+   */
+  public QryUnionIterator (List<Qry> args) {
+
+    int n = args.size ();
+
+    this.args = args.toArray (new Qry[n]);
+    this.docids = new int[n];
+    this.heap = new int[n];
+    this.stack = new int[n];
+    this.matches = new int[n];
+    this.behind = new int[n];
+    this.size = n;
+
+    //  Every argument starts below any docid, which is a valid heap.
+
+    for (int i = 0; i < n; i++) {
+      this.docids[i] = -1;
+      this.heap[i] = i;
+    }
+  }
+
+  /**
+   *  Find the smallest docid that an argument matches now.  Each
+   *  argument that matches it has docIteratorHasMatch called, so
+   *  that its match is cached, as a linear scan would do.
+   *  @param r The retrieval model that determines what is a match
+   *  @return The docid, or Qry.INVALID_DOCID if every argument is
+   *  exhausted.
+   */
+  public int nextDocid (RetrievalModel r) {
+
+    this.matchCount = 0;
+
+    //  Bring the top of the heap up to date.
+
+    while (this.size > 0) {
+      int i = this.heap[0];
+
+      if (! this.args[i].docIteratorHasMatch (r)) {
+        this.heap[0] = this.heap[-- this.size];
+        this.siftDown (0);
+        continue;
+      }
+
+      int docid = this.args[i].docIteratorGetMatch ();
+
+      if (docid == this.docids[i])
+        break;
+
+      this.docids[i] = docid;
+      this.siftDown (0);
+    }
+
+    if (this.size == 0)
+      return Qry.INVALID_DOCID;
+
+    //  Other arguments that were at the min docid when they were last
+    //  examined are in the part of the heap that has that docid.
+    //  Check whether they still are.  Those that moved keep their old
+    //  docids, which are fixed when they reach the top.
+
+    int minDocid = this.docids[this.heap[0]];
+    int top = 0;
+
+    this.stack[top++] = 0;
+
+    while (top > 0) {
+      int p = this.stack[-- top];
+      int i = this.heap[p];
+
+      if (this.docids[i] != minDocid)
+        continue;
+
+      if ((p == 0) ||
+          (this.args[i].docIteratorHasMatch (r) &&
+           (this.args[i].docIteratorGetMatch () == minDocid))) {
+        this.matches[this.matchCount++] = i;
+      }
+
+      int child = 2 * p + 1;
+
+      if (child < this.size)
+        this.stack[top++] = child;
+
+      if (child + 1 < this.size)
+        this.stack[top++] = child + 1;
+    }
+
+    return minDocid;
+  }
+
+  /**
+   *  Get the number of arguments that match the docid that
+   *  nextDocid found.
+   *  @return The number of matching arguments.
+   */
+  public int getMatchCount () {
+    return this.matchCount;
+  }
+
+  /**
+   *  Get the j'th argument that matches the docid that nextDocid
+   *  found.  The order is not specified.
+   *  @param j The index of the match, less than getMatchCount.
+   *  @return The index of the query argument.
+   */
+  public int getMatch (int j) {
+    return this.matches[j];
+  }
+
+  /**
+   *  Advance the arguments beyond the specified document.  Arguments
+   *  that are already beyond it aren't touched.
+   *  @param docid An internal document id.
+   */
+  public void advancePast (int docid) {
+
+    int count = this.findBehind (docid);
+
+    for (int j = 0; j < count; j++) {
+      this.args[this.behind[j]].docIteratorAdvancePast (docid);
+    }
+  }
+
+  /**
+   *  Advance the arguments to the specified document, or beyond if
+   *  they don't match it.  Arguments that are already there or beyond
+   *  aren't touched.
+   *  @param docid An internal document id.
+   */
+  public void advanceTo (int docid) {
+
+    int count = this.findBehind (docid - 1);
+
+    for (int j = 0; j < count; j++) {
+      this.args[this.behind[j]].docIteratorAdvanceTo (docid);
+    }
+  }
+
+  /**
+   *  Find the arguments whose docids, when they were last examined,
+   *  were at most bound.  They are in the part of the heap that is
+   *  at most bound.  The others are beyond bound.
+   *  @return The number of arguments, which are stored in behind.
+   */
+  private int findBehind (int bound) {
+
+    int count = 0;
+    int top = 0;
+
+    if (this.size > 0)
+      this.stack[top++] = 0;
+
+    while (top > 0) {
+      int p = this.stack[-- top];
+
+      if (this.docids[this.heap[p]] > bound)
+        continue;
+
+      this.behind[count++] = this.heap[p];
+
+      int child = 2 * p + 1;
+
+      if (child < this.size)
+        this.stack[top++] = child;
+
+      if (child + 1 < this.size)
+        this.stack[top++] = child + 1;
+    }
+
+    return count;
+  }
+
+  /**
+   *  Restore the heap order below position p after the docid of the
+   *  argument there increased.
+   */
+  private void siftDown (int p) {
+
+    int i = this.heap[p];
+    int docid = this.docids[i];
+
+    while (true) {
+      int child = 2 * p + 1;
+
+      if (child >= this.size)
+        break;
+
+      if ((child + 1 < this.size) &&
+          (this.docids[this.heap[child + 1]] < this.docids[this.heap[child]]))
+        child++;
+
+      if (this.docids[this.heap[child]] >= docid)
+        break;
+
+      this.heap[p] = this.heap[child];
+      p = child;
+    }
+
+    this.heap[p] = i;
+  }
+}
@@ -0,0 +1,111 @@
+/**
+ *  Copyright (c) 2017, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.util.*;
+
+import org.apache.lucene.index.*;
+
+/**
+ *  A process-wide cache of query results, in front of
+ *  QryEval.processQuery.  The same query is often evaluated several
+ *  times in one run:  learning to rank evaluates BM25 for each test
+ *  query, diversification evaluates intents that recur, and relevance
+ *  feedback evaluates the original query.
+ *  <p>
+ *  Results are identified by the canonical form of the optimized query
+ *  (Qry.getCanonicalForm), the retrieval model's parameters
+ *  (RetrievalModel.getParameterKey), and the number of documents
+ *  requested.  The cache holds a fixed number of result lists, and
+ *  evicts the least recently used.  It is cleared when the current
+ *  index changes (see Idx.setCurrentIndex).  It stores and returns
+ *  copies, so callers may modify the lists that they get.
+ *  </p>
+ */
+public class QueryResultCache {
+
+  //  --------------- Constants and variables ---------------------
+
+  private final LinkedHashMap<String,ScoreList> results;
+  private IndexReader reader = null;	// The index that the results are from
+
+  private long hits = 0;
+  private long misses = 0;
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  @param maxEntries The largest number of result lists to keep.
+   *  @throws IllegalArgumentException maxEntries is less than 1.
+   */
+  public QueryResultCache (final int maxEntries) {
+
+    if (maxEntries < 1) {
+      throw new IllegalArgumentException (
+        "The query result cache size must be positive, was " + maxEntries);
+    }
+
+    this.results = new LinkedHashMap<String,ScoreList> (16, 0.75f, true) {
+      protected boolean removeEldestEntry (Map.Entry<String,ScoreList> eldest) {
+        return (this.size () > maxEntries);
+      }
+    };
+  }
+
+  /**
+   *  Get the key of a query's results.
+   *  @param q An optimized query.
+   *  @param model The retrieval model.
+   *  @param k The number of documents requested, or 0 for all of them.
+   *  @return The key.
+   */
+  public static String getKey (Qry q, RetrievalModel model, int k) {
+    return q.getCanonicalForm () + "\n" + model.getParameterKey () + "\n" + k;
+  }
+
+  /**
+   *  Get a copy of cached results.
+   *  @param key The key of the results, from getKey.
+   *  @return The results, or null if they aren't cached.
+   */
+  public synchronized ScoreList get (String key) {
+
+    if (this.reader != Idx.INDEXREADER) {
+      this.results.clear ();
+      this.reader = Idx.INDEXREADER;
+    }
+
+    ScoreList r = this.results.get (key);
+
+    if (r == null) {
+      this.misses++;
+      return null;
+    }
+
+    this.hits++;
+    return r.copy ();
+  }
+
+  /**
+   *  Cache a copy of results from the current index.
+   *  @param key The key of the results, from getKey.
+   *  @param r The results.
+   */
+  public synchronized void put (String key, ScoreList r) {
+
+    if (this.reader != Idx.INDEXREADER) {
+      this.results.clear ();
+      this.reader = Idx.INDEXREADER;
+    }
+
+    this.results.put (key, r.copy ());
+  }
+
+  /**
+   *  Describe the cache's use.
+   *  @return A one-line summary.
+   */
+  public synchronized String getStatistics () {
+    return "Query result cache:  " + this.hits + " hits, " + this.misses +
+      " misses, " + this.results.size () + " results cached";
+  }
+}
@@ -0,0 +1,174 @@
+/**
+ *  Copyright (c) 2017, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ *  The steps that turn a query into a ranking, e.g., initial
+ *  retrieval, relevance feedback, diversification, and output.  Each
+ *  stage consumes the ranking that the previous stage produced, so a
+ *  query is evaluated once per stage that needs an evaluation.
+ *  <p>
+ *  The pipeline records the time that each stage takes, summed over
+ *  every query, for a report at the end of the run.  Work that isn't
+ *  done one query at a time (e.g., learning to rank, which classifies
+ *  every query's documents at once) can be recorded with addTime.
+ *  Stages may run concurrently for different queries, so they should
+ *  only use state that belongs to the query.
+ *  </p>
+ */
+public class RankingPipeline {
+
+  //  --------------- Constants and variables ---------------------
+
+  private final List<Stage> stages = new ArrayList<Stage> ();
+
+  //  The total time, in nanoseconds, and the number of queries of
+  //  each stage, in the order in which they were first recorded.
+
+  private final LinkedHashMap<String,AtomicLong[]> times =
+    new LinkedHashMap<String,AtomicLong[]> ();
+
+  /**
+   *  A query that is evaluated, and where its output goes.
+   */
+  public static class Request {
+    public final String qid;
+    public final String query;
+    public final PrintWriter out;		// The trec_eval results
+    public final PrintWriter expansionOut;	// The expanded query
+
+    /**
+     *  @param qid The query id.
+     *  @param query The query string.
+     *  @param out Where the trec_eval results are printed.
+     *  @param expansionOut Where the expanded query is printed.
+     */
+    public Request (String qid, String query, PrintWriter out,
+                    PrintWriter expansionOut) {
+      this.qid = qid;
+      this.query = query;
+      this.out = out;
+      this.expansionOut = expansionOut;
+    }
+  }
+
+  /**
+   *  One step of the pipeline.
+   */
+  public static abstract class Stage {
+
+    private final String name;
+
+    /**
+     *  @param name The name of the stage in the timing report.
+     */
+    protected Stage (String name) {
+      this.name = name;
+    }
+
+    /**
+     *  Get the name of the stage.
+     *  @return The name.
+     */
+    public String getName () {
+      return this.name;
+    }
+
+    /**
+     *  Process a query.
+     *  @param request The query.
+     *  @param r The previous stage's ranking, or null for the first
+     *  stage.  A stage may modify it.
+     *  @return The stage's ranking.
+     *  @throws Exception Error evaluating the query.
+     */
+    public abstract ScoreList apply (Request request, ScoreList r)
+      throws Exception;
+  }
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Add a stage to the end of the pipeline.  Do this before queries
+   *  are processed.
+   *  @param stage The stage.
+   */
+  public void add (Stage stage) {
+    this.stages.add (stage);
+    this.getTimes (stage.getName ());
+  }
+
+  /**
+   *  Process a query with each stage in turn.  If a stage fails, the
+   *  later stages aren't run.
+   *  @param request The query.
+   *  @return The last stage's ranking.
+   *  @throws Exception Error evaluating the query.
+   */
+  public ScoreList run (Request request) throws Exception {
+
+    ScoreList r = null;
+
+    for (Stage stage : this.stages) {
+      long start = System.nanoTime ();
+
+      r = stage.apply (request, r);
+      this.addTime (stage.getName (), System.nanoTime () - start);
+    }
+
+    return r;
+  }
+
+  /**
+   *  Record the time of one query's (or a batch of queries') work.
+   *  @param name The name of the stage.
+   *  @param nanos The time, in nanoseconds.
+   */
+  public void addTime (String name, long nanos) {
+    AtomicLong[] t = this.getTimes (name);
+
+    t[0].addAndGet (nanos);
+    t[1].incrementAndGet ();
+  }
+
+  private AtomicLong[] getTimes (String name) {
+
+    synchronized (this.times) {
+      AtomicLong[] t = this.times.get (name);
+
+      if (t == null) {
+        t = new AtomicLong[] { new AtomicLong (), new AtomicLong () };
+        this.times.put (name, t);
+      }
+
+      return t;
+    }
+  }
+
+  /**
+   *  Get a report of the total time of each stage, and its average
+   *  time per call.  Stages of concurrent queries overlap, so the
+   *  totals may add up to more than the elapsed time.
+   *  @return The report.
+   */
+  public String getTimingReport () {
+
+    StringBuilder report = new StringBuilder ("Stage times:");
+
+    synchronized (this.times) {
+      for (Map.Entry<String,AtomicLong[]> e : this.times.entrySet ()) {
+        long nanos = e.getValue ()[0].get ();
+        long calls = e.getValue ()[1].get ();
+
+        report.append (String.format ("%n  %-12s %10.1f ms, %6d calls, %8.3f ms/call",
+                                      e.getKey (), nanos / 1e6, calls,
+                                      (calls == 0) ? 0.0 : nanos / 1e6 / calls));
+      }
+    }
+
+    return report.toString ();
+  }
+}
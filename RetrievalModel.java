@@ -16,4 +16,14 @@ public abstract class RetrievalModel {
    */
   public abstract String defaultQrySopName ();
 
+  /**
+   *  Describe the retrieval model and the parameters that affect its
+   *  scores, e.g., to identify query results in a cache.  Retrieval
+   *  models that have parameters must override it.
+   *  @return A string that is the same for models that score the same way.
+   */
+  public String getParameterKey () {
+    return this.getClass ().getName ();
+  }
+
 }
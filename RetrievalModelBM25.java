@@ -11,6 +11,7 @@
 public class RetrievalModelBM25 extends RetrievalModel {
 
     private float k_1, b , k_3;
+    private String pruning = "none";
 
     RetrievalModelBM25(float k_1, float b, float k_3){
         this.k_1 = k_1;
@@ -25,6 +26,29 @@ public class RetrievalModelBM25 extends RetrievalModel {
 
     public float getK_3(){return this.k_3; }
 
+    /**
+     *  Set the dynamic pruning strategy for #SUM queries that are
+     *  evaluated for the top k documents only.
+     *  @param pruning "none" (exhaustive evaluation), "maxscore", or
+     *  "blockmax" (Block-Max WAND, which uses the BlockMaxIndex).
+     */
+    public void setPruning(String pruning){
+        if (! (pruning.equals("none") || pruning.equals("maxscore") ||
+               pruning.equals("blockmax"))) {
+            throw new IllegalArgumentException("Unknown BM25 pruning strategy " + pruning);
+        }
+        this.pruning = pruning;
+    }
+
+    public String getPruning(){ return this.pruning; }
+
+    /**
+     *  Pruning doesn't change the results, so it isn't part of the key.
+     */
+    public String getParameterKey() {
+        return "BM25 k_1=" + this.k_1 + " b=" + this.b + " k_3=" + this.k_3;
+    }
+
     public String defaultQrySopName () {
         return new String ("#sum");
     }
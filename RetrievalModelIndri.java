@@ -11,6 +11,8 @@
 public class RetrievalModelIndri extends RetrievalModel {
 
     private float mu, lambda;
+    private boolean logSpace = false;
+    private String pruning = "none";
 
     RetrievalModelIndri(float mu, float lambda){
         this.mu = mu;
@@ -21,6 +23,43 @@ public class RetrievalModelIndri extends RetrievalModel {
 
     public float getLambda(){ return this.lambda; }
 
+    /**
+     *  Select whether query operators compute log probabilities
+     *  instead of probabilities.  In log space #AND and #WAND are
+     *  weighted sums, which don't underflow on long queries or need
+     *  Math.pow for each argument.  processQuery exponentiates the
+     *  final scores, so results are reported as probabilities either
+     *  way.
+     *  @param logSpace True to score in log space.
+     */
+    public void setLogSpace(boolean logSpace){ this.logSpace = logSpace; }
+
+    public boolean isLogSpace(){ return this.logSpace; }
+
+    /**
+     *  Set the dynamic pruning strategy for #AND and #WAND queries that
+     *  are evaluated for the top k documents only.  Pruning uses
+     *  bounds on log probabilities, so it requires log space.
+     *  @param pruning "none" (exhaustive evaluation) or "maxscore".
+     */
+    public void setPruning(String pruning){
+        if (! (pruning.equals("none") || pruning.equals("maxscore"))) {
+            throw new IllegalArgumentException("Unknown Indri pruning strategy " + pruning);
+        }
+        this.pruning = pruning;
+    }
+
+    public String getPruning(){ return this.pruning; }
+
+    /**
+     *  Log space can change the last bits of scores, so it is part of
+     *  the key; pruning doesn't change the results, so it isn't.
+     */
+    public String getParameterKey() {
+        return "Indri mu=" + this.mu + " lambda=" + this.lambda +
+            " logSpace=" + this.logSpace;
+    }
+
     public String defaultQrySopName () {
         return new String ("#and");
     }
@@ -7,34 +7,26 @@ import java.util.*;
 /**
  *  This class implements the document score list data structure
  *  and provides methods for accessing and manipulating them.
+ *  <p>
+ *  Internal document ids and scores are stored in parallel primitive
+ *  arrays.  External document ids are not stored; callers that need
+ *  them look them up (Idx.getExternalDocid) for the documents that
+ *  they output.  Ties on score are broken by Idx.getExternalIdRank,
+ *  which orders documents the same way as their external ids.
+ *  </p>
  */
 public class ScoreList {
 
-  //  A utility class to create a <internalDocid, externalDocid, score>
-  //  object.
+  //  Below this many entries, sort by insertion.
 
-  private class ScoreListEntry {
-    private int docid;
-    private String externalId;
-    private double score;
-
-    private ScoreListEntry(int internalDocid, double score) {
-      this.docid = internalDocid;
-      this.score = score;
-
-      try {
-	this.externalId = Idx.getExternalDocid (this.docid);
-      }
-      catch (IOException ex){
-	ex.printStackTrace();
-      }
-    }
-  }
+  private static final int INSERTION_SORT_THRESHOLD = 16;
 
   /**
-   *  A list of document ids and scores. 
+   *  A list of document ids and scores.
    */
-  private List<ScoreListEntry> scores = new ArrayList<ScoreListEntry>();
+  private int[] docids = new int[16];
+  private double[] scores = new double[16];
+  private int size = 0;
 
   /**
    *  Append a document score to a score list.
@@ -42,7 +34,27 @@ public class ScoreList {
    *  @param score The document's score.
    */
   public void add(int docid, double score) {
-    scores.add(new ScoreListEntry(docid, score));
+    if (this.size == this.docids.length) {
+      int capacity = 2 * this.size;
+      this.docids = Arrays.copyOf(this.docids, capacity);
+      this.scores = Arrays.copyOf(this.scores, capacity);
+    }
+
+    this.docids[this.size] = docid;
+    this.scores[this.size] = score;
+    this.size++;
+  }
+
+  /**
+   *  Get a copy of the score list.
+   *  @return A new score list with the same entries.
+   */
+  public ScoreList copy() {
+    ScoreList r = new ScoreList();
+    r.docids = Arrays.copyOf(this.docids, Math.max(this.size, 1));
+    r.scores = Arrays.copyOf(this.scores, Math.max(this.size, 1));
+    r.size = this.size;
+    return r;
   }
 
   /**
@@ -51,7 +63,8 @@ public class ScoreList {
    *  @return The internal document id.
    */
   public int getDocid(int n) {
-    return this.scores.get(n).docid;
+    this.checkIndex(n);
+    return this.docids[n];
   }
 
   /**
@@ -60,7 +73,8 @@ public class ScoreList {
    *  @return The document's score.
    */
   public double getDocidScore(int n) {
-    return this.scores.get(n).score;
+    this.checkIndex(n);
+    return this.scores[n];
   }
 
   /**
@@ -69,7 +83,8 @@ public class ScoreList {
    *  @param score The new score.
    */
   public void setDocidScore(int n, double score) {
-    this.scores.get(n).score = score;
+    this.checkIndex(n);
+    this.scores[n] = score;
   }
 
   /**
@@ -77,43 +92,104 @@ public class ScoreList {
    *  @return The size of the posting list.
    */
   public int size() {
-    return this.scores.size();
+    return this.size;
   }
 
-  /*
-   *  Compare two ScoreListEntry objects.  Sort by score, then
-   *  internal docid.
-   */
-  public class ScoreListComparator implements Comparator<ScoreListEntry> {
-
-    @Override
-    public int compare(ScoreListEntry s1, ScoreListEntry s2) {
-      if (s1.score > s2.score)
-	return -1;
-      else
-	if (s1.score < s2.score)
-	  return 1;
-	else
-      return (s1.externalId.compareTo(s2.externalId));
-    }
+  private void checkIndex(int n) {
+    if (n >= this.size)
+      throw new IndexOutOfBoundsException("Index: " + n + ", Size: " + this.size);
   }
 
   /**
    *  Sort the list by score and external document id.
    */
   public void sort () {
-    Collections.sort(this.scores, new ScoreListComparator());
+    int[] ranks = new int[this.size];
+
+    for (int i = 0; i < this.size; i++)
+      ranks[i] = Idx.getExternalIdRank(this.docids[i]);
+
+    this.sort(ranks, 0, this.size - 1);
+  }
+
+  /*
+   *  Compare entries i and j.  Sort by score, then external id rank.
+   */
+  private int compare(int[] ranks, int i, int j) {
+    if (this.scores[i] > this.scores[j])
+      return -1;
+    else
+      if (this.scores[i] < this.scores[j])
+        return 1;
+      else
+        return (ranks[i] < ranks[j]) ? -1 : ((ranks[i] == ranks[j]) ? 0 : 1);
+  }
+
+  /*
+   *  Quicksort entries lo..hi (inclusive), using insertion sort for
+   *  short ranges.
+   */
+  private void sort(int[] ranks, int lo, int hi) {
+    while (hi - lo >= INSERTION_SORT_THRESHOLD) {
+
+      //  Median of three pivot, moved to lo.
+
+      int mid = (lo + hi) >>> 1;
+      if (this.compare(ranks, mid, lo) < 0) this.swap(ranks, mid, lo);
+      if (this.compare(ranks, hi, lo) < 0) this.swap(ranks, hi, lo);
+      if (this.compare(ranks, hi, mid) < 0) this.swap(ranks, hi, mid);
+      this.swap(ranks, lo, mid);
+
+      int i = lo, j = hi + 1;
+
+      while (true) {
+        do i++; while (i < hi && this.compare(ranks, i, lo) < 0);
+        do j--; while (this.compare(ranks, j, lo) > 0);
+        if (i >= j)
+          break;
+        this.swap(ranks, i, j);
+      }
+
+      this.swap(ranks, lo, j);
+
+      //  Recurse on the smaller side to bound the stack depth.
+
+      if (j - lo < hi - j) {
+        this.sort(ranks, lo, j - 1);
+        lo = j + 1;
+      } else {
+        this.sort(ranks, j + 1, hi);
+        hi = j - 1;
+      }
+    }
+
+    for (int i = lo + 1; i <= hi; i++)
+      for (int j = i; j > lo && this.compare(ranks, j, j - 1) < 0; j--)
+        this.swap(ranks, j, j - 1);
   }
-  
+
+  private void swap(int[] ranks, int i, int j) {
+    int d = this.docids[i];
+    this.docids[i] = this.docids[j];
+    this.docids[j] = d;
+
+    double s = this.scores[i];
+    this.scores[i] = this.scores[j];
+    this.scores[j] = s;
+
+    int r = ranks[i];
+    ranks[i] = ranks[j];
+    ranks[j] = r;
+  }
+
   /**
    * Reduce the score list to the first num results to save on RAM.
-   * 
+   *
    * @param num Number of results to keep.
    */
   public void truncate(int num) {
-    List<ScoreListEntry> truncated = new ArrayList<ScoreListEntry>(this.scores.subList(0,
-        Math.min(num, scores.size())));
-    this.scores.clear();
-    this.scores = truncated;
+    this.size = Math.min(num, this.size);
+    this.docids = Arrays.copyOf(this.docids, Math.max(this.size, 1));
+    this.scores = Arrays.copyOf(this.scores, Math.max(this.size, 1));
   }
 }
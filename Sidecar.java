@@ -0,0 +1,210 @@
+/**
+ *  Copyright (c) 2017, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+
+import org.apache.lucene.index.DirectoryReader;
+
+/**
+ *  Sidecar files hold data structures that are derived from a Lucene
+ *  index, for example DocIdMap.  They are built the first time that
+ *  they are needed, saved in the index directory, and memory mapped
+ *  after that.
+ *  <p>
+ *  Every sidecar file starts with the same header, which identifies
+ *  the kind of file, the version of its format, and the version of
+ *  the index that it was built from, so a stale file is detected and
+ *  rebuilt.  A key identifies any other parameters that the contents
+ *  depend on (for example, the BM25 parameters of precomputed
+ *  scores); it is 0 if there are none.
+ *  </p>
+ *  <pre>
+ *    int     magic number
+ *    int     format version
+ *    long    index version (DirectoryReader.getVersion)
+ *    int     maxDoc
+ *    long    key
+ *  </pre>
+ */
+public class Sidecar {
+
+  //  --------------- Constants and variables ---------------------
+
+  /**
+   *  The size of the header; the contents start at this offset.
+   */
+  public static final int HEADER_BYTES = 28;
+
+  /**
+   *  The offset of maxDoc in the header.
+   */
+  public static final int MAXDOC_OFFSET = 16;
+
+  /**
+   *  Writes the contents of a sidecar file, after the header.
+   */
+  public interface Builder {
+    /**
+     *  @param out Where to write the contents.
+     *  @throws IOException Error accessing the index or the file.
+     */
+    void write (DataOutputStream out) throws IOException;
+  }
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Get a sidecar file of an index, building it first if it doesn't
+   *  exist or is out of date.  If the index directory isn't writable,
+   *  the file is built in a temporary file instead.
+   *  @param indexPath A directory that contains a Lucene index.
+   *  @param fileName The name of the sidecar file.
+   *  @param magic Identifies the kind of file.
+   *  @param formatVersion The version of the file format.
+   *  @param key Identifies other parameters of the contents, or 0.
+   *  @param reader The open index.
+   *  @param builder Writes the contents, if the file must be built.
+   *  @return The sidecar file, which is current.
+   *  @throws IOException Error accessing the index or the file.
+   */
+  public static File open (String indexPath, String fileName, int magic,
+                           int formatVersion, long key,
+                           DirectoryReader reader, Builder builder)
+    throws IOException {
+
+    File file = new File (indexPath, fileName);
+
+    if (! isCurrent (file, magic, formatVersion, key, reader)) {
+      try {
+        build (file, magic, formatVersion, key, reader, builder);
+      } catch (IOException ex) {
+        file = File.createTempFile (fileName, ".tmp");
+        file.deleteOnExit ();
+        build (file, magic, formatVersion, key, reader, builder);
+      }
+    }
+
+    return file;
+  }
+
+  /**
+   *  Returns true if the file has the expected header.
+   */
+  private static boolean isCurrent (File file, int magic, int formatVersion,
+                                    long key, DirectoryReader reader)
+    throws IOException {
+
+    if (! file.canRead () || (file.length () < HEADER_BYTES))
+      return false;
+
+    DataInputStream in =
+      new DataInputStream (new BufferedInputStream (new FileInputStream (file)));
+
+    try {
+      return ((in.readInt () == magic) &&
+              (in.readInt () == formatVersion) &&
+              (in.readLong () == reader.getVersion ()) &&
+              (in.readInt () == reader.maxDoc ()) &&
+              (in.readLong () == key));
+    } finally {
+      in.close ();
+    }
+  }
+
+  /**
+   *  Write the file under a unique temporary name and then rename it,
+   *  so a partial file is never opened, even if several processes
+   *  build it at once.
+   */
+  private static void build (File file, int magic, int formatVersion,
+                             long key, DirectoryReader reader,
+                             Builder builder)
+    throws IOException {
+
+    File tmp = File.createTempFile (file.getName (), ".tmp",
+                                    file.getAbsoluteFile ().getParentFile ());
+    DataOutputStream out =
+      new DataOutputStream (new BufferedOutputStream (new FileOutputStream (tmp)));
+
+    try {
+      out.writeInt (magic);
+      out.writeInt (formatVersion);
+      out.writeLong (reader.getVersion ());
+      out.writeInt (reader.maxDoc ());
+      out.writeLong (key);
+      builder.write (out);
+    } catch (IOException ex) {
+      out.close ();
+      tmp.delete ();
+      throw ex;
+    } finally {
+      out.close ();
+    }
+
+    if (! tmp.renameTo (file)) {
+      file.delete ();
+
+      if (! tmp.renameTo (file)) {
+        tmp.delete ();
+        throw new IOException ("Unable to create " + file);
+      }
+    }
+  }
+
+  /**
+   *  Map part of a file, read-only.
+   *  @param channel The file.
+   *  @param position Where the part starts.
+   *  @param size The size of the part, in bytes; at most 2GB.
+   *  @return The mapped part.
+   *  @throws IOException Error accessing the file.
+   */
+  public static ByteBuffer map (FileChannel channel, long position, long size)
+    throws IOException {
+    return channel.map (FileChannel.MapMode.READ_ONLY, position, size);
+  }
+
+  /**
+   *  Map an array of ints, read-only.
+   *  @param channel The file.
+   *  @param position Where the array starts.
+   *  @param count The number of ints in the array.
+   *  @return The mapped array.
+   *  @throws IOException Error accessing the file.
+   */
+  public static IntBuffer mapInts (FileChannel channel, long position,
+                                   int count)
+    throws IOException {
+    return map (channel, position, 4L * count).asIntBuffer ();
+  }
+
+  /**
+   *  Map an array of longs, read-only.
+   *  @param channel The file.
+   *  @param position Where the array starts.
+   *  @param count The number of longs in the array.
+   *  @return The mapped array.
+   *  @throws IOException Error accessing the file.
+   */
+  public static LongBuffer mapLongs (FileChannel channel, long position,
+                                     int count)
+    throws IOException {
+    return map (channel, position, 8L * count).asLongBuffer ();
+  }
+
+  /**
+   *  Map an array of floats, read-only.
+   *  @param channel The file.
+   *  @param position Where the array starts.
+   *  @param count The number of floats in the array.
+   *  @return The mapped array.
+   *  @throws IOException Error accessing the file.
+   */
+  public static FloatBuffer mapFloats (FileChannel channel, long position,
+                                       int count)
+    throws IOException {
+    return map (channel, position, 4L * count).asFloatBuffer ();
+  }
+}
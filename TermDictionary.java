@@ -0,0 +1,309 @@
+/**
+ *  Copyright (c) 2017, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.*;
+
+import org.apache.lucene.index.*;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ *  TermDictionary gives every (field, term) pair of an index a dense
+ *  integer id, and stores its df and ctf, so that code that handles
+ *  many terms can use ids and arrays instead of strings, and so that
+ *  statistics don't require a Lucene term lookup (and a new Term and
+ *  BytesRef) each time.
+ *  <p>
+ *  Fields are in the order of their UTF-8 bytes, and each field's
+ *  terms are in sorted order, so a term's id is the id of its field's
+ *  first term plus the term's id in the field's ForwardIndex.  Terms
+ *  are found by binary search within their field.
+ *  </p>
+ *  <p>
+ *  It is a Sidecar file.  After the sidecar header, the file has:
+ *  </p>
+ *  <pre>
+ *    int     f, the number of fields
+ *    int     n, the number of terms
+ *    int[f+1]   offsets of each field name in the string table
+ *    int[f+1]   the id of each field's first term
+ *    int[n+1]   offsets of each term in the string table
+ *    int[n]     the df of each term
+ *    long[n]    the ctf of each term
+ *    byte[]     the string table:  the UTF-8 field names, then terms
+ *  </pre>
+ */
+public class TermDictionary {
+
+  //  --------------- Constants and variables ---------------------
+
+  /**
+   *  The name of the sidecar file in the index directory.
+   */
+  public static final String FILE_NAME = "QryEval.terms";
+
+  private static final int MAGIC = 0x5445524d;		// "TERM"
+  private static final int FORMAT_VERSION = 1;
+
+  private static final Charset UTF8 = Charset.forName ("UTF-8");
+
+  private final int n;
+  private final HashMap<String,Integer> fields = new HashMap<String,Integer> ();
+  private final int[] firstTermIds;
+  private final IntBuffer termOffsets;
+  private final IntBuffer dfs;
+  private final LongBuffer ctfs;
+  private final ByteBuffer strings;
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Open the term dictionary of an index, building it first if it
+   *  doesn't exist or is out of date.
+   *  @param indexPath A directory that contains a Lucene index.
+   *  @param reader The open index.
+   *  @return The term dictionary.
+   *  @throws IOException Error accessing the index or the dictionary.
+   */
+  public static TermDictionary open (String indexPath,
+                                     final DirectoryReader reader)
+    throws IOException {
+
+    File file = Sidecar.open (indexPath, FILE_NAME, MAGIC, FORMAT_VERSION, 0,
+                              reader, new Sidecar.Builder () {
+        public void write (DataOutputStream out) throws IOException {
+          build (out, reader);
+        }
+      });
+
+    return new TermDictionary (file);
+  }
+
+  /**
+   *  Map an existing file.  The field names and the ids of their
+   *  first terms are read into memory.
+   */
+  private TermDictionary (File file) throws IOException {
+
+    RandomAccessFile raf = new RandomAccessFile (file, "r");
+
+    try {
+      FileChannel channel = raf.getChannel ();
+      ByteBuffer header = Sidecar.map (channel, 0, Sidecar.HEADER_BYTES + 8);
+      int f = header.getInt (Sidecar.HEADER_BYTES);
+
+      this.n = header.getInt (Sidecar.HEADER_BYTES + 4);
+
+      long position = Sidecar.HEADER_BYTES + 8;
+      IntBuffer fieldOffsets = Sidecar.mapInts (channel, position, f + 1);
+      position += 4L * (f + 1);
+      IntBuffer firstTermIds = Sidecar.mapInts (channel, position, f + 1);
+      position += 4L * (f + 1);
+      this.termOffsets = Sidecar.mapInts (channel, position, this.n + 1);
+      position += 4L * (this.n + 1);
+      this.dfs = Sidecar.mapInts (channel, position, this.n);
+      position += 4L * this.n;
+      this.ctfs = Sidecar.mapLongs (channel, position, this.n);
+      position += 8L * this.n;
+      this.strings = Sidecar.map (channel, position, channel.size () - position);
+
+      this.firstTermIds = new int[f + 1];
+
+      for (int i = 0; i <= f; i++) {
+        this.firstTermIds[i] = firstTermIds.get (i);
+      }
+
+      for (int i = 0; i < f; i++) {
+        this.fields.put (this.decode (fieldOffsets.get (i),
+                                      fieldOffsets.get (i + 1)), i);
+      }
+    } finally {
+      raf.close ();		// The mappings remain valid.
+    }
+  }
+
+  /**
+   *  Walk the terms of every field.  The sections are buffered until
+   *  the number of terms is known.
+   */
+  private static void build (DataOutputStream out, DirectoryReader reader)
+    throws IOException {
+
+    ByteArrayOutputStream fieldOffsetBytes = new ByteArrayOutputStream ();
+    ByteArrayOutputStream firstBytes = new ByteArrayOutputStream ();
+    ByteArrayOutputStream offsetBytes = new ByteArrayOutputStream ();
+    ByteArrayOutputStream dfBytes = new ByteArrayOutputStream ();
+    ByteArrayOutputStream ctfBytes = new ByteArrayOutputStream ();
+    ByteArrayOutputStream stringBytes = new ByteArrayOutputStream ();
+
+    DataOutputStream fieldOffsets = new DataOutputStream (fieldOffsetBytes);
+    DataOutputStream firsts = new DataOutputStream (firstBytes);
+    DataOutputStream offsets = new DataOutputStream (offsetBytes);
+    DataOutputStream dfs = new DataOutputStream (dfBytes);
+    DataOutputStream ctfs = new DataOutputStream (ctfBytes);
+
+    List<String> fields = new ArrayList<String> (MultiFields.getIndexedFields (reader));
+    Collections.sort (fields, new Comparator<String> () {
+      public int compare (String s1, String s2) {
+        return new BytesRef (s1).compareTo (new BytesRef (s2));
+      }
+    });
+
+    //  The field names come first in the string table.
+
+    for (String field : fields) {
+      fieldOffsets.writeInt (stringBytes.size ());
+      stringBytes.write (field.getBytes (UTF8));
+    }
+
+    fieldOffsets.writeInt (stringBytes.size ());
+
+    int n = 0;
+
+    for (String field : fields) {
+      firsts.writeInt (n);
+
+      Terms terms = MultiFields.getTerms (reader, field);
+
+      if (terms == null)
+        continue;
+
+      TermsEnum ithTerm = terms.iterator (null);
+      BytesRef term;
+
+      while ((term = ithTerm.next ()) != null) {
+        offsets.writeInt (stringBytes.size ());
+        stringBytes.write (term.bytes, term.offset, term.length);
+        dfs.writeInt (ithTerm.docFreq ());
+        ctfs.writeLong (ithTerm.totalTermFreq ());
+        n++;
+      }
+    }
+
+    firsts.writeInt (n);
+    offsets.writeInt (stringBytes.size ());
+
+    out.writeInt (fields.size ());
+    out.writeInt (n);
+    fieldOffsetBytes.writeTo (out);
+    firstBytes.writeTo (out);
+    offsetBytes.writeTo (out);
+    dfBytes.writeTo (out);
+    ctfBytes.writeTo (out);
+    stringBytes.writeTo (out);
+  }
+
+  private String decode (int start, int end) {
+
+    byte[] bytes = new byte[end - start];
+
+    for (int i = 0; i < bytes.length; i++)
+      bytes[i] = this.strings.get (start + i);
+
+    return new String (bytes, UTF8);
+  }
+
+  /**
+   *  Get the number of terms in every field.
+   *  @return The number of terms.
+   */
+  public int getNumTerms () {
+    return this.n;
+  }
+
+  /**
+   *  Get the id of the first term of a field; the field's terms have
+   *  consecutive ids, in sorted order.
+   *  @param field The name of a field.
+   *  @return The term id, or -1 if the field isn't indexed.
+   */
+  public int getFirstTermId (String field) {
+    Integer f = this.fields.get (field);
+    return (f == null) ? -1 : this.firstTermIds[f];
+  }
+
+  /**
+   *  Get the id of a term, using binary search on the field's terms.
+   *  @param field The field that the term occurs in.
+   *  @param term The processed (stemmed, lower-cased, etc) term string.
+   *  @return The term id, or -1 if the term isn't in the field.
+   */
+  public int getTermId (String field, String term) {
+
+    Integer f = this.fields.get (field);
+
+    if (f == null)
+      return -1;
+
+    byte[] key = term.getBytes (UTF8);
+    int lo = this.firstTermIds[f];
+    int hi = this.firstTermIds[f + 1] - 1;
+
+    while (lo <= hi) {
+      int mid = (lo + hi) >>> 1;
+      int c = this.compareTerm (mid, key);
+
+      if (c < 0)
+        lo = mid + 1;
+      else if (c > 0)
+        hi = mid - 1;
+      else
+        return mid;
+    }
+
+    return -1;
+  }
+
+  /**
+   *  Compare a term with a key, as unsigned bytes.
+   */
+  private int compareTerm (int termId, byte[] key) {
+
+    int start = this.termOffsets.get (termId);
+    int length = this.termOffsets.get (termId + 1) - start;
+    int limit = Math.min (length, key.length);
+
+    for (int i = 0; i < limit; i++) {
+      int c = (this.strings.get (start + i) & 0xff) - (key[i] & 0xff);
+
+      if (c != 0)
+        return c;
+    }
+
+    return length - key.length;
+  }
+
+  /**
+   *  Get the string of a term.
+   *  @param termId A term id.
+   *  @return The term string.
+   */
+  public String getTerm (int termId) {
+    return this.decode (this.termOffsets.get (termId),
+                        this.termOffsets.get (termId + 1));
+  }
+
+  /**
+   *  Get the number of documents that contain a term, including
+   *  deleted documents, as IndexReader.docFreq does.
+   *  @param termId A term id.
+   *  @return The document frequency (df).
+   */
+  public int getDf (int termId) {
+    return this.dfs.get (termId);
+  }
+
+  /**
+   *  Get the number of occurrences of a term, including those in
+   *  deleted documents, as IndexReader.totalTermFreq does.
+   *  @param termId A term id.
+   *  @return The collection term frequency (ctf), or -1 if the field
+   *  doesn't store term frequencies.
+   */
+  public long getCtf (int termId) {
+    return this.ctfs.get (termId);
+  }
+}
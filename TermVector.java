@@ -3,14 +3,17 @@
  */
 
 import java.io.*;
+import java.util.Arrays;
 
 import org.apache.lucene.index.DocsAndPositionsEnum;
-import org.apache.lucene.index.Term;
 import org.apache.lucene.index.Terms;
 import org.apache.lucene.index.TermsEnum;
 
 /**
  *  An Indri DocVector-style interface for the Lucene termvector.
+ *  A TermVector can also be read from a ForwardIndex, which is faster
+ *  and doesn't need Lucene term vectors; see Idx.getTermVector.
+ *  Statistics of stems come from the index's TermDictionary.
  *  There are three main data structurs:
  *  <pre>
  *    stems:      The field's vocabulary.  The 0'th entry is an empty string.
@@ -38,7 +41,9 @@ public class TermVector {
   private int[] positions;	// Index of the stem that at this position
   private String[] stems;	// The vocabulary. 0 indicates a stopword
   private int[] stemsFreq;	// The frequency (tf) of each entry in stems
-  private Term[] terms;
+  private int[] termIds;	// Term ids in the TermDictionary, when needed
+  private int[] stemIds;	// Term ids, if read from a ForwardIndex
+  private ForwardIndex forwardIndex;
 
   //  --------------- Methods ---------------------------------------
 
@@ -66,7 +71,6 @@ public class TermVector {
 
     int stemsLength = (int) this.luceneTerms.size();
     stems = new String[stemsLength + 1];
-    terms = new Term[stemsLength + 1];
     stemsFreq = new int[stemsLength + 1];
 
     //  Iterate through the terms, filling in the stem and frequency
@@ -78,7 +82,6 @@ public class TermVector {
     int lastPosition = 0;
     for (int i = 1; ithTerm.next() != null; i++) {
       stems[i] = ithTerm.term().utf8ToString();
-      terms[i] = new Term(fieldName, ithTerm.term().utf8ToString());
       stemsFreq[i] = (int) ithTerm.totalTermFreq();
       fieldLength += stemsFreq[i]; 
 
@@ -113,6 +116,67 @@ public class TermVector {
     }
   }
 
+  /**
+   *  Read a document's term vector from a forward index instead of
+   *  the Lucene index.  The stems are in the same (sorted) order as
+   *  in a Lucene term vector.  If the forward index doesn't store
+   *  locations, the vector has no positions:  positionsLength is 0.
+   *  @param docId An internal document id
+   *  @param forwardIndex The forward index of a document field.
+   **/
+  public TermVector(int docId, ForwardIndex forwardIndex) {
+    this.docId = docId;
+    this.fieldName = forwardIndex.getField();
+    this.fieldLength = 0;
+    this.forwardIndex = forwardIndex;
+
+    int first = forwardIndex.getFirstPosting(docId);
+    int stemsLength = forwardIndex.getFirstPosting(docId + 1) - first;
+
+    if (stemsLength == 0) {
+      return;
+    }
+
+    //  Allocate space for stems. The 0'th stem indicates a stopword.
+
+    stems = new String[stemsLength + 1];
+    stemIds = new int[stemsLength + 1];
+    stemsFreq = new int[stemsLength + 1];
+    stemIds[0] = -1;
+
+    for (int i = 1; i <= stemsLength; i++) {
+      stemIds[i] = forwardIndex.getPostingTermId(first + i - 1);
+      stems[i] = forwardIndex.getTerm(stemIds[i]);
+      stemsFreq[i] = forwardIndex.getPostingTf(first + i - 1);
+      fieldLength += stemsFreq[i];
+    }
+
+    if (! forwardIndex.hasLocations()) {
+      positions = new int[0];
+      return;
+    }
+
+    //  The locations of each stem follow the previous stem's, in
+    //  increasing order, so the last location of each stem is the
+    //  largest.
+
+    int firstLocation = forwardIndex.getFirstLocation(docId);
+    int lastPosition = 0;
+    int end = firstLocation;
+
+    for (int i = 1; i <= stemsLength; i++) {
+      end += stemsFreq[i];
+      lastPosition = Math.max(lastPosition, forwardIndex.getLocation(end - 1));
+    }
+
+    positions = new int[lastPosition + 1];
+
+    for (int i = 1, n = firstLocation; i <= stemsLength; i++) {
+      for (int j = 0; j < stemsFreq[i]; j++)
+        positions[forwardIndex.getLocation(n++)] = i;
+    }
+  }
+
   /**
    *  Get the index of stem in the stems vector, or -1 if the stems
    *  vector does not contain the stem.  
@@ -120,6 +184,18 @@ public class TermVector {
    *  @return the index of the stem in the stems vector, or -1 if it does not occur.
    */
   public int indexOfStem (String stem) {
+
+    //  A vector from a forward index is sorted by term id.
+
+    if (this.stemIds != null) {
+      int id = this.forwardIndex.getTermId(stem);
+
+      if (id < 0)
+        return -1;
+
+      int s = Arrays.binarySearch(this.stemIds, 1, this.stemIds.length, id);
+      return (s < 0) ? -1 : s;
+    }
     
     for (int s=1; s<this.stems.length; s++)
       if (stem.equals (this.stems [s]))
@@ -128,6 +204,30 @@ public class TermVector {
     return -1;
   }
 
+  /**
+   *  Get the index of a term in the stems vector, or -1 if the stems
+   *  vector does not contain the term.
+   *  @param termId A term id of this field (see Idx.getTermId).
+   *  @return the index of the term in the stems vector, or -1 if it does not occur.
+   */
+  public int indexOfTermId (int termId) {
+
+    if (termId < 0 || this.stemsLength() == 0)
+      return -1;
+
+    if (this.stemIds != null) {
+      int id = termId - Idx.getFirstTermId(this.fieldName);
+
+      if (id < 0 || id >= this.forwardIndex.getNumTerms())
+        return -1;
+
+      int s = Arrays.binarySearch(this.stemIds, 1, this.stemIds.length, id);
+      return (s < 0) ? -1 : s;
+    }
+
+    return this.indexOfStem(Idx.getTerm(termId));
+  }
+
   /**
    *  Get the number of positions in this field (the length of the
    *  field). If positions are not stored, it returns 0.
@@ -197,7 +297,7 @@ public class TermVector {
    * @throws IOException  Error accessing the Lucene index
    */
   public long totalStemFreq(int i) throws IOException {
-    return Idx.INDEXREADER.totalTermFreq(terms[i]);
+    return Idx.getTotalTermFreq(this.stemTermId(i));
   }
   
   /**
@@ -207,7 +307,29 @@ public class TermVector {
    * @throws IOException Error accessing the Lucene index
    */
   public int stemDf(int i) throws IOException {
-    return Idx.INDEXREADER.docFreq(terms[i]);
+    return Idx.getDf(this.stemTermId(i));
+  }
+
+  /**
+   *  Get the term id of the i'th stem (see Idx.getTermId).  The ids
+   *  are found only when they are needed.
+   *  @param i Index of the stem.
+   *  @return The term id.
+   */
+  public int stemTermId(int i) {
+    if (termIds == null) {
+      termIds = new int[stems.length];
+      Arrays.fill(termIds, -1);
+    }
+
+    if (termIds[i] < 0) {
+      if (stemIds != null)
+        termIds[i] = Idx.getFirstTermId(fieldName) + stemIds[i];
+      else
+        termIds[i] = Idx.getTermId(fieldName, stems[i]);
+    }
+
+    return termIds[i];
   }
   
 }
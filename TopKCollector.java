@@ -0,0 +1,193 @@
+/**
+ *  Copyright (c) 2017, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.util.*;
+
+/**
+ *  A bounded collector that keeps only the k best documents seen so
+ *  far.  It is used instead of a ScoreList when the caller needs only
+ *  the top of a ranking, so that a query that matches millions of
+ *  documents doesn't allocate and sort an entry for each of them.
+ *  <p>
+ *  The collector is a min-heap stored in parallel primitive arrays;
+ *  the root is the worst of the k documents kept.  Documents are
+ *  ordered the same way as ScoreList.sort:  by score, then by external
+ *  document id, which is compared by its rank (Idx.getExternalIdRank).
+ *  </p>
+ */
+public class TopKCollector {
+
+  //  --------------- Constants and variables ---------------------
+
+  private final int k;
+  private int size = 0;
+  private int[] docids;
+  private double[] scores;
+  private int[] ranks;		// Idx.getExternalIdRank of each entry
+  private long offered = 0;
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  @param k The maximum number of documents to keep.
+   *  @throws IllegalArgumentException k is less than 1.
+   */
+  public TopKCollector (int k) {
+
+    if (k < 1) {
+      throw new IllegalArgumentException ("k must be at least 1, was " + k);
+    }
+
+    this.k = k;
+
+    int capacity = Math.min (k, 1024);	// Grow if the query matches more
+    this.docids = new int[capacity];
+    this.scores = new double[capacity];
+    this.ranks = new int[capacity];
+  }
+
+  /**
+   *  Offer a document to the collector.  It is kept if it is one of
+   *  the k best documents seen so far.
+   *  @param docid An internal document id.
+   *  @param score The document's score.
+   */
+  public void add (int docid, double score) {
+
+    this.offered++;
+
+    if (this.size < this.k) {
+      if (this.size == this.docids.length) {
+        int capacity = (int) Math.min ((long) this.k, 2L * this.size);
+        this.docids = Arrays.copyOf (this.docids, capacity);
+        this.scores = Arrays.copyOf (this.scores, capacity);
+        this.ranks = Arrays.copyOf (this.ranks, capacity);
+      }
+
+      int i = this.size++;
+      this.docids[i] = docid;
+      this.scores[i] = score;
+      this.ranks[i] = Idx.getExternalIdRank (docid);
+      this.siftUp (i);
+      return;
+    }
+
+    //  The heap is full.  Most documents lose to the root on score.
+
+    if (score < this.scores[0])
+      return;
+
+    int rank = Idx.getExternalIdRank (docid);
+
+    if ((score == this.scores[0]) && (rank >= this.ranks[0]))
+      return;
+
+    this.docids[0] = docid;
+    this.scores[0] = score;
+    this.ranks[0] = rank;
+    this.siftDown (0);
+  }
+
+  /**
+   *  Get the number of documents that the collector holds.
+   *  @return The number of documents, at most k.
+   */
+  public int size () {
+    return this.size;
+  }
+
+  /**
+   *  Get the number of documents that were offered to the collector,
+   *  i.e., the number of documents that were scored.
+   *  @return The number of calls to add.
+   */
+  public long getNumOffered () {
+    return this.offered;
+  }
+
+  /**
+   *  Get the score that a document must reach to be kept.  A document
+   *  whose score is below the threshold would be rejected; one whose
+   *  score equals it may still be kept, because of the external id
+   *  tie-break.
+   *  @return The score of the worst document kept if the collector is
+   *  full, otherwise negative infinity.
+   */
+  public double getThreshold () {
+    return (this.size < this.k) ? Double.NEGATIVE_INFINITY : this.scores[0];
+  }
+
+  /**
+   *  Get the documents that the collector holds as a sorted ScoreList.
+   *  The collector is not changed.
+   *  @return The top k documents, best first.
+   */
+  public ScoreList getScoreList () {
+
+    ScoreList r = new ScoreList ();
+
+    for (int i = 0; i < this.size; i++) {
+      r.add (this.docids[i], this.scores[i]);
+    }
+
+    r.sort ();
+    return r;
+  }
+
+  /**
+   *  Returns true if heap entry i ranks below heap entry j, i.e., it
+   *  belongs closer to the root.
+   */
+  private boolean worse (int i, int j) {
+
+    if (this.scores[i] != this.scores[j])
+      return this.scores[i] < this.scores[j];
+
+    return this.ranks[i] > this.ranks[j];
+  }
+
+  private void siftUp (int i) {
+    while (i > 0) {
+      int parent = (i - 1) >>> 1;
+
+      if (! this.worse (i, parent))
+        break;
+
+      this.swap (i, parent);
+      i = parent;
+    }
+  }
+
+  private void siftDown (int i) {
+    while (true) {
+      int child = 2 * i + 1;
+
+      if (child >= this.size)
+        break;
+
+      if ((child + 1 < this.size) && this.worse (child + 1, child))
+        child++;
+
+      if (! this.worse (child, i))
+        break;
+
+      this.swap (i, child);
+      i = child;
+    }
+  }
+
+  private void swap (int i, int j) {
+    int d = this.docids[i];
+    this.docids[i] = this.docids[j];
+    this.docids[j] = d;
+
+    double s = this.scores[i];
+    this.scores[i] = this.scores[j];
+    this.scores[j] = s;
+
+    int r = this.ranks[i];
+    this.ranks[i] = this.ranks[j];
+    this.ranks[j] = r;
+  }
+}
@@ -0,0 +1,215 @@
+/**
+ *  Copyright (c) 2017, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.*;
+
+/**
+ *  A document ranking in trec_eval input format, e.g., an initial
+ *  ranking for relevance feedback or diversification.  Each line is
+ *  <pre>
+ *    qid Q0 externalDocid rank score runName
+ *  </pre>
+ *  with fields separated by single spaces.  The qid may have an
+ *  intent suffix (e.g., "10.1" is an intent of query "10").
+ *  <p>
+ *  The file is memory-mapped and scanned once, to find where each
+ *  qid's lines are, so getting a query's ranking reads only its own
+ *  lines instead of the file from the top.  Each qid's lines are
+ *  usually contiguous; if they aren't, the lines between them that
+ *  belong to other qids are skipped.  After the file is opened, the
+ *  object is only read, so queries may use it concurrently.
+ *  </p>
+ */
+public class TrecRunFile {
+
+  //  --------------- Constants and variables ---------------------
+
+  private static final Charset UTF8 = Charset.forName ("UTF-8");
+
+  private final ByteBuffer lines;
+
+  //  The bytes in which each qid's lines are:  the start of its first
+  //  line and the end of its last line.
+
+  private final HashMap<String,int[]> ranges = new HashMap<String,int[]> ();
+
+  //  The qids and intent qids of each query, in the order in which
+  //  they first appear.
+
+  private final HashMap<String,List<String>> intents =
+    new HashMap<String,List<String>> ();
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Open a ranking file and find the lines of each qid.
+   *  @param path The path of the file.
+   *  @throws IOException Error accessing the file.
+   */
+  public TrecRunFile (String path) throws IOException {
+
+    RandomAccessFile raf = new RandomAccessFile (path, "r");
+
+    try {
+      FileChannel channel = raf.getChannel ();
+
+      if (channel.size () > Integer.MAX_VALUE)
+        throw new IOException ("Ranking file is too large: " + path);
+
+      this.lines = channel.map (FileChannel.MapMode.READ_ONLY, 0,
+                                channel.size ());
+    } finally {
+      raf.close ();		// The mapping remains valid.
+    }
+
+    //  A new qid string is created only when the qid changes, which
+    //  in a sorted file is once per query.
+
+    int limit = this.lines.limit ();
+    int start = 0;
+    int qidStart = 0;
+    int qidLength = -1;
+    int[] range = null;
+
+    while (start < limit) {
+      int end = this.lineEnd (start);
+      int qidEnd = this.fieldEnd (start, end);
+
+      if (qidEnd == start) {			// A blank line
+        start = end + 1;
+        continue;
+      }
+
+      if (! this.sameBytes (qidStart, qidLength, start, qidEnd - start)) {
+        String qid = this.decode (start, qidEnd);
+
+        qidStart = start;
+        qidLength = qidEnd - start;
+        range = this.ranges.get (qid);
+
+        if (range == null) {
+          range = new int[] { start, end };
+          this.ranges.put (qid, range);
+
+          int d = qid.indexOf ('.');
+          String query = (d < 0) ? qid : qid.substring (0, d);
+          List<String> ids = this.intents.get (query);
+
+          if (ids == null) {
+            ids = new ArrayList<String> ();
+            this.intents.put (query, ids);
+          }
+
+          ids.add (qid);
+        }
+      }
+
+      range[1] = end;
+      start = end + 1;
+    }
+  }
+
+  /**
+   *  Get the qids of a query and of its intents (e.g., "10", "10.1",
+   *  "10.2"), in the order in which they first appear in the file.
+   *  @param qid A query id without an intent suffix.
+   *  @return The qids, or an empty list if the query has no lines.
+   */
+  public List<String> getQids (String qid) {
+    List<String> ids = this.intents.get (qid);
+    return (ids == null) ?
+      Collections.<String>emptyList () : Collections.unmodifiableList (ids);
+  }
+
+  /**
+   *  Get a qid's ranking, in file order, with internal docids.
+   *  @param qid A query id, possibly with an intent suffix.
+   *  @param maxLength The maximum number of documents to return.
+   *  @return The ranking, which is empty if the qid has no lines.
+   *  @throws Exception A document isn't in the index.
+   */
+  public ScoreList getRanking (String qid, int maxLength) throws Exception {
+
+    ScoreList r = new ScoreList ();
+    int[] range = this.ranges.get (qid);
+
+    if (range == null)
+      return r;
+
+    int start = range[0];
+
+    while (start < range[1] && r.size () < maxLength) {
+      int end = this.lineEnd (start);
+      String[] pair = this.decode (start, end).split (" ");
+
+      if (pair[0].equals (qid))
+        r.add (Idx.getInternalDocid (pair[2]), Double.parseDouble (pair[4]));
+
+      start = end + 1;
+    }
+
+    return r;
+  }
+
+  /**
+   *  Find the end of the line that starts at start:  the position of
+   *  its newline, or the end of the file.  A carriage return before
+   *  the newline is still in the range; fieldEnd stops at it, and
+   *  decode drops it.
+   */
+  private int lineEnd (int start) {
+
+    int limit = this.lines.limit ();
+    int end = start;
+
+    while (end < limit && this.lines.get (end) != '\n')
+      end++;
+
+    return end;
+  }
+
+  /**
+   *  Find the end of the first field of a line.
+   */
+  private int fieldEnd (int start, int end) {
+
+    int i = start;
+
+    while (i < end && this.lines.get (i) != ' ' && this.lines.get (i) != '\r')
+      i++;
+
+    return i;
+  }
+
+  /**
+   *  Check whether two byte ranges of the file are the same.
+   */
+  private boolean sameBytes (int start1, int length1, int start2, int length2) {
+
+    if (length1 != length2)
+      return false;
+
+    for (int i = 0; i < length1; i++)
+      if (this.lines.get (start1 + i) != this.lines.get (start2 + i))
+        return false;
+
+    return true;
+  }
+
+  private String decode (int start, int end) {
+
+    if (end > start && this.lines.get (end - 1) == '\r')
+      end--;
+
+    byte[] bytes = new byte[end - start];
+
+    for (int i = 0; i < bytes.length; i++)
+      bytes[i] = this.lines.get (start + i);
+
+    return new String (bytes, UTF8);
+  }
+}